@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastFetcher;
+import com.example.android.sunshine.app.sync.ForecastValidators;
+import com.example.android.sunshine.app.sync.StubForecastServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    Fetches the same forecast twice from a local stub server.  The second request carries the
+    first one's ETag, gets a 304, and must leave the database and its observers alone.
+ */
+public class TestConditionalFetch extends AndroidTestCase {
+
+    private static final String LOCATION_SETTING = "6037";
+    private static final String FORECAST =
+            "/com/example/android/sunshine/app/sync/owm_daily_wellington_14.json";
+    private static final String ETAG = "\"wellington-1\"";
+    // longer than the provider's notification debounce, so earlier writes have been notified
+    private static final long QUIET_MILLIS = 500;
+
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteLocation();
+        mServer = new StubForecastServer(readForecast(), ETAG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteLocation();
+        super.tearDown();
+    }
+
+    public void testUnchangedForecastWritesNothing() throws Exception {
+        FetchWeatherTask task = new FetchWeatherTask(getContext(),
+                new ForecastFetcher(mServer.getForecastUri()));
+
+        task.doInBackground(LOCATION_SETTING);
+        assertEquals("Error: first fetch didn't store the forecast", 14, countWeather());
+        ForecastValidators stored = ForecastValidators.query(
+                getContext().getContentResolver(), LOCATION_SETTING);
+        assertEquals("Error: ETag wasn't stored", ETAG, stored.etag);
+        assertEquals("Error: max-age wasn't stored", 600, stored.maxAgeSeconds);
+        String before = snapshot();
+
+        Thread.sleep(QUIET_MILLIS);
+        HandlerThread thread = new HandlerThread("TestConditionalFetch");
+        thread.start();
+        final int[] notifications = new int[1];
+        ContentObserver observer = new ContentObserver(new Handler(thread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                synchronized (notifications) {
+                    notifications[0]++;
+                }
+            }
+        };
+        getContext().getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, observer);
+        try {
+            task.doInBackground(LOCATION_SETTING);
+            Thread.sleep(QUIET_MILLIS);
+        } finally {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            thread.quit();
+        }
+
+        assertEquals("Error: second request wasn't conditional",
+                ETAG, mServer.getLastIfNoneMatch());
+        assertEquals("Error: server didn't answer 304", 1, mServer.getNotModifiedCount());
+        synchronized (notifications) {
+            assertEquals("Error: a 304 notified observers", 0, notifications[0]);
+        }
+        // ingest stamps last_used even when no day changed, so any write would show up here
+        assertEquals("Error: a 304 wrote to the database", before, snapshot());
+    }
+
+    public void testChangedForecastIsStored() throws Exception {
+        FetchWeatherTask task = new FetchWeatherTask(getContext(),
+                new ForecastFetcher(mServer.getForecastUri()));
+        task.doInBackground(LOCATION_SETTING);
+        String before = snapshot();
+
+        String newEtag = "\"wellington-2\"";
+        mServer.setForecast(readForecast(), newEtag);
+        task.doInBackground(LOCATION_SETTING);
+
+        assertEquals(0, mServer.getNotModifiedCount());
+        assertFalse("Error: changed forecast wasn't stored", before.equals(snapshot()));
+        assertEquals("Error: new ETag wasn't stored", newEtag, ForecastValidators.query(
+                getContext().getContentResolver(), LOCATION_SETTING).etag);
+    }
+
+    private String readForecast() throws IOException {
+        InputStream in = getClass().getResourceAsStream(FORECAST);
+        assertNotNull("Error: missing test resource " + FORECAST, in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private int countWeather() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION_SETTING), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Every column of the location row and its weather rows, _ids included.
+    private String snapshot() {
+        StringBuilder rows = new StringBuilder();
+        Cursor location = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING}, null);
+        try {
+            rows.append(DatabaseUtils.dumpCursorToString(location));
+        } finally {
+            location.close();
+        }
+        Cursor weather = getContext().getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION_SETTING),
+                new String[]{WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                        WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                        WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            rows.append(DatabaseUtils.dumpCursorToString(weather));
+        } finally {
+            weather.close();
+        }
+        return rows.toString();
+    }
+
+    private void deleteLocation() {
+        Cursor cursor = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING}, null);
+        try {
+            while (cursor.moveToNext()) {
+                getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                        WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{LOCATION_SETTING});
+    }
+}
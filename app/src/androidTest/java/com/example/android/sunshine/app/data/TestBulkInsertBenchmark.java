@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.TimeZone;
+
+/*
+    Compares the compiled-statement weather ingest against the original db.insert loop.
+    Timings go to logcat under this class name; the asserts only check that both paths
+    store the same rows.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "99705");
+        location.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mLocationRowId = mDb.insert(LocationEntry.TABLE_NAME, null, location);
+        assertTrue("Unable to insert the benchmark location", mLocationRowId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+        // the provider didn't see the locations go
+        LocationIdCache.getInstance().invalidate();
+        super.tearDown();
+    }
+
+    public void testNormalizeDateMatchesContract() {
+        TimeZone zone = TimeZone.getDefault();
+        // an hour past the test date, then a spread of instants across two years
+        for (long date = TEST_DATE + 3600000L; date < TEST_DATE + 730 * DAY_IN_MILLIS;
+             date += DAY_IN_MILLIS / 3 + 12345) {
+            assertEquals("Error: compiled ingest normalizes " + date + " differently",
+                    WeatherContract.normalizeDate(date),
+                    EpochDays.normalize(date, zone));
+        }
+    }
+
+    public void testBulkInsert14() {
+        compareIngestPaths(14);
+    }
+
+    public void testBulkInsert1k() {
+        compareIngestPaths(1000);
+    }
+
+    public void testBulkInsert100k() {
+        compareIngestPaths(100000);
+    }
+
+    private void compareIngestPaths(int rows) {
+        long rowByRowMillis = timeIngest(rows, false);
+        long compiledMillis = timeIngest(rows, true);
+        Log.d(LOG_TAG, rows + " rows: db.insert loop " + rowByRowMillis + " ms, compiled statement "
+                + compiledMillis + " ms");
+    }
+
+    private long timeIngest(int rows, boolean compiled) {
+        ContentValues[] values = TestUtilities.createWeatherValues(mLocationRowId, rows);
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        long start = SystemClock.elapsedRealtime();
+        int inserted;
+        mDb.beginTransaction();
+        try {
+            inserted = compiled
+                    ? WeatherProvider.bulkInsertWeatherCompiled(mDb, values)
+                    : WeatherProvider.bulkInsertWeatherRowByRow(mDb, values);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals("Error: wrong insert count", rows, inserted);
+        assertEquals("Error: wrong number of stored rows", rows,
+                DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+        return elapsed;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.TimeZone;
+
+/*
+    Checks EpochDays against the android.text.format.Time code it replaced, in zones with
+    daylight saving (including Lord Howe's half-hour shift), and times the two.  Timings go to
+    logcat under this class name.
+ */
+public class TestDateBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDateBenchmark.class.getSimpleName();
+
+    private static final String[] ZONES = {
+            "UTC", "America/Los_Angeles", "Europe/London", "Australia/Lord_Howe",
+            "Pacific/Auckland", "Asia/Kolkata"};
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+    private static final int ITERATIONS = 100000;
+
+    // What WeatherContract.normalizeDate used to do, for a given zone.
+    private static long normalizeWithTime(long date, String zoneId) {
+        Time time = new Time(zoneId);
+        time.set(date);
+        int julianDay = Time.getJulianDay(date, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+
+    public void testNormalizeMatchesTime() {
+        for (String zoneId : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(zoneId);
+            // every 7 hours for two years catches each hour of the day, and both DST changes
+            for (long date = TEST_DATE; date < TEST_DATE + 730 * EpochDays.DAY_IN_MILLIS;
+                 date += 7 * HOUR_IN_MILLIS) {
+                assertEquals("Error: " + zoneId + " normalizes " + date + " differently",
+                        normalizeWithTime(date, zoneId), EpochDays.normalize(date, zone));
+            }
+        }
+    }
+
+    public void testEpochDayMatchesJulianDay() {
+        for (String zoneId : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(zoneId);
+            Time time = new Time(zoneId);
+            long offset = -1;
+            for (long date = TEST_DATE; date < TEST_DATE + 730 * EpochDays.DAY_IN_MILLIS;
+                 date += 5 * HOUR_IN_MILLIS) {
+                time.set(date);
+                long julianDay = Time.getJulianDay(date, time.gmtoff);
+                if (offset == -1) {
+                    offset = julianDay - EpochDays.toEpochDay(date, zone);
+                }
+                assertEquals("Error: " + zoneId + " puts " + date + " on another day",
+                        julianDay, EpochDays.toEpochDay(date, zone) + offset);
+            }
+        }
+    }
+
+    public void testConsecutiveDaysStartAtMidnight() {
+        for (String zoneId : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(zoneId);
+            long first = EpochDays.toEpochDay(TEST_DATE, zone);
+            for (long day = first; day < first + 730; day++) {
+                long start = EpochDays.startOfDayMillis(day, zone);
+                assertEquals("Error: " + zoneId + " day " + day + " starts on another day",
+                        day, EpochDays.toEpochDay(start, zone));
+                assertEquals("Error: " + zoneId + " day " + day + " starts before midnight",
+                        day - 1, EpochDays.toEpochDay(start - 1, zone));
+            }
+        }
+    }
+
+    public void testNormalizeBenchmark() {
+        String zoneId = "America/Los_Angeles";
+        TimeZone zone = TimeZone.getTimeZone(zoneId);
+        long sink = 0;
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += normalizeWithTime(TEST_DATE + i * HOUR_IN_MILLIS, zoneId);
+        }
+        long timeMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink -= EpochDays.normalize(TEST_DATE + i * HOUR_IN_MILLIS, zone);
+        }
+        long epochDaysMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.d(LOG_TAG, ITERATIONS + " normalizations: Time " + timeMillis + "ms, EpochDays " +
+                epochDaysMillis + "ms");
+        assertEquals("Error: the two normalizations disagree", 0, sink);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Builds a database with the version 2 schema, fills it, and checks that every migration
+    step up to WeatherDbHelper.DATABASE_VERSION keeps the rows and ends on the same schema a
+    fresh install gets.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    private static final String MIGRATED_DB = "weather_migration_test.db";
+    private static final String FRESH_DB = "weather_fresh_test.db";
+
+    private static final int LOCATIONS = 5;
+    private static final int DAYS = 14;
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // The schema WeatherDbHelper.onCreate produced at version 2.  Frozen: never edit these.
+    private static final String V2_CREATE_LOCATION = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL );";
+    private static final String V2_CREATE_WEATHER = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(MIGRATED_DB);
+        mContext.deleteDatabase(FRESH_DB);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(MIGRATED_DB);
+        mContext.deleteDatabase(FRESH_DB);
+        super.tearDown();
+    }
+
+    public void testMigrationsAreConsecutive() {
+        for (int i = 0; i < WeatherDbMigrations.MIGRATIONS.length; i++) {
+            assertEquals("Error: migration " + i + " starts from the wrong version",
+                    WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION + i,
+                    WeatherDbMigrations.MIGRATIONS[i].fromVersion);
+        }
+        assertTrue("Error: no migration path to DATABASE_VERSION",
+                WeatherDbMigrations.canMigrate(WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION,
+                        WeatherDbHelper.DATABASE_VERSION));
+    }
+
+    // Each step on its own, so a broken step is reported by version.
+    public void testEachStepKeepsRows() {
+        for (int target = WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION;
+             target <= WeatherDbHelper.DATABASE_VERSION; target++) {
+            mContext.deleteDatabase(MIGRATED_DB);
+            SQLiteDatabase db = createVersion2Database(mContext, MIGRATED_DB);
+            db.beginTransaction();
+            try {
+                WeatherDbMigrations.migrate(db, WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION, target);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            assertRowCounts("after migrating to version " + target, db);
+            db.close();
+        }
+    }
+
+    public void testOpenHelperUpgradesVersion2() {
+        createVersion2Database(mContext, MIGRATED_DB).close();
+
+        SQLiteDatabase migrated = new WeatherDbHelper(mContext, MIGRATED_DB).getWritableDatabase();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, migrated.getVersion());
+        assertRowCounts("after opening with WeatherDbHelper", migrated);
+        assertFalse("Error: migrated weather table still replaces on conflict",
+                DatabaseUtils.stringForQuery(migrated,
+                        "SELECT sql FROM sqlite_master WHERE name = 'weather'", null)
+                        .contains("REPLACE"));
+
+        SQLiteDatabase fresh = new WeatherDbHelper(mContext, FRESH_DB).getWritableDatabase();
+        assertEquals("Error: migrated schema differs from a fresh install",
+                describeSchema(fresh), describeSchema(migrated));
+        fresh.close();
+        migrated.close();
+    }
+
+    static SQLiteDatabase createVersion2Database(Context context, String name) {
+        SQLiteDatabase db = context.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        db.execSQL(V2_CREATE_LOCATION);
+        db.execSQL(V2_CREATE_WEATHER);
+        for (int l = 0; l < LOCATIONS; l++) {
+            ContentValues location = new ContentValues();
+            location.put("location_setting", "loc" + l);
+            location.put("city_name", "City " + l);
+            location.put("coord_lat", 64.7488);
+            location.put("coord_long", -147.353);
+            long locationId = db.insert("location", null, location);
+            for (int d = 0; d < DAYS; d++) {
+                ContentValues weather = new ContentValues();
+                weather.put("location_id", locationId);
+                weather.put("date", TEST_DATE + d * DAY_IN_MILLIS);
+                weather.put("short_desc", "Asteroids");
+                weather.put("weather_id", 321);
+                weather.put("min", 65);
+                weather.put("max", 75);
+                weather.put("humidity", 1.2);
+                weather.put("pressure", 1.3);
+                weather.put("wind", 5.5);
+                weather.put("degrees", 1.1);
+                db.insert("weather", null, weather);
+            }
+        }
+        db.setVersion(2);
+        return db;
+    }
+
+    private static void assertRowCounts(String when, SQLiteDatabase db) {
+        assertEquals("Error: location rows lost " + when, LOCATIONS,
+                DatabaseUtils.queryNumEntries(db, WeatherContract.LocationEntry.TABLE_NAME));
+        assertEquals("Error: weather rows lost " + when, LOCATIONS * DAYS,
+                DatabaseUtils.queryNumEntries(db, WeatherContract.WeatherEntry.TABLE_NAME));
+    }
+
+    // Tables with their columns and the names of the indexes on them, sorted.
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor objects = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        while (objects.moveToNext()) {
+            String type = objects.getString(0);
+            String name = objects.getString(1);
+            schema.add(type + " " + objects.getString(2) + "." + name);
+            if ("table".equals(type)) {
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ")", null);
+                while (columns.moveToNext()) {
+                    schema.add("column " + name + "." + columns.getString(1) + " " +
+                            columns.getString(2) + " notnull=" + columns.getInt(3));
+                }
+                columns.close();
+            }
+        }
+        objects.close();
+        Collections.sort(schema);
+        return schema;
+    }
+}
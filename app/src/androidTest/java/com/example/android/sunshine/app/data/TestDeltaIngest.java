@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Tests for the provider's delta ingest: a forecast ingested twice is left alone the second
+    time, changed days are updated in place under their old _ids, and new days are inserted,
+    with only the rows written notified.  The ingest is a ContentResolver.call, so needs API 11.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestDeltaIngest extends AndroidTestCase {
+
+    private static final int DAYS = 14;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationId = TestUtilities.insertNorthPoleLocation(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testSameForecastIsLeftAlone() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues[] forecast = TestUtilities.createWeatherValues(mLocationId, DAYS);
+        assertCounts(ingest(forecast), 0, 0, DAYS);
+        long[] ids = queryIds();
+
+        TestProviderWrites.CountingObserver observer = TestProviderWrites.CountingObserver
+                .register(mContext, WeatherEntry.CONTENT_URI);
+        try {
+            Bundle result = ingest(forecast);
+            assertCounts(result, DAYS, 0, 0);
+            byte[] outcomes = result.getByteArray(WeatherContract.INGEST_OUTCOMES);
+            assertEquals(DAYS, outcomes.length);
+            for (byte outcome : outcomes) {
+                assertEquals(WeatherContract.INGEST_OUTCOME_UNCHANGED, outcome);
+            }
+            assertEquals("Error: an unchanged forecast notified observers",
+                    0, observer.awaitCount(0));
+        } finally {
+            observer.unregister();
+        }
+        assertTrue("Error: unchanged rows were rewritten", Arrays.equals(ids, queryIds()));
+    }
+
+    public void testChangedDaysAreUpdatedInPlace() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ingest(TestUtilities.createWeatherValues(mLocationId, DAYS));
+        long[] ids = queryIds();
+
+        ContentValues[] forecast = TestUtilities.createWeatherValues(mLocationId, DAYS);
+        forecast[3].put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        forecast[9].put(WeatherEntry.COLUMN_SHORT_DESC, "Comets");
+        Bundle result = ingest(forecast);
+
+        assertCounts(result, DAYS - 2, 2, 0);
+        byte[] outcomes = result.getByteArray(WeatherContract.INGEST_OUTCOMES);
+        assertEquals(WeatherContract.INGEST_OUTCOME_UPDATED, outcomes[3]);
+        assertEquals(WeatherContract.INGEST_OUTCOME_UPDATED, outcomes[9]);
+        assertTrue("Error: updated rows lost their _ids", Arrays.equals(ids, queryIds()));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertTrue(cursor.moveToPosition(3));
+            assertEquals(80.0, cursor.getDouble(0));
+            assertTrue(cursor.moveToPosition(9));
+            assertEquals("Comets", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testNewDaysAreInserted() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues[] forecast = TestUtilities.createWeatherValues(mLocationId, DAYS);
+        ingest(Arrays.copyOf(forecast, DAYS - 4));
+
+        assertCounts(ingest(forecast), DAYS - 4, 0, 4);
+        assertEquals(DAYS, queryIds().length);
+    }
+
+    public void testRowsWithoutHashAreUpdated() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues[] forecast = TestUtilities.createWeatherValues(mLocationId, DAYS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        // as rows stored before the hash column was added
+        ContentValues noHash = new ContentValues();
+        noHash.putNull(WeatherEntry.COLUMN_CONTENT_HASH);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, noHash, null, null);
+
+        assertCounts(ingest(forecast), 0, DAYS, 0);
+        assertCounts(ingest(forecast), DAYS, 0, 0);
+    }
+
+    private Bundle ingest(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.INGEST_VALUES, values);
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_INGEST_WEATHER_DELTA, null, extras);
+    }
+
+    private static void assertCounts(Bundle result, int unchanged, int updated, int inserted) {
+        assertEquals("Error: unchanged", unchanged,
+                result.getInt(WeatherContract.INGEST_UNCHANGED));
+        assertEquals("Error: updated", updated, result.getInt(WeatherContract.INGEST_UPDATED));
+        assertEquals("Error: inserted", inserted,
+                result.getInt(WeatherContract.INGEST_INSERTED));
+    }
+
+    // The location's weather _ids in date order.
+    private long[] queryIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/*
+    Tests for the binary export: that it decodes to the rows a query returns, that it is
+    read-only, that a reader who stalls it doesn't hold writes back, and how fast it reads
+    100,000 weather rows against walking a query's Cursor.  Timings go to logcat under this
+    class name.
+ */
+public class TestExportStream extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestExportStream.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        mLocationId = mDb.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createLocationValues("99705", "North Pole"));
+        assertTrue("Unable to insert the test location", mLocationId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+        // the provider didn't see the locations go
+        LocationIdCache.getInstance().invalidate();
+        super.tearDown();
+    }
+
+    public void testExportType() {
+        assertEquals(WeatherContract.EXPORT_TYPE,
+                mContext.getContentResolver().getType(WeatherContract.EXPORT_URI));
+    }
+
+    public void testExportMatchesQuery() throws IOException {
+        insertWeather(30);
+        Recording exported = new Recording();
+        InputStream in = mContext.getContentResolver().openInputStream(WeatherContract.EXPORT_URI);
+        try {
+            assertEquals(31, WeatherExportStream.read(in, exported));
+        } finally {
+            in.close();
+        }
+
+        Cursor location = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING,
+                        LocationEntry.COLUMN_CITY_NAME, LocationEntry.COLUMN_COORD_LAT,
+                        LocationEntry.COLUMN_COORD_LONG}, null, null, null);
+        try {
+            assertTrue(location.moveToFirst());
+            assertEquals("Error: the location exported differently",
+                    Recording.location(location.getLong(0), location.getString(1),
+                            location.getString(2), location.getDouble(3),
+                            location.getDouble(4)),
+                    exported.rows.get(0));
+        } finally {
+            location.close();
+        }
+
+        Cursor weather = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_WEATHER_ID,
+                        WeatherEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_PRESSURE, WeatherEntry.COLUMN_WIND_SPEED,
+                        WeatherEntry.COLUMN_DEGREES}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertEquals(30, weather.getCount());
+            for (int row = 1; weather.moveToNext(); row++) {
+                assertEquals("Error: weather row " + row + " exported differently",
+                        Recording.weather(weather.getLong(0), weather.getLong(1),
+                                weather.getLong(2), weather.getInt(3), weather.getString(4),
+                                weather.getDouble(5), weather.getDouble(6), weather.getDouble(7),
+                                weather.getDouble(8), weather.getDouble(9),
+                                weather.getDouble(10)),
+                        exported.rows.get(row));
+            }
+        } finally {
+            weather.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void testTypedExport() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        insertWeather(5);
+        AssetFileDescriptor descriptor = mContext.getContentResolver()
+                .openTypedAssetFileDescriptor(WeatherContract.EXPORT_URI,
+                        WeatherContract.EXPORT_TYPE, null);
+        InputStream in = descriptor.createInputStream();
+        try {
+            assertEquals(6, WeatherExportStream.read(in, new Recording()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testExportIsReadOnly() {
+        try {
+            mContext.getContentResolver().openOutputStream(WeatherContract.EXPORT_URI);
+            fail("Error: the export was opened for writing");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    public void testStalledExportLetsWritesThrough() throws IOException {
+        if (!mDbHelper.isWriteAheadLogging()) {
+            // without WAL any reader's snapshot holds commits back
+            return;
+        }
+        int days = 20000;
+        insertWeather(days);
+        InputStream in = new BufferedInputStream(
+                mContext.getContentResolver().openInputStream(WeatherContract.EXPORT_URI));
+        try {
+            // the first byte comes once the export has its snapshot; far more than the pipe
+            // holds is left, so the export now waits on us
+            in.mark(1);
+            assertTrue(in.read() != -1);
+            in.reset();
+
+            ContentValues later = TestUtilities.createWeatherValues(mLocationId);
+            later.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + days * DAY_IN_MILLIS);
+            assertTrue("Error: a write failed while the export was stalled",
+                    mDb.insert(WeatherEntry.TABLE_NAME, null, later) != -1);
+
+            assertEquals("Error: the export saw a row written after it began", days + 1,
+                    WeatherExportStream.read(in, new Counting()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testUnknownRecordsAreSkipped() throws IOException {
+        insertWeather(3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WeatherExportStream.write(mDb, out);
+        byte[] export = out.toByteArray();
+
+        // a record of a kind this reader doesn't know, right after the header
+        byte[] unknown = {9, 0, 0, 0, 3, 1, 2, 3};
+        byte[] extended = new byte[export.length + unknown.length];
+        System.arraycopy(export, 0, extended, 0, 5);
+        System.arraycopy(unknown, 0, extended, 5, unknown.length);
+        System.arraycopy(export, 5, extended, 5 + unknown.length, export.length - 5);
+        assertEquals(4, WeatherExportStream.read(new ByteArrayInputStream(extended),
+                new Recording()));
+
+        try {
+            WeatherExportStream.read(new ByteArrayInputStream(
+                    Arrays.copyOf(export, export.length - 5)), new Recording());
+            fail("Error: an export without its end was read to the end");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testThroughput100k() throws IOException {
+        int days = 100000;
+        insertWeather(days);
+
+        long start = SystemClock.elapsedRealtime();
+        int cursorRows = walkQuery();
+        long cursorMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        Counting counting = new Counting();
+        InputStream in = mContext.getContentResolver().openInputStream(WeatherContract.EXPORT_URI);
+        int exportRows;
+        try {
+            exportRows = WeatherExportStream.read(in, counting);
+        } finally {
+            in.close();
+        }
+        long exportMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(days + 1, cursorRows);
+        assertEquals(days + 1, exportRows);
+        assertEquals(counting.mDates, cursorDates());
+        Log.d(LOG_TAG, days + " weather rows: Cursor " + cursorMillis + " ms (" +
+                rate(cursorRows, cursorMillis) + " rows/s), export " + exportMillis + " ms (" +
+                rate(exportRows, exportMillis) + " rows/s)");
+    }
+
+    // What the exporters did before: query both tables and read every column of every row.
+    private int walkQuery() {
+        int rows = 0;
+        Cursor location = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING,
+                        LocationEntry.COLUMN_CITY_NAME, LocationEntry.COLUMN_COORD_LAT,
+                        LocationEntry.COLUMN_COORD_LONG}, null, null, null);
+        try {
+            while (location.moveToNext()) {
+                location.getLong(0);
+                location.getString(1);
+                location.getString(2);
+                location.getDouble(3);
+                location.getDouble(4);
+                rows++;
+            }
+        } finally {
+            location.close();
+        }
+        Cursor weather = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        try {
+            int id = weather.getColumnIndex(WeatherEntry._ID);
+            int locationId = weather.getColumnIndex(WeatherEntry.COLUMN_LOC_KEY);
+            int date = weather.getColumnIndex(WeatherEntry.COLUMN_DATE);
+            int weatherId = weather.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID);
+            int description = weather.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC);
+            int[] doubles = {
+                    weather.getColumnIndex(WeatherEntry.COLUMN_MIN_TEMP),
+                    weather.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP),
+                    weather.getColumnIndex(WeatherEntry.COLUMN_HUMIDITY),
+                    weather.getColumnIndex(WeatherEntry.COLUMN_PRESSURE),
+                    weather.getColumnIndex(WeatherEntry.COLUMN_WIND_SPEED),
+                    weather.getColumnIndex(WeatherEntry.COLUMN_DEGREES)
+            };
+            while (weather.moveToNext()) {
+                weather.getLong(id);
+                weather.getLong(locationId);
+                weather.getLong(date);
+                weather.getInt(weatherId);
+                weather.getString(description);
+                for (int column : doubles) {
+                    weather.getDouble(column);
+                }
+                rows++;
+            }
+        } finally {
+            weather.close();
+        }
+        return rows;
+    }
+
+    private long cursorDates() {
+        Cursor cursor = mDb.rawQuery("SELECT SUM(" + WeatherEntry.COLUMN_DATE + " / " +
+                DAY_IN_MILLIS + ") FROM " + WeatherEntry.TABLE_NAME, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long rate(int rows, long millis) {
+        return millis == 0 ? rows * 1000L : rows * 1000L / millis;
+    }
+
+    private void insertWeather(int days) {
+        ForecastBatch batch = TestUtilities.createBatch(mLocationId, days);
+        mDb.beginTransaction();
+        try {
+            WeatherProvider.ingestWeatherBatch(mDb, batch, TimeZone.getDefault(), null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Keeps every row as a line of text, to compare with what a query returns.
+    private static final class Recording implements WeatherExportStream.Listener {
+        final List<String> rows = new ArrayList<String>();
+
+        @Override
+        public void onLocation(long id, String locationSetting, String cityName,
+                               double latitude, double longitude) {
+            rows.add(location(id, locationSetting, cityName, latitude, longitude));
+        }
+
+        @Override
+        public void onWeather(long id, long locationId, long date, int weatherId,
+                              String description, double minTemp, double maxTemp,
+                              double humidity, double pressure, double windSpeed,
+                              double degrees) {
+            rows.add(weather(id, locationId, date, weatherId, description, minTemp, maxTemp,
+                    humidity, pressure, windSpeed, degrees));
+        }
+
+        static String location(long id, String locationSetting, String cityName,
+                               double latitude, double longitude) {
+            return "location " + id + ' ' + locationSetting + ' ' + cityName + ' ' + latitude +
+                    ' ' + longitude;
+        }
+
+        static String weather(long id, long locationId, long date, int weatherId,
+                              String description, double minTemp, double maxTemp,
+                              double humidity, double pressure, double windSpeed,
+                              double degrees) {
+            return "weather " + id + ' ' + locationId + ' ' + date + ' ' + weatherId + ' ' +
+                    description + ' ' + minTemp + ' ' + maxTemp + ' ' + humidity + ' ' +
+                    pressure + ' ' + windSpeed + ' ' + degrees;
+        }
+    }
+
+    // Keeps nothing but a sum of the days, so the benchmark times the decoding alone.
+    private static final class Counting implements WeatherExportStream.Listener {
+        long mDates;
+
+        @Override
+        public void onLocation(long id, String locationSetting, String cityName,
+                               double latitude, double longitude) {
+        }
+
+        @Override
+        public void onWeather(long id, long locationId, long date, int weatherId,
+                              String description, double minTemp, double maxTemp,
+                              double humidity, double pressure, double windSpeed,
+                              double degrees) {
+            mDates += date / DAY_IN_MILLIS;
+        }
+    }
+}
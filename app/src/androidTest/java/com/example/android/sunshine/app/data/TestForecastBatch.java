@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/*
+    Checks that a ForecastBatch ingests to the same rows as the ContentValues it replaces, and
+    logs what each path allocates building and ingesting a 14 day forecast and a 10,000 day
+    batch.  Allocation counts go to logcat under this class name.
+ */
+public class TestForecastBatch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastBatch.class.getSimpleName();
+
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        mLocationId = mDb.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createLocationValues("99705", "North Pole"));
+        assertTrue("Unable to insert the test location", mLocationId != -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        mDbHelper.close();
+        // the provider didn't see the locations go
+        LocationIdCache.getInstance().invalidate();
+        super.tearDown();
+    }
+
+    public void testInternsDescriptions() {
+        ForecastBatch batch = TestUtilities.createBatch(mLocationId, 100);
+        assertEquals(100, batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            // the same String for every row with the description, not an equal one
+            assertSame(TestUtilities.DESCRIPTIONS[row % TestUtilities.DESCRIPTIONS.length],
+                    batch.getDescription(row));
+        }
+        batch.clear();
+        assertEquals(0, batch.size());
+    }
+
+    public void testParcelRoundTrip() {
+        ForecastBatch batch = TestUtilities.createBatch(mLocationId, 40);
+        Parcel parcel = Parcel.obtain();
+        ForecastBatch copy;
+        try {
+            batch.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            copy = ForecastBatch.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+        assertEquals(batch.size(), copy.size());
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(batch.getLocationId(row), copy.getLocationId(row));
+            assertEquals(batch.getDate(row), copy.getDate(row));
+            assertEquals(batch.getDescription(row), copy.getDescription(row));
+            assertEquals(batch.contentHash(row), copy.contentHash(row));
+        }
+    }
+
+    public void testBatchStoresWhatContentValuesStore() {
+        int days = 30;
+        ingest(TestUtilities.createWeatherValues(mLocationId, days));
+        String[][] delta = queryRows();
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        byte[] outcomes = ingest(TestUtilities.createBatch(mLocationId, days));
+        for (byte outcome : outcomes) {
+            assertEquals(WeatherContract.INGEST_OUTCOME_INSERTED, outcome);
+        }
+        String[][] batch = queryRows();
+        assertEquals(days, batch.length);
+        for (int i = 0; i < days; i++) {
+            assertTrue("Error: row " + i + " stored differently from a batch: " +
+                    Arrays.toString(batch[i]) + " vs " + Arrays.toString(delta[i]),
+                    Arrays.equals(delta[i], batch[i]));
+        }
+
+        // and a second ingest of the same days leaves them alone
+        for (byte outcome : ingest(TestUtilities.createBatch(mLocationId, days))) {
+            assertEquals(WeatherContract.INGEST_OUTCOME_UNCHANGED, outcome);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void testIngestThroughProvider() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelable(WeatherContract.INGEST_BATCH,
+                TestUtilities.createBatch(mLocationId, 14));
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_INGEST_WEATHER_BATCH, null, extras);
+        assertEquals(14, result.getInt(WeatherContract.INGEST_INSERTED));
+
+        result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_INGEST_WEATHER_BATCH, null, extras);
+        assertEquals(14, result.getInt(WeatherContract.INGEST_UNCHANGED));
+        assertEquals(14, result.getByteArray(WeatherContract.INGEST_OUTCOMES).length);
+    }
+
+    public void testAllocations14() {
+        compareAllocations(14);
+    }
+
+    public void testAllocations10k() {
+        compareAllocations(10000);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void compareAllocations(int days) {
+        // warm up both paths so class loading isn't counted
+        ingest(TestUtilities.createWeatherValues(mLocationId, days));
+        ingest(TestUtilities.createBatch(mLocationId, days));
+
+        Debug.startAllocCounting();
+        try {
+            mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            ingest(TestUtilities.createWeatherValues(mLocationId, days));
+            int valuesCount = Debug.getThreadAllocCount();
+            int valuesBytes = Debug.getThreadAllocSize();
+
+            mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            ingest(TestUtilities.createBatch(mLocationId, days));
+            int batchCount = Debug.getThreadAllocCount();
+            int batchBytes = Debug.getThreadAllocSize();
+
+            Log.d(LOG_TAG, "Per " + days + " day ingest: ContentValues " + valuesCount +
+                    " objects / " + valuesBytes + " bytes, ForecastBatch " + batchCount +
+                    " objects / " + batchBytes + " bytes");
+            if (valuesCount == 0) {
+                Log.d(LOG_TAG, "Allocation counting unavailable, nothing to compare");
+                return;
+            }
+            assertTrue("Error: the batch allocated more objects than ContentValues",
+                    batchCount < valuesCount);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private byte[] ingest(ContentValues[] values) {
+        mDb.beginTransaction();
+        try {
+            byte[] outcomes = WeatherProvider.ingestWeatherDelta(mDb, values,
+                    TimeZone.getDefault(), null);
+            mDb.setTransactionSuccessful();
+            return outcomes;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private byte[] ingest(ForecastBatch batch) {
+        mDb.beginTransaction();
+        try {
+            byte[] outcomes = WeatherProvider.ingestWeatherBatch(mDb, batch,
+                    TimeZone.getDefault(), null);
+            mDb.setTransactionSuccessful();
+            return outcomes;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Every stored weather column but _id, hash included, of each row in date order.
+    private String[][] queryRows() {
+        return TestUtilities.readRows(mDb.query(WeatherEntry.TABLE_NAME, null, null, null, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC"));
+    }
+}
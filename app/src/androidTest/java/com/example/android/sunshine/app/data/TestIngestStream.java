@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    Tests for the binary weather stream: that rows come off it as they went on, that broken
+    or foreign streams are refused, and that a streamed ingest stores what a bulkInsert of the
+    same rows does -- or nothing at all.  Ingest timings for both go to logcat under this class
+    name.  The provider side is a ContentResolver.call, so needs API 11.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestIngestStream extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestIngestStream.class.getSimpleName();
+
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationId = TestUtilities.insertNorthPoleLocation(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testRowsReadBackAsWritten() throws IOException {
+        ForecastBatch written = TestUtilities.createBatch(mLocationId, 40);
+        WeatherIngestStream.Reader reader =
+                new WeatherIngestStream.Reader(new ByteArrayInputStream(encode(written, true)));
+        ForecastBatch read = new ForecastBatch();
+        // a few rows at a time, as the provider reads them
+        int chunks = 0;
+        while (reader.read(read, 7) > 0) {
+            chunks++;
+        }
+        assertEquals(6, chunks);
+        assertEquals(0, reader.read(read, 7));
+        assertEquals(written.size(), read.size());
+        for (int row = 0; row < written.size(); row++) {
+            assertEquals(written.getLocationId(row), read.getLocationId(row));
+            assertEquals(written.getDate(row), read.getDate(row));
+            assertEquals(written.getDescription(row), read.getDescription(row));
+            assertEquals(written.contentHash(row), read.contentHash(row));
+        }
+        assertEquals(TestUtilities.TEST_DATE, reader.getFirstDate());
+    }
+
+    public void testOtherVersionIsRefused() throws IOException {
+        byte[] stream = encode(TestUtilities.createBatch(mLocationId, 1), true);
+        // the version follows the four byte magic
+        stream[4] = (byte) (WeatherIngestStream.VERSION + 1);
+        try {
+            new WeatherIngestStream.Reader(new ByteArrayInputStream(stream));
+            fail("Error: a stream of another version was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testBrokenOffStreamFails() throws IOException {
+        byte[] stream = encode(TestUtilities.createBatch(mLocationId, 3), false);
+        WeatherIngestStream.Reader reader =
+                new WeatherIngestStream.Reader(new ByteArrayInputStream(stream));
+        try {
+            reader.read(new ForecastBatch(), 100);
+            fail("Error: a stream without its end was read to the end");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testStreamStoresWhatBulkInsertStores() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        int days = 600;
+        final ForecastBatch batch = TestUtilities.createBatch(mLocationId, days);
+        assertEquals(days, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                batch.toContentValues()));
+        String[][] inserted = queryRows();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        WeatherIngestStream.Source source = new WeatherIngestStream.Source() {
+            @Override
+            public void writeTo(WeatherIngestStream.Writer writer) throws IOException {
+                writer.write(batch);
+            }
+        };
+        assertEquals(days, WeatherIngestStream.ingest(mContext.getContentResolver(), source));
+        String[][] streamed = queryRows();
+        assertEquals(days, streamed.length);
+        for (int i = 0; i < days; i++) {
+            assertTrue("Error: row " + i + " streamed differently: " +
+                    Arrays.toString(streamed[i]) + " vs " + Arrays.toString(inserted[i]),
+                    Arrays.equals(inserted[i], streamed[i]));
+        }
+
+        // as with bulkInsert, the same rows again are updated in place and counted
+        long[] ids = queryIds();
+        assertEquals(days, WeatherIngestStream.ingest(mContext.getContentResolver(), source));
+        assertTrue("Error: streamed rows lost their _ids", Arrays.equals(ids, queryIds()));
+    }
+
+    public void testFailedSourceStoresNothing() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final ForecastBatch batch = TestUtilities.createBatch(mLocationId, 1000);
+        try {
+            WeatherIngestStream.ingest(mContext.getContentResolver(),
+                    new WeatherIngestStream.Source() {
+                        @Override
+                        public void writeTo(WeatherIngestStream.Writer writer)
+                                throws IOException {
+                            writer.write(batch);
+                            throw new IOException("Source failed");
+                        }
+                    });
+            fail("Error: a failed source's ingest succeeded");
+        } catch (IOException expected) {
+        }
+        assertEquals("Error: part of a failed stream was stored", 0, queryIds().length);
+    }
+
+    public void testIngest10k() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        int days = 10000;
+        final ForecastBatch batch = TestUtilities.createBatch(mLocationId, days);
+
+        long start = SystemClock.elapsedRealtime();
+        ContentValues[] values = batch.toContentValues();
+        assertEquals(days, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+        long bulkInsertMillis = SystemClock.elapsedRealtime() - start;
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(days, WeatherIngestStream.ingest(mContext.getContentResolver(),
+                new WeatherIngestStream.Source() {
+                    @Override
+                    public void writeTo(WeatherIngestStream.Writer writer) throws IOException {
+                        writer.write(batch);
+                    }
+                }));
+        long streamMillis = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, days + " rows: bulkInsert " + bulkInsertMillis + " ms, stream " +
+                streamMillis + " ms");
+    }
+
+    private static byte[] encode(ForecastBatch batch, boolean finish) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WeatherIngestStream.Writer writer = new WeatherIngestStream.Writer(out);
+        writer.write(batch);
+        if (finish) {
+            writer.finish();
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    // Every stored weather column but _id, of each row in date order.
+    private String[][] queryRows() {
+        return TestUtilities.readRows(mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, WeatherEntry.COLUMN_DATE + " ASC"));
+    }
+
+    // The location's weather _ids in date order.
+    private long[] queryIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Tests for the weather_by_location/<location _id> routes: weather-only rows, the location
+    row in the cursor extras, change notifications on the id URIs, and that they leave every
+    weather/<setting> URI to its location, even a setting of "loc".
+ */
+public class TestLocationIdRoutes extends AndroidTestCase {
+
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    private static final int DAYS = 14;
+
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP
+    };
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationId = TestUtilities.insertNorthPoleLocation(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mLocationId, DAYS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testGetType() {
+        assertEquals(WeatherEntry.CONTENT_TYPE, mContext.getContentResolver()
+                .getType(WeatherEntry.buildWeatherLocationId(mLocationId)));
+        assertEquals(WeatherEntry.CONTENT_ITEM_TYPE, mContext.getContentResolver()
+                .getType(WeatherEntry.buildWeatherLocationIdWithDate(mLocationId, TEST_DATE)));
+    }
+
+    public void testLocationIdQueriesMatchSettingQueries() {
+        assertSameRows(WeatherEntry.buildWeatherLocation("99705"),
+                WeatherEntry.buildWeatherLocationId(mLocationId), DAYS);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithStartDate("99705", TEST_DATE + 1),
+                WeatherEntry.buildWeatherLocationIdWithStartDate(mLocationId, TEST_DATE + 1),
+                DAYS);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithDate("99705", TEST_DATE),
+                WeatherEntry.buildWeatherLocationIdWithDate(mLocationId, TEST_DATE), 1);
+    }
+
+    public void testLocationComesOncePerCursor() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationId(mLocationId), null, null, null, null);
+        assertEquals("Error: location columns leaked into the weather rows",
+                -1, cursor.getColumnIndex(LocationEntry.COLUMN_COORD_LAT));
+
+        Bundle location = cursor.getExtras();
+        assertEquals(mLocationId, location.getLong(LocationEntry._ID));
+        assertEquals("99705", location.getString(LocationEntry.COLUMN_LOCATION_SETTING));
+        assertEquals("North Pole", location.getString(LocationEntry.COLUMN_CITY_NAME));
+        assertEquals(64.7488, location.getDouble(LocationEntry.COLUMN_COORD_LAT));
+        assertEquals(-147.353, location.getDouble(LocationEntry.COLUMN_COORD_LONG));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationId(mLocationId + 1000), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        assertTrue("Error: extras for a location that doesn't exist",
+                cursor.getExtras().isEmpty());
+        cursor.close();
+    }
+
+    public void testSettingNamedLocIsALocation() {
+        Uri locUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createLocationValues("loc", "Loc"));
+        long locId = Long.parseLong(locUri.getLastPathSegment());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(locId, DAYS));
+
+        assertSameRows(WeatherEntry.buildWeatherLocation("loc"),
+                WeatherEntry.buildWeatherLocationId(locId), DAYS);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithDate("loc", TEST_DATE),
+                WeatherEntry.buildWeatherLocationIdWithDate(locId, TEST_DATE), 1);
+    }
+
+    public void testWeatherWritesNotifyLocationIdUri() throws Exception {
+        // let the notifications from setUp go out first
+        SystemClock.sleep(2 * mContext.getResources()
+                .getInteger(R.integer.provider_notify_debounce_millis));
+        TestProviderWrites.CountingObserver observer = TestProviderWrites.CountingObserver
+                .register(mContext, WeatherEntry.buildWeatherLocationId(mLocationId));
+        TestProviderWrites.CountingObserver other = TestProviderWrites.CountingObserver
+                .register(mContext, WeatherEntry.buildWeatherLocationId(mLocationId + 1000));
+        try {
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    TestUtilities.createWeatherValues(mLocationId, DAYS));
+            assertEquals("Error: the location's id URI should be notified once",
+                    1, observer.awaitCount(1));
+            assertEquals("Error: another location's id URI should not be notified",
+                    0, other.awaitCount(0));
+        } finally {
+            observer.unregister();
+            other.unregister();
+        }
+    }
+
+    private void assertSameRows(Uri bySetting, Uri byId, int expectedRows) {
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        Cursor expected = mContext.getContentResolver().query(bySetting, WEATHER_COLUMNS,
+                null, null, sortOrder);
+        Cursor actual = mContext.getContentResolver().query(byId, WEATHER_COLUMNS,
+                null, null, sortOrder);
+        assertEquals("Error: wrong row count for " + byId, expectedRows, actual.getCount());
+        assertEquals("Error: " + byId + " disagrees with " + bySetting,
+                expected.getCount(), actual.getCount());
+        while (expected.moveToNext()) {
+            assertTrue(actual.moveToNext());
+            for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+                assertEquals("Error: " + WEATHER_COLUMNS[i] + " differs for " + byId,
+                        expected.getString(i), actual.getString(i));
+            }
+        }
+        expected.close();
+        actual.close();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Tests for the provider's single-row lookups: each returns what the equivalent query() does,
+    with every real exactly as stored, and null where the query has no row.  Latencies of both
+    go to logcat under this class name.  The lookups are ContentResolver.call methods, so need
+    API 11.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestLookups extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLookups.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int DAYS = 14;
+    // a few of the days before today, which the today summary must pass over
+    private static final int PAST_DAYS = 2;
+    private static final int ITERATIONS = 1000;
+
+    private ContentResolver mResolver;
+    private long mLocationId;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationId = TestUtilities.insertNorthPoleLocation(mContext);
+
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ForecastBatch batch = new ForecastBatch(DAYS);
+        String[] descriptions = TestUtilities.DESCRIPTIONS;
+        for (int i = 0; i < DAYS; i++) {
+            batch.add(mLocationId, mToday + (i - PAST_DAYS) * DAY_IN_MILLIS, 800 + i % 4,
+                    descriptions[i % descriptions.length], 65.0 - i % 10, 75.5 + i % 10,
+                    humidity(i), 1013.5 - i, 5.5 + i, 270.0);
+        }
+        assertEquals(DAYS, mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                batch.toContentValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    // 0.1 * 3 is 0.30000000000000004: more digits than SQLite prints a real with
+    private static double humidity(int day) {
+        return 0.1 * (day + 1);
+    }
+
+    private static boolean hasCall() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    public void testDayMatchesQuery() {
+        if (!hasCall()) {
+            return;
+        }
+        for (int i = 0; i < DAYS; i++) {
+            long date = mToday + (i - PAST_DAYS) * DAY_IN_MILLIS;
+            Uri bySetting = WeatherEntry.buildWeatherLocationWithDate("99705", date);
+            Uri byLocationId = WeatherEntry.buildWeatherLocationIdWithDate(mLocationId, date);
+
+            Bundle expected = WeatherLookups.queryDay(mResolver, bySetting);
+            assertNotNull("Error: no row for day " + i, expected);
+            assertEquals("Error: the humidity isn't the one stored", humidity(i),
+                    WeatherLookups.getDay(mResolver, bySetting).get(WeatherEntry.COLUMN_HUMIDITY));
+            assertBundlesEqual(expected, WeatherLookups.getDay(mResolver, bySetting));
+            assertBundlesEqual(expected, WeatherLookups.getDay(mResolver, byLocationId));
+        }
+    }
+
+    public void testTodaySummaryMatchesQuery() {
+        if (!hasCall()) {
+            return;
+        }
+        Bundle summary = WeatherLookups.getTodaySummary(mResolver, "99705");
+        assertEquals("Error: the summary isn't today's", mToday,
+                summary.getLong(WeatherEntry.COLUMN_DATE));
+        assertBundlesEqual(WeatherLookups.queryTodaySummary(mResolver, "99705"), summary);
+    }
+
+    public void testLocationMetaMatchesQuery() {
+        if (!hasCall()) {
+            return;
+        }
+        Bundle location = WeatherLookups.getLocationMeta(mResolver, "99705");
+        assertEquals(mLocationId, location.getLong(LocationEntry._ID));
+        assertEquals("North Pole", location.getString(LocationEntry.COLUMN_CITY_NAME));
+        assertBundlesEqual(WeatherLookups.queryLocationMeta(mResolver, "99705"), location);
+    }
+
+    public void testMissingRowsAreNull() {
+        if (!hasCall()) {
+            return;
+        }
+        long future = mToday + DAYS * DAY_IN_MILLIS;
+        assertNull(WeatherLookups.getDay(mResolver,
+                WeatherEntry.buildWeatherLocationWithDate("99705", future)));
+        assertNull(WeatherLookups.getDay(mResolver,
+                WeatherEntry.buildWeatherLocationIdWithDate(mLocationId + 1, mToday)));
+        assertNull(WeatherLookups.getTodaySummary(mResolver, "94043"));
+        assertNull(WeatherLookups.getLocationMeta(mResolver, "94043"));
+    }
+
+    public void testGetDayRefusesOtherUris() {
+        if (!hasCall()) {
+            return;
+        }
+        try {
+            WeatherLookups.getDay(mResolver, WeatherEntry.buildWeatherLocation("99705"));
+            fail("Error: getDay looked up a location's whole forecast");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testLatency() {
+        if (!hasCall()) {
+            return;
+        }
+        final Uri day = WeatherEntry.buildWeatherLocationWithDate("99705", mToday);
+        logLatency("day", new Lookup() {
+            @Override
+            public Bundle call() {
+                return WeatherLookups.getDay(mResolver, day);
+            }
+
+            @Override
+            public Bundle query() {
+                return WeatherLookups.queryDay(mResolver, day);
+            }
+        });
+        logLatency("today summary", new Lookup() {
+            @Override
+            public Bundle call() {
+                return WeatherLookups.getTodaySummary(mResolver, "99705");
+            }
+
+            @Override
+            public Bundle query() {
+                return WeatherLookups.queryTodaySummary(mResolver, "99705");
+            }
+        });
+        logLatency("location meta", new Lookup() {
+            @Override
+            public Bundle call() {
+                return WeatherLookups.getLocationMeta(mResolver, "99705");
+            }
+
+            @Override
+            public Bundle query() {
+                return WeatherLookups.queryLocationMeta(mResolver, "99705");
+            }
+        });
+    }
+
+    // A lookup, both ways.
+    private interface Lookup {
+        Bundle call();
+
+        Bundle query();
+    }
+
+    private static void logLatency(String name, Lookup lookup) {
+        // warm up both: compile the statements, fill the query cache
+        assertNotNull(lookup.call());
+        assertNotNull(lookup.query());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            lookup.call();
+        }
+        long callMicros = (System.nanoTime() - start) / 1000 / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            lookup.query();
+        }
+        long queryMicros = (System.nanoTime() - start) / 1000 / ITERATIONS;
+        Log.d(LOG_TAG, name + ": call " + callMicros + " us, query " + queryMicros + " us, " +
+                "mean of " + ITERATIONS);
+    }
+
+    private static void assertBundlesEqual(Bundle expected, Bundle actual) {
+        assertNotNull(actual);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals("Error: " + key + " differs", expected.get(key), actual.get(key));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Tests for the batched write paths of the provider: applyBatch, the location bulkInsert and
+    the per-location change notifications.
+ */
+public class TestProviderWrites extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testLocationBulkInsertUpserts() {
+        ContentValues[] locations = new ContentValues[200];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = TestUtilities.createLocationValues("loc" + i, "City " + i);
+        }
+        assertEquals("Error: wrong location bulkInsert count", locations.length,
+                mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, locations));
+        long firstId = queryLocationId("loc0");
+
+        // a second pass renames the cities but must keep every _id
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = TestUtilities.createLocationValues("loc" + i, "Renamed " + i);
+        }
+        assertEquals("Error: wrong location bulkInsert count on refresh", locations.length,
+                mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, locations));
+        assertEquals("Error: refreshing a location changed its _id", firstId, queryLocationId("loc0"));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"loc7"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: city name was not refreshed", "Renamed 7", cursor.getString(0));
+        assertEquals("Error: duplicate location rows", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testLocationBulkInsertRejectsIncompleteRows() {
+        ContentValues noCity = TestUtilities.createLocationValues("94043", "Mountain View");
+        noCity.remove(LocationEntry.COLUMN_CITY_NAME);
+        ContentValues[] locations = {
+                TestUtilities.createLocationValues("99705", "North Pole"), noCity};
+        assertEquals("Error: a row missing its city name was counted", 1,
+                mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, locations));
+
+        // nor does it count as refreshing a row that's there
+        mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                new ContentValues[]{TestUtilities.createLocationValues("94043", "Mountain View")});
+        assertEquals(0, mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                new ContentValues[]{noCity}));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"94043"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Mountain View", cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testApplyBatchNotifiesOncePerUri() throws Exception {
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createLocationValues("99705", "North Pole"));
+        long locationId = queryLocationId("99705");
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createLocationValues("94043", "Mountain View")).build());
+        for (ContentValues weather : TestUtilities.createWeatherValues(locationId, 14)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weather).build());
+        }
+
+        CountingObserver weatherObserver = CountingObserver.register(mContext, WeatherEntry.CONTENT_URI);
+        CountingObserver locationObserver = CountingObserver.register(mContext, LocationEntry.CONTENT_URI);
+        try {
+            assertEquals(15, mContext.getContentResolver()
+                    .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations).length);
+            assertEquals("Error: weather observer should hear the batch once",
+                    1, weatherObserver.awaitCount(1));
+            assertEquals("Error: location observer should hear the batch once",
+                    1, locationObserver.awaitCount(1));
+        } finally {
+            weatherObserver.unregister();
+            locationObserver.unregister();
+        }
+    }
+
+    public void testWeatherNotificationsAreScopedToLocation() throws Exception {
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createLocationValues("99705", "North Pole"));
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createLocationValues("94043", "Mountain View"));
+        long northPoleId = queryLocationId("99705");
+
+        CountingObserver northPole = CountingObserver.register(mContext,
+                WeatherEntry.buildWeatherLocation("99705"));
+        CountingObserver mountainView = CountingObserver.register(mContext,
+                WeatherEntry.buildWeatherLocation("94043"));
+        try {
+            // two back-to-back syncs of the same location inside the debounce window
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    TestUtilities.createWeatherValues(northPoleId, 14));
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    TestUtilities.createWeatherValues(northPoleId, 14));
+            assertEquals("Error: the synced location should be notified once",
+                    1, northPole.awaitCount(1));
+            assertEquals("Error: an unrelated location should not be notified",
+                    0, mountainView.awaitCount(0));
+        } finally {
+            northPole.unregister();
+            mountainView.unregister();
+        }
+    }
+
+    private long queryLocationId(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{locationSetting}, null);
+        assertTrue("Error: no location row for " + locationSetting, cursor.moveToFirst());
+        long id = cursor.getLong(0);
+        cursor.close();
+        return id;
+    }
+
+    /*
+        Counts onChange callbacks delivered for a URI.  awaitCount waits for at least the
+        expected number and then a little longer, so a surplus notification is caught too.
+     */
+    static class CountingObserver extends ContentObserver {
+        private static final long TIMEOUT_MILLIS = 2000;
+        private static final long SETTLE_MILLIS = 300;
+
+        private final android.content.Context mContext;
+        private final HandlerThread mThread;
+        private int mCount;
+
+        private CountingObserver(android.content.Context context, HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mContext = context;
+            mThread = thread;
+        }
+
+        static CountingObserver register(android.content.Context context, Uri uri) {
+            HandlerThread thread = new HandlerThread("CountingObserver");
+            thread.start();
+            CountingObserver observer = new CountingObserver(context, thread);
+            context.getContentResolver().registerContentObserver(uri, true, observer);
+            return observer;
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange) {
+            mCount++;
+            notifyAll();
+        }
+
+        synchronized int awaitCount(int expected) throws InterruptedException {
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            long remaining = TIMEOUT_MILLIS;
+            while (mCount < expected && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+            wait(SETTLE_MILLIS);
+            return mCount;
+        }
+
+        void unregister() {
+            mContext.getContentResolver().unregisterContentObserver(this);
+            mThread.quit();
+        }
+    }
+}
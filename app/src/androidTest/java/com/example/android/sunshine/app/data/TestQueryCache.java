@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Tests for the provider's query cache: hits return the same rows as the database, and each
+    kind of write drops exactly the entries it could have changed.  The cache needs API 11.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestQueryCache extends AndroidTestCase {
+
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int DAYS = 14;
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private long mNorthPoleId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mNorthPoleId = TestUtilities.insertNorthPoleLocation(mContext);
+        long mountainViewId = insertLocation("94043", "Mountain View");
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mNorthPoleId, DAYS));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mountainViewId, DAYS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private boolean cacheEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                getStats().getInt(WeatherContract.QUERY_CACHE_MAX_BYTES) > 0;
+    }
+
+    public void testHitMatchesDatabase() {
+        if (!cacheEnabled()) {
+            return;
+        }
+        Uri uri = WeatherEntry.buildWeatherLocationId(mNorthPoleId);
+        int hits = getStats().getInt(WeatherContract.QUERY_CACHE_HITS);
+
+        Cursor miss = query(uri);
+        Cursor hit = query(uri);
+        assertEquals("Error: repeated query wasn't served from the cache",
+                hits + 1, getStats().getInt(WeatherContract.QUERY_CACHE_HITS));
+
+        assertEquals(DAYS, hit.getCount());
+        assertEquals(miss.getColumnCount(), hit.getColumnCount());
+        while (miss.moveToNext()) {
+            assertTrue(hit.moveToNext());
+            for (int c = 0; c < miss.getColumnCount(); c++) {
+                assertEquals("Error: type differs in column " + miss.getColumnName(c),
+                        miss.getType(c), hit.getType(c));
+                assertEquals("Error: value differs in column " + miss.getColumnName(c),
+                        miss.getString(c), hit.getString(c));
+            }
+        }
+        assertEquals("Error: cached cursor lost the location extras", "99705",
+                hit.getExtras().getString(LocationEntry.COLUMN_LOCATION_SETTING));
+        miss.close();
+        hit.close();
+    }
+
+    public void testWeatherWriteInvalidatesOnlyItsLocation() {
+        if (!cacheEnabled()) {
+            return;
+        }
+        Uri northPole = WeatherEntry.buildWeatherLocation("99705");
+        Uri mountainView = WeatherEntry.buildWeatherLocation("94043");
+        query(northPole).close();
+        query(mountainView).close();
+
+        ContentValues weather = TestUtilities.createWeatherValues(mNorthPoleId, 1)[0];
+        weather.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weather);
+
+        assertCached("Error: unrelated location was invalidated", true, mountainView);
+        Cursor cursor = query(northPole);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: stale row served after a write", "Meteors",
+                cursor.getString(cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+        cursor.close();
+    }
+
+    public void testWeatherWriteInvalidatesOnlyCoveredDates() {
+        if (!cacheEnabled()) {
+            return;
+        }
+        Uri firstDay = WeatherEntry.buildWeatherLocationWithDate("99705", TEST_DATE);
+        Uri lastDay = WeatherEntry.buildWeatherLocationWithDate("99705",
+                TEST_DATE + (DAYS - 1) * DAY_IN_MILLIS);
+        Uri fromLastDay = WeatherEntry.buildWeatherLocationWithStartDate("99705",
+                TEST_DATE + (DAYS - 1) * DAY_IN_MILLIS);
+        query(firstDay).close();
+        query(lastDay).close();
+        query(fromLastDay).close();
+
+        // rewrite the first day only
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mNorthPoleId, 1)[0]);
+
+        assertCached("Error: untouched day was invalidated", true, lastDay);
+        assertCached("Error: range after the written day was invalidated", true, fromLastDay);
+        assertCached("Error: written day is still cached", false, firstDay);
+    }
+
+    public void testLocationWriteInvalidatesEverything() {
+        if (!cacheEnabled()) {
+            return;
+        }
+        Uri northPole = WeatherEntry.buildWeatherLocationId(mNorthPoleId);
+        query(northPole).close();
+
+        ContentValues location = TestUtilities.createLocationValues("99705", "Santa's Workshop");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, location,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mNorthPoleId)});
+
+        Cursor cursor = query(northPole);
+        assertEquals("Error: stale location extras served after a location write",
+                "Santa's Workshop", cursor.getExtras().getString(LocationEntry.COLUMN_CITY_NAME));
+        cursor.close();
+    }
+
+    private void assertCached(String message, boolean expected, Uri uri) {
+        int hits = getStats().getInt(WeatherContract.QUERY_CACHE_HITS);
+        query(uri).close();
+        assertEquals(message, expected,
+                getStats().getInt(WeatherContract.QUERY_CACHE_HITS) == hits + 1);
+    }
+
+    private Cursor query(Uri uri) {
+        return mContext.getContentResolver().query(uri, null, null, null, SORT_ORDER);
+    }
+
+    private Bundle getStats() {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+    }
+
+    private long insertLocation(String locationSetting, String cityName) {
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createLocationValues(locationSetting, cityName));
+        return Long.parseLong(uri.getLastPathSegment());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Runs every filtered provider route through query(), and EXPLAIN QUERY PLAN on each SELECT
+    the provider executed for it, failing when any of them scans the weather or location table
+    -- through an index or not -- rather than searching it.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherDbHelper mDbHelper;
+    private WeatherProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mProvider = new WeatherProvider();
+        mProvider.attachInfo(mContext, null);
+        // a cache hit runs no SQL
+        mProvider.getQueryCache().setMaxBytes(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mProvider.shutdown();
+        }
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    // The URIs query() takes for a route; none for the routes that only filter on the caller's
+    // selection.
+    private static Uri[] getRouteUris(int route) {
+        switch (route) {
+            case WeatherProvider.WEATHER_WITH_LOCATION:
+                return new Uri[]{
+                        WeatherEntry.buildWeatherLocation("99705"),
+                        WeatherEntry.buildWeatherLocationWithStartDate("99705", TEST_DATE)
+                };
+            case WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE:
+                return new Uri[]{WeatherEntry.buildWeatherLocationWithDate("99705", TEST_DATE)};
+            case WeatherProvider.WEATHER_WITH_LOCATION_ID:
+                return new Uri[]{
+                        WeatherEntry.buildWeatherLocationId(1),
+                        WeatherEntry.buildWeatherLocationIdWithStartDate(1, TEST_DATE)
+                };
+            case WeatherProvider.WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return new Uri[]{WeatherEntry.buildWeatherLocationIdWithDate(1, TEST_DATE)};
+            case WeatherProvider.WEATHER:
+            case WeatherProvider.LOCATION:
+                return new Uri[0];
+            default:
+                throw new AssertionError("No URIs for route " + route);
+        }
+    }
+
+    public void testNoRouteScansATable() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final List<String> statements = new ArrayList<String>();
+        mProvider.setQueryObserver(new WeatherProvider.QueryObserver() {
+            @Override
+            public void onQuery(String sql, String[] selectionArgs) {
+                statements.add(sql);
+            }
+        });
+        for (int route : WeatherProvider.ROUTES) {
+            for (Uri uri : getRouteUris(route)) {
+                assertEquals(route, WeatherProvider.buildUriMatcher().match(uri));
+                statements.clear();
+                mProvider.query(uri, null, null, null, SORT_ORDER).close();
+                assertFalse("Error: no SQL seen for " + uri, statements.isEmpty());
+                for (String sql : statements) {
+                    assertOnlySearches(db, route, sql);
+                }
+            }
+        }
+    }
+
+    private static void assertOnlySearches(SQLiteDatabase db, int route, String sql) {
+        // the plan doesn't depend on the argument values, only on their presence
+        String[] args = new String[countPlaceholders(sql)];
+        Arrays.fill(args, "0");
+
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = plan.getColumnIndex("detail");
+        boolean searched = false;
+        while (plan.moveToNext()) {
+            String detail = plan.getString(detailIndex);
+            Log.d(LOG_TAG, route + ": " + detail);
+            // "SCAN TABLE weather USING INDEX ..." walks the whole index: a scan all the same
+            assertFalse("Error: route " + route + " scans a table: " + detail + "\n" + sql,
+                    detail.startsWith("SCAN"));
+            searched |= detail.startsWith("SEARCH");
+        }
+        plan.close();
+        assertTrue("Error: route " + route + " searches nothing\n" + sql, searched);
+    }
+
+    private static int countPlaceholders(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
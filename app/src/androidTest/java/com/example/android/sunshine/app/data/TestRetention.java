@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.TimeZone;
+
+/*
+    Fills a scratch database with a month of history for a location in use and two weeks for
+    one that was abandoned, then purges in small batches until the policy is met.
+ */
+public class TestRetention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestRetention.class.getSimpleName();
+
+    private static final String TEST_DB = "weather_retention_test.db";
+    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private static final int PAST_DAYS = 2;
+    private static final int UNUSED_LOCATION_DAYS = 30;
+    private static final int BATCH_ROWS = 7;
+
+    private static final int HISTORY_DAYS = 30;
+    private static final int FORECAST_DAYS = 14;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private TimeZone mZone;
+    private long mNow;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DB);
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DB);
+        mDb = mDbHelper.getWritableDatabase();
+        mZone = TimeZone.getDefault();
+        mNow = System.currentTimeMillis();
+        mToday = EpochDays.normalize(mNow, mZone);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(TEST_DB);
+        super.tearDown();
+    }
+
+    public void testPurgeWorksOffBacklogInBatches() {
+        long inUse = insertLocation("99705", mNow);
+        long abandoned = insertLocation("94043", mNow - (UNUSED_LOCATION_DAYS + 1) * DAY_IN_MILLIS);
+        insertWeather(inUse, mToday - HISTORY_DAYS * DAY_IN_MILLIS, HISTORY_DAYS + FORECAST_DAYS);
+        insertWeather(abandoned, mToday - FORECAST_DAYS * DAY_IN_MILLIS, FORECAST_DAYS);
+
+        WeatherRetention retention = new WeatherRetention(PAST_DAYS, UNUSED_LOCATION_DAYS, BATCH_ROWS);
+        int weatherDeleted = 0;
+        int locationsDeleted = 0;
+        int passes = 0;
+        WeatherRetention.Report report;
+        do {
+            mDb.beginTransaction();
+            try {
+                report = retention.purge(mDb, mNow, null, mZone, null);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            assertTrue("Error: a purge deleted more than its batch",
+                    report.weatherRowsDeleted <= BATCH_ROWS);
+            weatherDeleted += report.weatherRowsDeleted;
+            locationsDeleted += report.locationsDeleted;
+            passes++;
+            assertTrue("Error: purge never caught up", passes < 100);
+        } while (!report.caughtUp);
+        Log.d(LOG_TAG, "Reclaimed " + weatherDeleted + " rows in " + passes + " passes");
+
+        // the location in use keeps PAST_DAYS of history plus its forecast
+        long kept = PAST_DAYS + FORECAST_DAYS;
+        assertEquals("Error: wrong rows kept for the location in use", kept,
+                DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+        assertEquals("Error: abandoned location wasn't dropped", 1,
+                DatabaseUtils.queryNumEntries(mDb, LocationEntry.TABLE_NAME));
+        assertEquals(HISTORY_DAYS - PAST_DAYS + FORECAST_DAYS, weatherDeleted);
+        assertEquals(1, locationsDeleted);
+        Bundle stats = retention.getStats(mDb);
+        assertEquals("Error: stats report the wrong table size", kept,
+                stats.getLong(WeatherContract.RETENTION_WEATHER_ROWS));
+        assertEquals(weatherDeleted,
+                stats.getInt(WeatherContract.RETENTION_WEATHER_ROWS_DELETED));
+    }
+
+    public void testPurgeKeepsRowsItsIngestWrote() {
+        long location = insertLocation("99705", mNow);
+        ContentValues[] ingest = TestUtilities.createWeatherValues(location, FORECAST_DAYS);
+        for (ContentValues value : ingest) {
+            mDb.insert(WeatherEntry.TABLE_NAME, null, value);
+        }
+
+        WeatherRetention retention = new WeatherRetention(PAST_DAYS, UNUSED_LOCATION_DAYS, BATCH_ROWS);
+        WeatherRetention.Report report = retention.purge(mDb, mNow, ingest, mZone, null);
+        assertEquals("Error: purge deleted the rows its own ingest wrote",
+                0, report.weatherRowsDeleted);
+    }
+
+    public void testTouchMarksLocationUsed() {
+        long location = insertLocation("99705", 0);
+        WeatherRetention.touchLocations(mDb,
+                TestUtilities.createWeatherValues(location, 3), mNow);
+        assertEquals(mNow, DatabaseUtils.longForQuery(mDb, "SELECT " +
+                LocationEntry.COLUMN_LAST_USED + " FROM " + LocationEntry.TABLE_NAME, null));
+    }
+
+    private long insertLocation(String locationSetting, long lastUsed) {
+        ContentValues values = TestUtilities.createLocationValues(locationSetting, "City");
+        values.put(LocationEntry.COLUMN_LAST_USED, lastUsed);
+        return mDb.insert(LocationEntry.TABLE_NAME, null, values);
+    }
+
+    private void insertWeather(long locationId, long firstDay, int days) {
+        ContentValues[] values = TestUtilities.createWeatherValues(locationId, days);
+        for (int i = 0; i < days; i++) {
+            values[i].put(WeatherEntry.COLUMN_DATE, firstDay + i * DAY_IN_MILLIS);
+            mDb.insert(WeatherEntry.TABLE_NAME, null, values[i]);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Map;
+import java.util.Set;
+
+/*
+    Fixtures and checks shared by the data tests.  The weather fixtures all describe the same
+    days, whether as ContentValues or as a ForecastBatch, so tests can compare one ingest path
+    with another.
+ */
+public class TestUtilities extends AndroidTestCase {
+    static final String TEST_LOCATION = "99705";
+    static final long TEST_DATE = 1419033600000L;  // December 20th, 2014
+    static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // the descriptions the weather fixtures cycle through
+    static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+
+    static void validateCursor(String error, Cursor valueCursor, ContentValues expectedValues) {
+        assertTrue("Empty cursor returned. " + error, valueCursor.moveToFirst());
+        validateCurrentRecord(error, valueCursor, expectedValues);
+        valueCursor.close();
+    }
+
+    static void validateCurrentRecord(String error, Cursor valueCursor,
+                                      ContentValues expectedValues) {
+        Set<Map.Entry<String, Object>> valueSet = expectedValues.valueSet();
+        for (Map.Entry<String, Object> entry : valueSet) {
+            String columnName = entry.getKey();
+            int idx = valueCursor.getColumnIndex(columnName);
+            assertFalse("Column '" + columnName + "' not found. " + error, idx == -1);
+            String expectedValue = entry.getValue().toString();
+            assertEquals("Value '" + entry.getValue().toString() +
+                    "' did not match the expected value '" +
+                    expectedValue + "'. " + error, expectedValue, valueCursor.getString(idx));
+        }
+    }
+
+    /*
+        One day of weather for the location, the first of the days createWeatherValues makes.
+     */
+    static ContentValues createWeatherValues(long locationRowId) {
+        return createWeatherValues(locationRowId, 1)[0];
+    }
+
+    /*
+        Days of weather for the location, a day apart from TEST_DATE, whose columns vary from
+        day to day.
+     */
+    static ContentValues[] createWeatherValues(long locationRowId, int days) {
+        ContentValues[] values = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            ContentValues weather = new ContentValues();
+            weather.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            weather.put(WeatherEntry.COLUMN_DATE, TEST_DATE + i * DAY_IN_MILLIS);
+            weather.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + i % 4);
+            weather.put(WeatherEntry.COLUMN_SHORT_DESC, DESCRIPTIONS[i % DESCRIPTIONS.length]);
+            weather.put(WeatherEntry.COLUMN_MIN_TEMP, 65.0 - i % 10);
+            weather.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + i % 10);
+            weather.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (i % 10));
+            weather.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * (i % 10));
+            weather.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * (i % 10));
+            weather.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            values[i] = weather;
+        }
+        return values;
+    }
+
+    /*
+        The days createWeatherValues makes, as a ForecastBatch.
+     */
+    static ForecastBatch createBatch(long locationRowId, int days) {
+        ForecastBatch batch = new ForecastBatch(days);
+        for (int i = 0; i < days; i++) {
+            batch.add(locationRowId, TEST_DATE + i * DAY_IN_MILLIS, 800 + i % 4,
+                    DESCRIPTIONS[i % DESCRIPTIONS.length], 65.0 - i % 10, 75.0 + i % 10,
+                    1.2 + 0.01 * (i % 10), 1.3 - 0.01 * (i % 10), 5.5 + 0.2 * (i % 10), 1.1);
+        }
+        return batch;
+    }
+
+    static ContentValues createLocationValues(String locationSetting, String cityName) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        return values;
+    }
+
+    static ContentValues createNorthPoleLocationValues() {
+        return createLocationValues(TEST_LOCATION, "North Pole");
+    }
+
+    static long insertNorthPoleLocationValues(Context context) {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(context);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long locationRowId = db.insert(LocationEntry.TABLE_NAME, null,
+                createNorthPoleLocationValues());
+        assertTrue("Error: Failure to insert North Pole Location Values", locationRowId != -1);
+        dbHelper.close();
+        return locationRowId;
+    }
+
+    /*
+        Inserts the North Pole through the provider, as the provider tests need it to be, and
+        returns its _id.
+     */
+    static long insertNorthPoleLocation(Context context) {
+        Uri locationUri = context.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                createNorthPoleLocationValues());
+        assertNotNull("Error: Failure to insert North Pole Location Values", locationUri);
+        return ContentUris.parseId(locationUri);
+    }
+
+    /*
+        Clears both tables through the provider, for the provider tests' setUp and tearDown.
+     */
+    static void deleteAllRecords(Context context) {
+        context.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        context.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        Every column but _id of each row the cursor holds, as strings, so the rows two writes
+        stored can be compared whatever _ids they got.  Closes the cursor.
+     */
+    static String[][] readRows(Cursor cursor) {
+        try {
+            int id = cursor.getColumnIndex(WeatherEntry._ID);
+            String[][] rows = new String[cursor.getCount()][];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rows[i] = new String[cursor.getColumnCount()];
+                for (int column = 0; column < rows[i].length; column++) {
+                    rows[i][column] = column == id ? null : cursor.getString(column);
+                }
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        Waits for one change notification, on a thread of its own so the test thread can block.
+     */
+    static class TestContentObserver extends ContentObserver {
+        private static final long TIMEOUT_MILLIS = 5000;
+
+        final HandlerThread mHT;
+        boolean mContentChanged;
+
+        static TestContentObserver getTestContentObserver() {
+            HandlerThread ht = new HandlerThread("ContentObserverThread");
+            ht.start();
+            return new TestContentObserver(ht);
+        }
+
+        private TestContentObserver(HandlerThread ht) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange, Uri uri) {
+            mContentChanged = true;
+            notifyAll();
+        }
+
+        public synchronized void waitForNotificationOrFail() {
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            long remaining = TIMEOUT_MILLIS;
+            try {
+                while (!mContentChanged && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - SystemClock.uptimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mHT.quit();
+            assertTrue("Error: no change notification", mContentChanged);
+        }
+    }
+
+    static TestContentObserver getTestContentObserver() {
+        return TestContentObserver.getTestContentObserver();
+    }
+}
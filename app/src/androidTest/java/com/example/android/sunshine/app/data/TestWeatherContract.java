@@ -42,4 +42,17 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    // "Aa" and "BB" have the same String.hashCode(), so only their chars tell them apart
+    public void testContentHashReadsTheWholeDescription() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertFalse(contentHash("Aa") == contentHash("BB"));
+        assertFalse(contentHash(null) == contentHash(""));
+        assertEquals(contentHash("Clear"), contentHash(new String("Clear")));
+    }
+
+    private static long contentHash(String shortDesc) {
+        return WeatherContract.WeatherEntry.contentHash(800, shortDesc, 65.0, 75.0, 1.2, 1.3,
+                5.5, 1.1);
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Holds a large weather ingest open in a transaction the way bulkInsert does and checks that
+    a reader on another thread is answered straight away, from the last committed state.
+ */
+public class TestWriteAheadLogging extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWriteAheadLogging.class.getSimpleName();
+
+    private static final String TEST_DB = "weather_wal_test.db";
+    private static final int ROWS = 1000;
+    // how long the writer keeps its transaction open if the reader never comes back
+    private static final long WRITER_HOLD_MILLIS = 5000;
+    private static final long MAX_READ_MILLIS = 1000;
+
+    private WeatherDbHelper mDbHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DB);
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DB);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(TEST_DB);
+        super.tearDown();
+    }
+
+    public void testJournalModeMatchesHelper() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String journalMode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+        assertEquals("Error: helper disagrees with journal_mode " + journalMode,
+                "wal".equalsIgnoreCase(journalMode), mDbHelper.isWriteAheadLogging());
+    }
+
+    @TargetApi(11)
+    public void testReadsProceedDuringIngest() throws InterruptedException {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (!mDbHelper.isWriteAheadLogging()) {
+            Log.d(LOG_TAG, "Write-ahead logging unavailable, nothing to check");
+            return;
+        }
+
+        ContentValues location = TestUtilities.createLocationValues("99705", "North Pole");
+        final long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+        final ContentValues[] weather = TestUtilities.createWeatherValues(locationId, ROWS);
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransactionNonExclusive();
+                try {
+                    WeatherProvider.bulkInsertWeatherCompiled(db, weather);
+                    written.countDown();
+                    readDone.await(WRITER_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        assertTrue("Error: writer never got going",
+                written.await(WRITER_HOLD_MILLIS, TimeUnit.MILLISECONDS));
+
+        long start = SystemClock.elapsedRealtime();
+        long visibleRows = DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.TABLE_NAME);
+        long readMillis = SystemClock.elapsedRealtime() - start;
+        readDone.countDown();
+        writer.join();
+
+        Log.d(LOG_TAG, "Read during ingest took " + readMillis + "ms");
+        assertTrue("Error: read waited " + readMillis + "ms for the writer",
+                readMillis < MAX_READ_MILLIS);
+        assertEquals("Error: read saw uncommitted rows", 0, visibleRows);
+        assertEquals("Error: ingest didn't commit", ROWS, DatabaseUtils.queryNumEntries(db,
+                WeatherContract.WeatherEntry.TABLE_NAME));
+    }
+}
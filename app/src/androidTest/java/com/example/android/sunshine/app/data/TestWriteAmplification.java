@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Counts the pages a sync writes when refreshed weather rows replace the old ones, as the
+    table's ON CONFLICT REPLACE used to, against the provider's in-place upsert.  Each sync
+    rewrites every day of every location with new values.  Pages are counted as the frames the
+    sync adds to the write-ahead log, so this needs WAL (API 16).  Counts go to logcat under
+    this class name; the asserts check that both store the same rows and that only the upsert
+    keeps their _ids.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestWriteAmplification extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWriteAmplification.class.getSimpleName();
+
+    private static final String REPLACE_DB = "weather_replace_test.db";
+    private static final String UPSERT_DB = "weather_upsert_test.db";
+    private static final int LOCATIONS = 10;
+    private static final int DAYS = 14;
+    private static final int SYNCS = 5;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(REPLACE_DB);
+        mContext.deleteDatabase(UPSERT_DB);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(REPLACE_DB);
+        mContext.deleteDatabase(UPSERT_DB);
+        super.tearDown();
+    }
+
+    public void testPagesWrittenPerSync() {
+        WeatherDbHelper replaceHelper = new WeatherDbHelper(mContext, REPLACE_DB);
+        WeatherDbHelper upsertHelper = new WeatherDbHelper(mContext, UPSERT_DB);
+        try {
+            SQLiteDatabase replaceDb = replaceHelper.getWritableDatabase();
+            SQLiteDatabase upsertDb = upsertHelper.getWritableDatabase();
+            if (!replaceHelper.isWriteAheadLogging() || !upsertHelper.isWriteAheadLogging()) {
+                Log.d(LOG_TAG, "Write-ahead logging unavailable, nothing to count");
+                return;
+            }
+            long[] replaceLocations = insertLocations(replaceDb);
+            long[] upsertLocations = insertLocations(upsertDb);
+            sync(replaceDb, replaceLocations, 0, false);
+            sync(upsertDb, upsertLocations, 0, true);
+            long[] replaceIds = queryIds(replaceDb);
+            long[] upsertIds = queryIds(upsertDb);
+            long replaceSequence = sequence(replaceDb);
+            long upsertSequence = sequence(upsertDb);
+
+            long replacePages = 0;
+            long upsertPages = 0;
+            for (int version = 1; version <= SYNCS; version++) {
+                replacePages += sync(replaceDb, replaceLocations, version, false);
+                upsertPages += sync(upsertDb, upsertLocations, version, true);
+            }
+
+            Log.d(LOG_TAG, "Sync of " + LOCATIONS + " locations x " + DAYS + " days: " +
+                    replacePages / SYNCS + " pages written replacing rows, " +
+                    upsertPages / SYNCS + " upserting them; AUTOINCREMENT counter moved " +
+                    (sequence(replaceDb) - replaceSequence) + " against " +
+                    (sequence(upsertDb) - upsertSequence));
+
+            assertEquals(LOCATIONS * DAYS, queryIds(replaceDb).length);
+            assertEquals(LOCATIONS * DAYS, queryIds(upsertDb).length);
+            assertFalse("Error: replaced rows kept their _ids",
+                    Arrays.equals(replaceIds, queryIds(replaceDb)));
+            assertTrue("Error: upserted rows lost their _ids",
+                    Arrays.equals(upsertIds, queryIds(upsertDb)));
+            assertEquals("Error: upsert moved the AUTOINCREMENT counter",
+                    upsertSequence, sequence(upsertDb));
+        } finally {
+            replaceHelper.close();
+            upsertHelper.close();
+        }
+    }
+
+    private static long[] insertLocations(SQLiteDatabase db) {
+        long[] ids = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ids[i] = db.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createLocationValues("wa-" + i, "City " + i));
+        }
+        return ids;
+    }
+
+    /*
+        Stores every location's forecast in one transaction, its values varied by version, and
+        returns the pages the transaction wrote.  Replacing goes through INSERT OR REPLACE,
+        which does what the table's old conflict clause did.
+     */
+    private static long sync(SQLiteDatabase db, long[] locationIds, int version,
+                             boolean upsert) {
+        // the next write starts the log over, so it holds only this sync's frames
+        walCheckpoint(db, "RESTART");
+        db.beginTransactionNonExclusive();
+        try {
+            for (long locationId : locationIds) {
+                ContentValues[] values = TestUtilities.createWeatherValues(locationId, DAYS);
+                for (ContentValues value : values) {
+                    value.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + version);
+                    value.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + version);
+                }
+                if (upsert) {
+                    assertEquals(DAYS, WeatherProvider.bulkInsertWeatherCompiled(db, values));
+                } else {
+                    for (ContentValues value : values) {
+                        value.put(WeatherEntry.COLUMN_DATE,
+                                WeatherContract.normalizeDate(
+                                        value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                        assertTrue(db.insertWithOnConflict(WeatherEntry.TABLE_NAME, null, value,
+                                SQLiteDatabase.CONFLICT_REPLACE) != -1);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return walCheckpoint(db, "PASSIVE");
+    }
+
+    // Runs a checkpoint and returns the frames in the log.
+    private static long walCheckpoint(SQLiteDatabase db, String mode) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long sequence(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[]{WeatherEntry.TABLE_NAME});
+    }
+
+    // The weather _ids in (location_id, date) order.
+    private static long[] queryIds(SQLiteDatabase db) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, new String[]{WeatherEntry._ID}, null,
+                null, null, null, WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
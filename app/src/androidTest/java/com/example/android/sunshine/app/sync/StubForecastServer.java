@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A local stand-in for the OpenWeatherMap forecast endpoint.  Every GET is answered with the
+    current forecast body and its validators, or 304 when the request's If-None-Match matches.
+    A request whose cnt asks for fewer days than the forecast has gets just those days, without
+    validators.  Bodies are gzipped for clients that accept it, and responses can be delayed,
+    by a fixed latency plus a time per day sent, to stand in for a slow network.  Connections
+    are kept alive, and it counts what it served so tests can check the traffic.
+ */
+public class StubForecastServer {
+
+    public static final String LOG_TAG = StubForecastServer.class.getSimpleName();
+
+    private static final String CHARSET = "UTF-8";
+    private static final String LAST_MODIFIED = "Sun, 20 Dec 2015 00:00:00 GMT";
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+
+    // guarded by this
+    private String mForecast;
+    private int mDays;
+    private byte[] mBody;
+    private byte[] mGzippedBody;
+    private String mEtag;
+    private long mMaxAgeSeconds = 600;
+    private long mLatencyMillis;
+    private long mLatencyPerDayMillis;
+    private int mRequests;
+    private int mNotModified;
+    private int mConnections;
+    private long mBodyBytesSent;
+    private String mLastIfNoneMatch;
+
+    public StubForecastServer(String body, String etag) throws IOException {
+        setForecast(body, etag);
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, LOG_TAG);
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return the URI to give ForecastFetcher instead of OpenWeatherMap's.
+     */
+    public Uri getForecastUri() {
+        return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/forecast/daily");
+    }
+
+    public synchronized void setForecast(String body, String etag) throws IOException {
+        mForecast = body;
+        mDays = countDays(body);
+        mBody = body.getBytes(CHARSET);
+        mGzippedBody = gzip(mBody);
+        mEtag = etag;
+    }
+
+    /**
+     * Makes every response wait this long before it is sent, like a slow network would.
+     * Connections are served on their own threads, so concurrent requests wait concurrently.
+     */
+    public synchronized void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Adds this much to each response's latency for every day of forecast in it, so smaller
+     * responses arrive sooner, as they would over a slow link.
+     */
+    public synchronized void setLatencyPerDayMillis(long latencyPerDayMillis) {
+        mLatencyPerDayMillis = latencyPerDayMillis;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    public synchronized int getNotModifiedCount() {
+        return mNotModified;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    /**
+     * @return the body bytes written, after gzip where it was used.
+     */
+    public synchronized long getBodyBytesSent() {
+        return mBodyBytesSent;
+    }
+
+    public synchronized String getLastIfNoneMatch() {
+        return mLastIfNoneMatch;
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mAcceptThread.join();
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // closed by shutdown()
+                return;
+            }
+            synchronized (this) {
+                mConnections++;
+            }
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, LOG_TAG + "-connection");
+            // idle keep-alive connections shouldn't outlive the test
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                respond(request, out);
+                if (request.close) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // the client went away
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error serving a request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing a connection", e);
+            }
+        }
+    }
+
+    private static final class Request {
+        // the days asked for, or 0 if the request didn't say
+        int days;
+        String ifNoneMatch;
+        boolean gzip;
+        boolean close;
+    }
+
+    // Reads the request line and headers; null at the end of the connection.
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        Request request = new Request();
+        // GET /forecast/daily?zip=...&cnt=14 HTTP/1.1
+        String[] parts = requestLine.split(" ");
+        if (parts.length > 1) {
+            String cnt = Uri.parse("http://127.0.0.1" + parts[1]).getQueryParameter("cnt");
+            if (cnt != null) {
+                request.days = Integer.parseInt(cnt);
+            }
+        }
+        String header;
+        while ((header = readLine(in)) != null && header.length() > 0) {
+            int colon = header.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = header.substring(colon + 1).trim();
+            if ("if-none-match".equals(name)) {
+                request.ifNoneMatch = value;
+            } else if ("accept-encoding".equals(name)) {
+                request.gzip = value.toLowerCase(Locale.US).contains("gzip");
+            } else if ("connection".equals(name) && "close".equalsIgnoreCase(value)) {
+                request.close = true;
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                String text = line.toString(CHARSET);
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(CHARSET);
+    }
+
+    private void respond(Request request, OutputStream out) throws IOException {
+        byte[] body;
+        String etag;
+        long maxAgeSeconds;
+        boolean notModified;
+        long latencyMillis;
+        boolean partial;
+        synchronized (this) {
+            mRequests++;
+            mLastIfNoneMatch = request.ifNoneMatch;
+            int days = mDays;
+            partial = request.days > 0 && request.days < mDays;
+            if (partial) {
+                // the first days only; validators would claim the whole forecast, so none
+                days = request.days;
+                body = truncate(mForecast, days).getBytes(CHARSET);
+                if (request.gzip) {
+                    body = gzip(body);
+                }
+                etag = null;
+            } else {
+                body = request.gzip ? mGzippedBody : mBody;
+                etag = mEtag;
+            }
+            maxAgeSeconds = mMaxAgeSeconds;
+            notModified = etag != null && etag.equals(request.ifNoneMatch);
+            latencyMillis = mLatencyMillis + (notModified ? 0 : days * mLatencyPerDayMillis);
+            if (notModified) {
+                mNotModified++;
+            } else {
+                mBodyBytesSent += body.length;
+            }
+        }
+
+        StringBuilder head = new StringBuilder();
+        if (notModified) {
+            head.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            head.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/json; charset=utf-8\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n")
+                    .append(request.gzip ? "Content-Encoding: gzip\r\n" : "");
+            if (!partial) {
+                head.append("Last-Modified: ").append(LAST_MODIFIED).append("\r\n");
+            }
+        }
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        head.append("Cache-Control: max-age=").append(maxAgeSeconds).append("\r\n");
+        if (request.close) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+        out.write(head.toString().getBytes(CHARSET));
+        if (!notModified) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        out.write(body);
+        out.close();
+        return gzipped.toByteArray();
+    }
+
+    // The days in a forecast body, or 0 if it isn't one.
+    private static int countDays(String forecast) {
+        try {
+            JSONArray list = new JSONObject(forecast).optJSONArray("list");
+            return list != null ? list.length() : 0;
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    // The forecast body cut down to its first days.
+    private static String truncate(String forecast, int days) throws IOException {
+        try {
+            JSONObject json = new JSONObject(forecast);
+            JSONArray list = json.getJSONArray("list");
+            JSONArray first = new JSONArray();
+            for (int i = 0; i < days; i++) {
+                first.put(list.get(i));
+            }
+            json.put("list", first);
+            json.put("cnt", days);
+            return json.toString();
+        } catch (JSONException e) {
+            throw new IOException("Not a forecast: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.EpochDays;
+import com.example.android.sunshine.app.data.ForecastBatch;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/*
+    Parses recorded OpenWeatherMap responses, kept next to this class as test resources, and
+    compares what comes out with the .expected file beside each one.  Also checks the streaming
+    parser against the org.json tree walk it replaced, and logs what each allocates.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    private static final String WELLINGTON = "owm_daily_wellington_14";
+    // "list" before "city", pretty printed, whole numbers where OWM usually sends fractions
+    private static final String AUCKLAND = "owm_daily_auckland_7_list_first";
+    private static final String NOT_FOUND = "owm_error_not_found";
+
+    private static final int ALLOCATION_RUNS = 20;
+
+    // Writes what a Listener is given one line at a time, in the .expected format.  The city
+    // line always comes first, wherever it was in the response.
+    static class Rendering implements ForecastParser.Listener {
+        private String mCity = "";
+        private final StringBuilder mDays = new StringBuilder();
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            mCity = "city " + cityName + ' ' + latitude + ' ' + longitude + '\n';
+        }
+
+        @Override
+        public void onDay(ForecastParser.Day day) {
+            mDays.append("day ").append(day.index)
+                    .append(" dt=").append(day.dt)
+                    .append(" pressure=").append(day.pressure)
+                    .append(" humidity=").append(day.humidity)
+                    .append(" speed=").append(day.windSpeed)
+                    .append(" deg=").append(day.windDirection)
+                    .append(" max=").append(day.high)
+                    .append(" min=").append(day.low)
+                    .append(" main=").append(day.description)
+                    .append(" id=").append(day.weatherId)
+                    .append('\n');
+        }
+
+        String text() {
+            return mCity + mDays;
+        }
+    }
+
+    private InputStream open(String resource) {
+        InputStream in = getClass().getResourceAsStream(resource);
+        assertNotNull("Error: missing test resource " + resource, in);
+        return in;
+    }
+
+    private String read(String resource) throws IOException {
+        InputStream in = open(resource);
+        try {
+            return ForecastParser.readFully(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private String parse(String response) throws IOException {
+        Rendering rendering = new Rendering();
+        InputStream in = open(response + ".json");
+        try {
+            ForecastParser.parse(in, rendering);
+        } finally {
+            in.close();
+        }
+        return rendering.text();
+    }
+
+    public void testGoldenFiles() throws IOException {
+        for (String response : new String[]{WELLINGTON, AUCKLAND, NOT_FOUND}) {
+            assertEquals("Error: " + response + " parsed differently than recorded",
+                    read(response + ".expected"), parse(response));
+        }
+    }
+
+    public void testForecastCollectsEveryDay() throws IOException {
+        TimeZone zone = TimeZone.getDefault();
+        long startDay = EpochDays.toEpochDay(System.currentTimeMillis(), zone);
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast(startDay, zone);
+        InputStream in = open(WELLINGTON + ".json");
+        try {
+            assertEquals(14, ForecastParser.parse(in, forecast));
+        } finally {
+            in.close();
+        }
+        assertTrue(forecast.hasCity());
+        assertEquals("Wellington", forecast.cityName);
+        assertEquals(14, forecast.days.size());
+        for (int i = 0; i < forecast.days.size(); i++) {
+            assertEquals(EpochDays.startOfDayMillis(startDay + i, zone), forecast.days.getDate(i));
+        }
+    }
+
+    public void testBatchFillerMatchesDays() throws IOException {
+        final List<Long> hashes = new ArrayList<Long>();
+        final List<String> descriptions = new ArrayList<String>();
+        ForecastBatch batch = new ForecastBatch();
+        TimeZone zone = TimeZone.getDefault();
+        long startDay = EpochDays.toEpochDay(System.currentTimeMillis(), zone);
+        ForecastParser.BatchFiller filler =
+                new ForecastParser.BatchFiller(batch, 42, startDay, zone);
+        byte[] response = read(WELLINGTON + ".json").getBytes("UTF-8");
+        ForecastParser.parse(new ByteArrayInputStream(response), new ForecastParser.Listener() {
+            @Override
+            public void onCity(String cityName, double latitude, double longitude) {
+            }
+
+            @Override
+            public void onDay(ForecastParser.Day day) {
+                hashes.add(day.contentHash());
+                descriptions.add(day.description);
+            }
+        });
+        ForecastParser.parse(new ByteArrayInputStream(response), filler);
+
+        assertEquals("Wellington", filler.cityName);
+        assertEquals(hashes.size(), batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(42, batch.getLocationId(row));
+            assertEquals(EpochDays.startOfDayMillis(startDay + row, zone), batch.getDate(row));
+            assertEquals(descriptions.get(row), batch.getDescription(row));
+            assertEquals("Error: day " + row + " hashes differently in the batch",
+                    (long) hashes.get(row), batch.contentHash(row));
+        }
+
+        // the sync's path: a Forecast's days, moved under the location once it has one
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast(startDay, zone);
+        ForecastParser.parse(new ByteArrayInputStream(response), forecast);
+        ForecastBatch moved = new ForecastBatch();
+        moved.addAll(forecast.days, 42);
+        assertEquals(batch.size(), moved.size());
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(42, moved.getLocationId(row));
+            assertEquals(batch.getDate(row), moved.getDate(row));
+            assertEquals(batch.contentHash(row), moved.contentHash(row));
+        }
+    }
+
+    public void testStreamMatchesTree() throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            Log.d(LOG_TAG, "No JsonReader, parse() already walks the tree");
+            return;
+        }
+        for (String response : new String[]{WELLINGTON, AUCKLAND}) {
+            Rendering tree = new Rendering();
+            ForecastParser.parseTree(read(response + ".json"), tree);
+            assertEquals("Error: " + response + " streams differently than the tree walk",
+                    tree.text(), parse(response));
+        }
+    }
+
+    public void testIncompleteDayFails() {
+        String response = "{\"city\":{\"name\":\"Nowhere\",\"coord\":{\"lat\":0,\"lon\":0}}," +
+                "\"list\":[{\"pressure\":1000,\"speed\":1,\"deg\":90," +
+                "\"temp\":{\"min\":1,\"max\":2},\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}]}";
+        try {
+            ForecastParser.parse(new ByteArrayInputStream(response.getBytes()),
+                    new ForecastParser.Forecast());
+            fail("Error: a day without humidity was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testWrongTypeFails() {
+        String response = "{\"list\":{\"pressure\":1000}}";
+        try {
+            ForecastParser.parse(new ByteArrayInputStream(response.getBytes()),
+                    new ForecastParser.Forecast());
+            fail("Error: a list that isn't an array was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testAllocationsAgainstTree() throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            Log.d(LOG_TAG, "No JsonReader, nothing to compare");
+            return;
+        }
+        byte[] response = read(WELLINGTON + ".json").getBytes("UTF-8");
+
+        // warm up both paths so class loading isn't counted
+        readAndParseTree(response);
+        parseStream(response);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < ALLOCATION_RUNS; i++) {
+                readAndParseTree(response);
+            }
+            int treeCount = Debug.getThreadAllocCount() / ALLOCATION_RUNS;
+            int treeBytes = Debug.getThreadAllocSize() / ALLOCATION_RUNS;
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < ALLOCATION_RUNS; i++) {
+                parseStream(response);
+            }
+            int streamCount = Debug.getThreadAllocCount() / ALLOCATION_RUNS;
+            int streamBytes = Debug.getThreadAllocSize() / ALLOCATION_RUNS;
+
+            Log.d(LOG_TAG, "Per " + response.length + " byte response: tree " + treeCount +
+                    " objects / " + treeBytes + " bytes, stream " + streamCount + " objects / " +
+                    streamBytes + " bytes");
+            if (treeCount == 0) {
+                Log.d(LOG_TAG, "Allocation counting unavailable, nothing to compare");
+                return;
+            }
+            assertTrue("Error: streaming allocated more objects than the tree walk",
+                    streamCount < treeCount);
+            assertTrue("Error: streaming allocated more bytes than the tree walk",
+                    streamBytes < treeBytes);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    // What the fetch code did before: a line at a time into a StringBuffer, then JSONObject.
+    private static int readAndParseTree(byte[] response) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(response)));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        return ForecastParser.parseTree(buffer.toString(), new ForecastParser.Forecast());
+    }
+
+    private static int parseStream(byte[] response) throws IOException {
+        return ForecastParser.parse(new ByteArrayInputStream(response),
+                new ForecastParser.Forecast());
+    }
+}
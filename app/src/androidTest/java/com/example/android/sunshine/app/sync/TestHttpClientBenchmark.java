@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Fetches the same forecast from a local stub server the way the fetch code used to (a new
+    connection per request, disconnected afterwards, read a line at a time) and through
+    WeatherHttpClient, and logs the connections opened, body bytes on the wire and latency per
+    fetch for each.  Timings go to logcat under this class name.
+ */
+public class TestHttpClientBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHttpClientBenchmark.class.getSimpleName();
+
+    private static final String FORECAST = "owm_daily_wellington_14.json";
+    private static final int FETCHES = 20;
+
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getClass().getResourceAsStream(FORECAST);
+        assertNotNull("Error: missing test resource " + FORECAST, in);
+        try {
+            mServer = new StubForecastServer(
+                    ForecastParser.readFully(new InputStreamReader(in, "UTF-8")), null);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testSharedClientAgainstConnectionPerFetch() throws Exception {
+        ForecastFetcher fetcher = new ForecastFetcher(mServer.getForecastUri());
+        Uri uri = fetcher.buildUri("6037");
+
+        // warm up class loading and the server threads on both paths
+        fetchTheOldWay(uri);
+        WeatherHttpClient client = new WeatherHttpClient(
+                WeatherHttpClient.CONNECT_TIMEOUT_MILLIS, WeatherHttpClient.READ_TIMEOUT_MILLIS);
+        fetcher = new ForecastFetcher(mServer.getForecastUri(), client);
+        fetcher.fetch("6037", ForecastValidators.NONE);
+
+        int connections = mServer.getConnectionCount();
+        long bytes = mServer.getBodyBytesSent();
+        long start = System.nanoTime();
+        for (int i = 0; i < FETCHES; i++) {
+            fetchTheOldWay(uri);
+        }
+        long oldMicros = (System.nanoTime() - start) / 1000 / FETCHES;
+        int oldConnections = mServer.getConnectionCount() - connections;
+        long oldBytes = (mServer.getBodyBytesSent() - bytes) / FETCHES;
+
+        connections = mServer.getConnectionCount();
+        bytes = mServer.getBodyBytesSent();
+        long clientBodyBytes = client.getBodyBytes();
+        long clientWireBytes = client.getWireBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < FETCHES; i++) {
+            ForecastFetcher.Result result = fetcher.fetch("6037", ForecastValidators.NONE);
+            assertEquals(14, result.forecast.days.size());
+        }
+        long clientMicros = (System.nanoTime() - start) / 1000 / FETCHES;
+        int clientConnections = mServer.getConnectionCount() - connections;
+        long clientBytes = (mServer.getBodyBytesSent() - bytes) / FETCHES;
+        long inflatedBytes = (client.getBodyBytes() - clientBodyBytes) / FETCHES;
+        long countedBytes = (client.getWireBytes() - clientWireBytes) / FETCHES;
+
+        Log.d(LOG_TAG, FETCHES + " fetches, connection per fetch: " + oldConnections +
+                " connections, " + oldBytes + " body bytes and " + oldMicros + "us per fetch");
+        Log.d(LOG_TAG, FETCHES + " fetches, shared client: " + clientConnections +
+                " connections, " + clientBytes + " body bytes (" + inflatedBytes +
+                " inflated) and " + clientMicros + "us per fetch");
+
+        assertEquals("Error: every old-style fetch should open a connection",
+                FETCHES, oldConnections);
+        assertTrue("Error: the shared client didn't reuse its connection",
+                clientConnections <= 1);
+        assertTrue("Error: the shared client's responses weren't compressed",
+                clientBytes < inflatedBytes);
+        assertEquals("Error: client and server disagree on bytes on the wire",
+                clientBytes, countedBytes);
+    }
+
+    // What SunshineService and FetchWeatherTask did before the shared client.
+    private static int fetchTheOldWay(Uri uri) throws IOException, JSONException {
+        HttpURLConnection urlConnection = null;
+        BufferedReader reader = null;
+        try {
+            URL url = new URL(uri.toString());
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.connect();
+            reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+            StringBuffer buffer = new StringBuffer();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                buffer.append(line + "\n");
+            }
+            return ForecastParser.parseTree(buffer.toString(), new ForecastParser.Forecast());
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
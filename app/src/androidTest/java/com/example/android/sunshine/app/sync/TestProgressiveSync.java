@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Syncs a new location from a local stub server whose responses take longer the more days
+    they hold, once fetching the whole forecast and once loading it progressively, and measures
+    how long after the sync starts the location's first weather row can be read, as the
+    forecast list would.  Also checks that each phase of a progressive load notifies the
+    location's observers once.  Timings go to logcat under this class name.  Notifying the
+    first days as they commit takes the provider's delta ingest, so needs API 11.
+ */
+public class TestProgressiveSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestProgressiveSync.class.getSimpleName();
+
+    private static final String FORECAST = "owm_daily_wellington_14.json";
+    private static final String ETAG = "\"progressive-1\"";
+    private static final String SETTING = "progressive-test";
+    private static final int FIRST_PAINT_DAYS = 3;
+    private static final long LATENCY_MILLIS = 100;
+    private static final long LATENCY_PER_DAY_MILLIS = 50;
+    private static final long POLL_MILLIS = 5;
+    // past the provider's debounce window, with room to spare
+    private static final long SETTLE_MILLIS = 500;
+
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteLocation();
+        InputStream in = getClass().getResourceAsStream(FORECAST);
+        assertNotNull("Error: missing test resource " + FORECAST, in);
+        try {
+            mServer = new StubForecastServer(
+                    ForecastParser.readFully(new InputStreamReader(in, "UTF-8")), ETAG);
+        } finally {
+            in.close();
+        }
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+        mServer.setLatencyPerDayMillis(LATENCY_PER_DAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteLocation();
+        super.tearDown();
+    }
+
+    public void testFirstRowArrivesBeforeTheWholeForecast() throws Exception {
+        long[] whole = new long[1];
+        WeatherSyncEngine.Report wholeReport = syncTimingFirstRow(0, whole);
+        deleteLocation();
+        long[] progressive = new long[1];
+        WeatherSyncEngine.Report progressiveReport =
+                syncTimingFirstRow(FIRST_PAINT_DAYS, progressive);
+
+        Log.d(LOG_TAG, "First row of a new location at " + LATENCY_MILLIS + "ms + " +
+                LATENCY_PER_DAY_MILLIS + "ms a day: " + whole[0] + "ms fetching it whole (" +
+                wholeReport.totalMillis + "ms sync), " + progressive[0] + "ms with the first " +
+                FIRST_PAINT_DAYS + " days first (" + progressiveReport.totalMillis + "ms sync)");
+
+        WeatherSyncEngine.LocationReport location = progressiveReport.get(SETTING);
+        assertEquals(WeatherSyncEngine.Status.UPDATED, location.status);
+        assertEquals(14, location.days);
+        assertTrue("Error: the first days weren't committed ahead of the rest: " + location,
+                location.firstCommittedMillis != -1 &&
+                        location.firstCommittedMillis < location.committedMillis);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            assertEquals("Error: the first days were stored again", FIRST_PAINT_DAYS,
+                    location.unchangedDays);
+            assertEquals(14 - FIRST_PAINT_DAYS, location.insertedDays);
+        }
+        assertEquals(-1, wholeReport.get(SETTING).firstCommittedMillis);
+        assertEquals(14, countWeather());
+        assertEquals("Error: validators of the whole forecast weren't stored", ETAG,
+                ForecastValidators.query(getContext().getContentResolver(), SETTING).etag);
+
+        assertTrue("Error: the first row took " + progressive[0] + "ms, against " + whole[0] +
+                "ms for the whole forecast", progressive[0] < whole[0]);
+        assertTrue("Error: the first row waited for the whole forecast",
+                progressive[0] < LATENCY_MILLIS + 14 * LATENCY_PER_DAY_MILLIS);
+    }
+
+    public void testEachPhaseNotifiesOnce() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        NotificationLog log = NotificationLog.register(getContext(),
+                WeatherEntry.buildWeatherLocation(SETTING));
+        List<Long> notified;
+        WeatherSyncEngine.Report report;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            report = sync(FIRST_PAINT_DAYS);
+            Thread.sleep(SETTLE_MILLIS);
+            notified = log.getTimes();
+        } finally {
+            log.unregister();
+        }
+
+        WeatherSyncEngine.LocationReport location = report.get(SETTING);
+        assertEquals("Error: notified " + notified.size() + " times", 2, notified.size());
+        // each notification comes once its phase has committed
+        assertTrue(notified.get(0) - start >= location.firstCommittedMillis);
+        assertTrue("Error: the first days waited for the rest",
+                notified.get(0) - start < location.committedMillis);
+        assertTrue(notified.get(1) - start >= location.committedMillis);
+    }
+
+    public void testStoredLocationIsFetchedWhole() {
+        sync(FIRST_PAINT_DAYS);
+        int requests = mServer.getRequestCount();
+        WeatherSyncEngine.Report report = sync(FIRST_PAINT_DAYS);
+
+        assertEquals("Error: a location with a forecast stored was loaded progressively",
+                requests + 1, mServer.getRequestCount());
+        assertEquals(WeatherSyncEngine.Status.NOT_MODIFIED, report.get(SETTING).status);
+        assertEquals(-1, report.get(SETTING).firstCommittedMillis);
+    }
+
+    /*
+        Syncs the location on another thread while this one polls for its weather, and puts
+        how long after the sync started the first row could be read in firstRowMillis.
+     */
+    private WeatherSyncEngine.Report syncTimingFirstRow(final int firstPaintDays,
+                                                        long[] firstRowMillis)
+            throws InterruptedException {
+        final WeatherSyncEngine.Report[] report = new WeatherSyncEngine.Report[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                report[0] = sync(firstPaintDays);
+            }
+        });
+        long start = SystemClock.elapsedRealtime();
+        thread.start();
+        firstRowMillis[0] = -1;
+        while (thread.isAlive()) {
+            if (countWeather() > 0) {
+                firstRowMillis[0] = SystemClock.elapsedRealtime() - start;
+                break;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        thread.join();
+        if (firstRowMillis[0] == -1) {
+            firstRowMillis[0] = SystemClock.elapsedRealtime() - start;
+        }
+        assertNotNull(report[0]);
+        return report[0];
+    }
+
+    private WeatherSyncEngine.Report sync(int firstPaintDays) {
+        WeatherSyncEngine engine = new WeatherSyncEngine(getContext().getContentResolver(),
+                new ForecastFetcher(mServer.getForecastUri()), 2, LocationIdCache.getInstance());
+        engine.setFirstPaintDays(firstPaintDays);
+        try {
+            return engine.sync(Collections.singletonList(SETTING));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    private int countWeather() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(SETTING), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deleteLocation() {
+        ContentResolver resolver = getContext().getContentResolver();
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{SETTING}, null);
+        try {
+            while (cursor.moveToNext()) {
+                resolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+        resolver.delete(LocationEntry.CONTENT_URI, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{SETTING});
+    }
+
+    // Records when each notification on a URI arrived, on its own thread.
+    private static final class NotificationLog extends ContentObserver {
+        private final android.content.Context mContext;
+        private final HandlerThread mThread;
+        private final List<Long> mTimes = new ArrayList<Long>();
+
+        private NotificationLog(android.content.Context context, HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mContext = context;
+            mThread = thread;
+        }
+
+        static NotificationLog register(android.content.Context context, Uri uri) {
+            HandlerThread thread = new HandlerThread("NotificationLog");
+            thread.start();
+            NotificationLog log = new NotificationLog(context, thread);
+            context.getContentResolver().registerContentObserver(uri, true, log);
+            return log;
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange) {
+            mTimes.add(SystemClock.elapsedRealtime());
+        }
+
+        synchronized List<Long> getTimes() {
+            return new ArrayList<Long>(mTimes);
+        }
+
+        void unregister() {
+            mContext.getContentResolver().unregisterContentObserver(this);
+            mThread.quit();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Syncs a handful of locations from a local stub server that holds every response for a fixed
+    latency, once fetching them one at a time and once several at a time, and checks what was
+    stored and reported, and that a sync started while another has the same locations in flight
+    waits for that one instead of fetching them again, and that locations already stored are
+    found without looking them up.  Also runs the engine on a transport and a store of its own,
+    without the server or the provider.  Timings go to logcat under this class name.
+ */
+public class TestSyncEngine extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncEngine.class.getSimpleName();
+
+    private static final String FORECAST = "owm_daily_wellington_14.json";
+    private static final String ETAG = "\"sync-1\"";
+    private static final int LOCATIONS = 8;
+    private static final int PARALLELISM = 4;
+    private static final long LATENCY_MILLIS = 200;
+
+    private StubForecastServer mServer;
+    private String mForecast;
+    private List<String> mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSettings = new ArrayList<String>(LOCATIONS);
+        for (int i = 0; i < LOCATIONS; i++) {
+            mSettings.add("sync-test-" + i);
+        }
+        deleteLocations();
+        InputStream in = getClass().getResourceAsStream(FORECAST);
+        assertNotNull("Error: missing test resource " + FORECAST, in);
+        try {
+            mForecast = ForecastParser.readFully(new InputStreamReader(in, "UTF-8"));
+            mServer = new StubForecastServer(mForecast, ETAG);
+        } finally {
+            in.close();
+        }
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteLocations();
+        super.tearDown();
+    }
+
+    public void testParallelSyncStoresEveryLocation() {
+        WeatherSyncEngine.Report report = sync(PARALLELISM);
+
+        assertEquals(LOCATIONS, report.locations.size());
+        assertEquals("Error: not every location was updated: " + report,
+                LOCATIONS, report.count(WeatherSyncEngine.Status.UPDATED));
+        for (String setting : mSettings) {
+            WeatherSyncEngine.LocationReport location = report.get(setting);
+            assertNotNull("Error: no report for " + setting, location);
+            assertEquals(14, location.days);
+            assertTrue("Error: " + setting + " committed before it was fetched",
+                    location.committedMillis >= location.fetchedMillis);
+            assertTrue(location.committedMillis <= report.totalMillis);
+            assertEquals("Error: forecast for " + setting + " wasn't stored",
+                    14, countWeather(setting));
+            assertEquals("Error: validators for " + setting + " weren't stored", ETAG,
+                    ForecastValidators.query(getContext().getContentResolver(), setting).etag);
+        }
+        // three per group, and a group per location at worst
+        assertTrue("Error: writes weren't grouped: " + report,
+                report.transactions <= 3 * LOCATIONS);
+    }
+
+    public void testParallelSyncOverlapsLatency() {
+        WeatherSyncEngine.Report serial = sync(1);
+        deleteLocations();
+        WeatherSyncEngine.Report parallel = sync(PARALLELISM);
+
+        Log.d(LOG_TAG, LOCATIONS + " locations at " + LATENCY_MILLIS + "ms latency: " +
+                serial.totalMillis + "ms one at a time, " + parallel.totalMillis + "ms " +
+                PARALLELISM + " at a time, " + parallel.transactions + " transactions");
+
+        assertTrue("Error: serial sync didn't wait for each response",
+                serial.totalMillis >= LOCATIONS * LATENCY_MILLIS);
+        assertTrue("Error: parallel sync took " + parallel.totalMillis + "ms",
+                parallel.totalMillis < LOCATIONS * LATENCY_MILLIS);
+        assertTrue("Error: parallel sync waited less than its share of responses",
+                parallel.totalMillis >= (LOCATIONS / PARALLELISM) * LATENCY_MILLIS);
+        assertEquals(LOCATIONS, parallel.count(WeatherSyncEngine.Status.UPDATED));
+    }
+
+    public void testUnchangedForecastsWriteNothing() {
+        sync(PARALLELISM);
+        WeatherSyncEngine.Report report = sync(PARALLELISM);
+
+        assertEquals("Error: requests weren't conditional: " + report,
+                LOCATIONS, report.count(WeatherSyncEngine.Status.NOT_MODIFIED));
+        assertEquals(0, report.transactions);
+        assertEquals(LOCATIONS, mServer.getNotModifiedCount());
+    }
+
+    public void testConcurrentSyncsJoinTheFetchInFlight() throws Exception {
+        long suppressed = WeatherSyncEngine.getSuppressedCount();
+        final WeatherSyncEngine.Report[] first = new WeatherSyncEngine.Report[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                first[0] = sync(PARALLELISM);
+            }
+        });
+        thread.start();
+        // the first sync's fetches are all queued or waiting on the server by now
+        Thread.sleep(LATENCY_MILLIS / 4);
+        WeatherSyncEngine.Report second = sync(PARALLELISM);
+        thread.join();
+
+        Log.d(LOG_TAG, "First sync: " + first[0] + "; second sync: " + second);
+        assertEquals("Error: a location was fetched twice", LOCATIONS, mServer.getRequestCount());
+        assertEquals("Error: duplicates weren't counted",
+                suppressed + LOCATIONS, WeatherSyncEngine.getSuppressedCount());
+        assertEquals(LOCATIONS, second.countJoined());
+        assertEquals(0, second.transactions);
+        assertEquals("Error: joined syncs didn't get the outcome: " + second,
+                LOCATIONS, second.count(WeatherSyncEngine.Status.UPDATED));
+        for (String setting : mSettings) {
+            assertEquals(14, countWeather(setting));
+        }
+    }
+
+    public void testCachedLocationsTakeNoLookups() throws Exception {
+        LocationIdCache cache = LocationIdCache.getInstance();
+        // stores the locations; the id cache learns them
+        sync(PARALLELISM);
+        mServer.setForecast(mForecast, "\"sync-2\"");
+        WeatherSyncEngine.Report uncached = sync(PARALLELISM, null);
+        mServer.setForecast(mForecast, "\"sync-3\"");
+        WeatherSyncEngine.Report first = sync(PARALLELISM, cache);
+        // the first sync's validators write mustn't have cost the second its cached ids
+        int warms = cache.getWarmCount();
+        mServer.setForecast(mForecast, "\"sync-4\"");
+        WeatherSyncEngine.Report second = sync(PARALLELISM, cache);
+
+        Log.d(LOG_TAG, "Sync of " + LOCATIONS + " stored locations: " + uncached.locationCalls +
+                " location calls without the id cache, " + first.locationCalls + " then " +
+                second.locationCalls + " with it");
+
+        assertEquals(LOCATIONS, uncached.count(WeatherSyncEngine.Status.UPDATED));
+        assertEquals(LOCATIONS, first.count(WeatherSyncEngine.Status.UPDATED));
+        assertEquals(LOCATIONS, second.count(WeatherSyncEngine.Status.UPDATED));
+        // an upsert and a lookup per group
+        assertTrue(uncached.locationCalls >= 2);
+        assertEquals("Error: a sync of cached locations looked them up: " + second,
+                0, second.locationCalls);
+        assertEquals("Error: the id cache was dropped between syncs",
+                warms, cache.getWarmCount());
+        for (String setting : mSettings) {
+            assertEquals("Error: forecast for " + setting + " went astray",
+                    14, countWeather(setting));
+        }
+    }
+
+    public void testPluggableTransportAndStore() throws Exception {
+        final byte[] body = mForecast.getBytes("UTF-8");
+        WeatherSyncEngine.Transport transport = new WeatherSyncEngine.Transport() {
+            @Override
+            public ForecastFetcher.Result fetch(String locationSetting,
+                                                ForecastValidators validators, int days)
+                    throws IOException {
+                ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+                ForecastParser.parse(new ByteArrayInputStream(body), forecast);
+                return new ForecastFetcher.Result(false, forecast,
+                        new ForecastValidators(ETAG, null, -1));
+            }
+        };
+        MemoryStore store = new MemoryStore();
+        WeatherSyncEngine engine = new WeatherSyncEngine(transport, store, PARALLELISM);
+        WeatherSyncEngine.Report report;
+        try {
+            report = engine.sync(mSettings);
+        } finally {
+            engine.shutdown();
+        }
+
+        assertEquals(LOCATIONS, report.count(WeatherSyncEngine.Status.UPDATED));
+        assertEquals(LOCATIONS, store.mLocationIds.size());
+        assertEquals(LOCATIONS * 14, store.mWeather.size());
+        for (String setting : mSettings) {
+            assertEquals(ETAG, store.mValidators.get(setting).etag);
+            assertEquals("Error: went to the provider", 0, countWeather(setting));
+        }
+        assertEquals("Error: went to the server", 0, mServer.getRequestCount());
+    }
+
+    // Keeps everything in memory, as an engine's own store might.
+    private static final class MemoryStore implements WeatherSyncEngine.Store {
+        final Map<String, Long> mLocationIds = new HashMap<String, Long>();
+        final List<ContentValues> mWeather = new ArrayList<ContentValues>();
+        final Map<String, ForecastValidators> mValidators =
+                new HashMap<String, ForecastValidators>();
+
+        @Override
+        public Map<String, ForecastValidators> queryValidators(List<String> locationSettings) {
+            Map<String, ForecastValidators> found = new HashMap<String, ForecastValidators>();
+            for (String setting : locationSettings) {
+                if (mValidators.containsKey(setting)) {
+                    found.put(setting, mValidators.get(setting));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public boolean findLocationIds(List<String> locationSettings, Map<String, Long> ids,
+                                       List<String> misses) {
+            for (String setting : locationSettings) {
+                if (mLocationIds.containsKey(setting)) {
+                    ids.put(setting, mLocationIds.get(setting));
+                } else {
+                    misses.add(setting);
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void insertLocations(List<ContentValues> locations, Map<String, Long> ids) {
+            for (ContentValues location : locations) {
+                String setting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+                if (!mLocationIds.containsKey(setting)) {
+                    mLocationIds.put(setting, (long) mLocationIds.size() + 1);
+                }
+                ids.put(setting, mLocationIds.get(setting));
+            }
+        }
+
+        @Override
+        public byte[] storeWeather(ForecastBatch rows, boolean notifyNow) {
+            mWeather.addAll(Arrays.asList(rows.toContentValues()));
+            byte[] outcomes = new byte[rows.size()];
+            Arrays.fill(outcomes, WeatherContract.INGEST_OUTCOME_INSERTED);
+            return outcomes;
+        }
+
+        @Override
+        public boolean storeValidators(Map<String, ForecastValidators> validators) {
+            mValidators.putAll(validators);
+            return true;
+        }
+    }
+
+    private WeatherSyncEngine.Report sync(int parallelism) {
+        return sync(parallelism, LocationIdCache.getInstance());
+    }
+
+    private WeatherSyncEngine.Report sync(int parallelism, LocationIdCache locationIds) {
+        WeatherSyncEngine engine = new WeatherSyncEngine(getContext().getContentResolver(),
+                new ForecastFetcher(mServer.getForecastUri()), parallelism, locationIds);
+        try {
+            return engine.sync(mSettings);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    private int countWeather(String setting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(setting), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deleteLocations() {
+        ContentResolver resolver = getContext().getContentResolver();
+        String[] settings = mSettings.toArray(new String[mSettings.size()]);
+        String selection = ForecastValidators.inSelection(
+                LocationEntry.COLUMN_LOCATION_SETTING, settings.length);
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, selection, settings, null);
+        try {
+            while (cursor.moveToNext()) {
+                resolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+        resolver.delete(LocationEntry.CONTENT_URI, selection, settings);
+    }
+}
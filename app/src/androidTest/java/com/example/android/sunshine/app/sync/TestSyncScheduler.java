@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Runs SyncScheduler on a fake clock.  The week-long simulation fires a periodic sync every
+    hour, as the fixed schedule did, against locations whose forecasts change at different
+    rates, and logs how many requests the scheduler saved against fetching every hour.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncScheduler.class.getSimpleName();
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // the days are counted from midnight UTC, as now / DAY does
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long TTL = 30 * MINUTE;
+    private static final long MIN_INTERVAL = HOUR;
+    private static final long MAX_INTERVAL = 6 * HOUR;
+    private static final double JITTER = 0.1;
+
+    private static final class FakeClock implements SyncScheduler.Clock {
+        long mNow = 1450000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+
+    private FakeClock mClock;
+    private SyncScheduler.MemoryStore mStore;
+    private SyncScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mStore = new SyncScheduler.MemoryStore();
+        mScheduler = new SyncScheduler(mStore, mClock, new Random(42), TTL, MIN_INTERVAL,
+                MAX_INTERVAL, JITTER);
+    }
+
+    public void testWeekOfHourlySyncs() {
+        // how often each location's forecast changes all over, in hours; 0 is only as days pass
+        long[] changeHours = {0, 0, 12, 3, 1};
+        int locations = changeHours.length;
+        int[] requests = new int[locations];
+        long[] lastSynced = new long[locations];
+        long[] worstStaleness = new long[locations];
+        long start = mClock.mNow;
+        int periods = (int) (7 * DAY / HOUR);
+
+        for (int period = 0; period < periods; period++) {
+            mClock.mNow = start + period * HOUR;
+            for (int i = 0; i < locations; i++) {
+                String setting = "location-" + i;
+                if (!mScheduler.isDue(setting)) {
+                    continue;
+                }
+                requests[i]++;
+                if (lastSynced[i] != 0) {
+                    worstStaleness[i] = Math.max(worstStaleness[i], mClock.mNow - lastSynced[i]);
+                }
+                lastSynced[i] = mClock.mNow;
+                mScheduler.onSynced(setting, WeatherSyncEngine.Status.UPDATED,
+                        SyncScheduler.dayHashes(forecast(mClock.mNow, changeHours[i])));
+            }
+        }
+
+        int total = 0;
+        for (int i = 0; i < locations; i++) {
+            total += requests[i];
+            Log.d(LOG_TAG, "Location changing every " + changeHours[i] + "h: " + requests[i] +
+                    " requests in a week, at most " + worstStaleness[i] / MINUTE +
+                    " minutes apart");
+            assertTrue("Error: went too long without a sync",
+                    worstStaleness[i] <= MAX_INTERVAL * (1 + JITTER) + HOUR);
+        }
+        int fixed = periods * locations;
+        Log.d(LOG_TAG, "Adaptive schedule: " + total + " requests in a week against " + fixed +
+                " hourly, " + (fixed - total) + " saved");
+
+        assertTrue("Error: the scheduler saved nothing", total < fixed);
+        assertTrue("Error: settled forecasts weren't synced less often",
+                requests[0] < requests[locations - 1]);
+        assertTrue("Error: a forecast that keeps changing was left behind",
+                worstStaleness[locations - 1] <= 2 * MIN_INTERVAL * (1 + JITTER));
+    }
+
+    public void testFreshDataIsSkippedWithinTtl() {
+        mScheduler = new SyncScheduler(mStore, mClock, new Random(42), TTL, 0, 0, 0);
+        assertTrue(mScheduler.isDue("6037"));
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.NOT_MODIFIED, null);
+
+        mClock.mNow += TTL - 1;
+        assertEquals(Collections.<String>emptyList(),
+                mScheduler.filterDue(Collections.singletonList("6037")));
+        assertEquals(1, mScheduler.getSkippedCount());
+        mClock.mNow += 1;
+        assertTrue("Error: data older than the TTL wasn't due", mScheduler.isDue("6037"));
+    }
+
+    public void testFailedSyncIsRetriedWithoutRefreshingTtl() {
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.UPDATED,
+                SyncScheduler.dayHashes(forecast(mClock.mNow, 0)));
+        long synced = mStore.get("6037").lastSyncedMillis;
+        mClock.mNow += 3 * HOUR;
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.FAILED, null);
+
+        SyncScheduler.Entry entry = mStore.get("6037");
+        assertEquals(synced, entry.lastSyncedMillis);
+        assertTrue(entry.nextSyncMillis <= mClock.mNow + MIN_INTERVAL * (1 + JITTER));
+    }
+
+    public void testIntervalFollowsHowMuchChanged() {
+        long[] settled = SyncScheduler.dayHashes(forecast(mClock.mNow, 0));
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.UPDATED, settled);
+        assertEquals(MIN_INTERVAL, mStore.get("6037").intervalMillis);
+
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.UPDATED, settled);
+        assertEquals(2 * MIN_INTERVAL, mStore.get("6037").intervalMillis);
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.NOT_MODIFIED, null);
+        assertEquals(4 * MIN_INTERVAL, mStore.get("6037").intervalMillis);
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.NOT_MODIFIED, null);
+        assertEquals(MAX_INTERVAL, mStore.get("6037").intervalMillis);
+
+        // every day different
+        mScheduler.onSynced("6037", WeatherSyncEngine.Status.UPDATED,
+                SyncScheduler.dayHashes(forecast(mClock.mNow, 1)));
+        assertEquals(MAX_INTERVAL / 2, mStore.get("6037").intervalMillis);
+    }
+
+    public void testJitterSpreadsLocationsSyncedTogether() {
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            mScheduler.onSynced("location-" + i, WeatherSyncEngine.Status.NOT_MODIFIED, null);
+            long next = mStore.get("location-" + i).nextSyncMillis;
+            earliest = Math.min(earliest, next);
+            latest = Math.max(latest, next);
+        }
+        long interval = 2 * MIN_INTERVAL;
+        assertTrue(earliest >= mClock.mNow + interval - (long) (interval * JITTER));
+        assertTrue(latest <= mClock.mNow + interval + (long) (interval * JITTER));
+        assertTrue("Error: locations synced together stayed together",
+                latest - earliest > interval * JITTER);
+    }
+
+    public void testPreferenceStoreRoundTrip() {
+        SyncScheduler.PreferenceStore store = new SyncScheduler.PreferenceStore(
+                getContext().getSharedPreferences("test_sync_schedule", 0));
+        long[] hashes = {Long.MIN_VALUE, -1, 0, 0x0123456789abcdefL, Long.MAX_VALUE};
+        store.put("6037", new SyncScheduler.Entry(1, 2, 3, hashes));
+        SyncScheduler.Entry entry = store.get("6037");
+        assertEquals(1, entry.lastSyncedMillis);
+        assertEquals(2, entry.intervalMillis);
+        assertEquals(3, entry.nextSyncMillis);
+        assertTrue(Arrays.equals(hashes, entry.dayHashes));
+        assertNull(store.get("unknown"));
+        getContext().getSharedPreferences("test_sync_schedule", 0).edit().clear().commit();
+    }
+
+    /*
+        A 14 day forecast as of now.  Each day's weather is fixed by its date, and by which
+        changeHours-long period now is in; with changeHours 0 it is fixed by its date alone,
+        so the only change from one sync to the next is days passing.
+     */
+    private static ForecastParser.Forecast forecast(long now, long changeHours) {
+        long today = now / DAY;
+        long version = changeHours == 0 ? 0 : now / (changeHours * HOUR);
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast(today, UTC);
+        forecast.onCity("Wellington", -41.29, 174.78);
+        for (int i = 0; i < 14; i++) {
+            ForecastParser.Day day = new ForecastParser.Day();
+            day.index = i;
+            day.dt = (today + i) * DAY / 1000;
+            long seed = (today + i) * 1000003 + version;
+            day.high = 10 + seed % 17;
+            day.low = day.high - 5 - seed % 3;
+            day.humidity = (int) (seed % 100);
+            day.pressure = 1000 + seed % 30;
+            day.windSpeed = seed % 11;
+            day.windDirection = seed % 360;
+            day.description = "Clear";
+            day.weatherId = 800;
+            forecast.onDay(day);
+        }
+        return forecast;
+    }
+}
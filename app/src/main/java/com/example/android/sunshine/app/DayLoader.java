@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.example.android.sunshine.app.data.WeatherLookups;
+
+/**
+ * Loads one day's weather through {@link WeatherLookups#getDay}, as a Bundle rather than a
+ * Cursor, and loads it again when the day's URI is notified, as a CursorLoader would.  The
+ * result is null when the day isn't stored.
+ */
+class DayLoader extends AsyncTaskLoader<Bundle> {
+
+    private final Uri mDayUri;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserving;
+    private boolean mLoaded;
+    private Bundle mDay;
+
+    DayLoader(Context context, Uri dayUri) {
+        super(context);
+        mDayUri = dayUri;
+    }
+
+    @Override
+    public Bundle loadInBackground() {
+        return WeatherLookups.getDay(getContext().getContentResolver(), mDayUri);
+    }
+
+    @Override
+    public void deliverResult(Bundle day) {
+        if (isReset()) {
+            return;
+        }
+        mDay = day;
+        mLoaded = true;
+        if (isStarted()) {
+            super.deliverResult(day);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // the provider notifies a location's weather URI, which covers its days
+            getContext().getContentResolver().registerContentObserver(mDayUri, true, mObserver);
+            mObserving = true;
+        }
+        if (mLoaded) {
+            deliverResult(mDay);
+        }
+        if (takeContentChanged() || !mLoaded) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mDay = null;
+        mLoaded = false;
+    }
+}
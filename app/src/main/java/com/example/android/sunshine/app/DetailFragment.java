@@ -1,12 +1,10 @@
 package com.example.android.sunshine.app;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.ShareActionProvider;
@@ -20,13 +18,14 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.TimeZone;
+
 /**
  * A placeholder fragment containing a simple view.
  */
-public class DetailFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class DetailFragment extends Fragment implements LoaderManager.LoaderCallbacks<Bundle> {
 
     static final String DETAIL_URI = "URI";
     private static final String LOG_TAG = DetailFragment.class.getSimpleName();
@@ -38,35 +37,6 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
 
     private static final int Detail_Loader = 0;
 
-    private static final String[] DETAIL_COLUMNS = {
-            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
-            WeatherEntry.COLUMN_DATE,
-            WeatherEntry.COLUMN_SHORT_DESC,
-            WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherEntry.COLUMN_HUMIDITY,
-            WeatherEntry.COLUMN_PRESSURE,
-            WeatherEntry.COLUMN_WIND_SPEED,
-            WeatherEntry.COLUMN_DEGREES,
-            WeatherEntry.COLUMN_WEATHER_ID,
-            // This works because the WeatherProvider returns location data joined with
-            // weather data, even though they're stored in two different tables.
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
-    };
-
-    // These indices are tied to DETAIL_COLUMNS.  If DETAIL_COLUMNS changes, these
-    // must change.
-    public static final int COL_WEATHER_ID = 0;
-    public static final int COL_WEATHER_DATE = 1;
-    public static final int COL_WEATHER_DESC = 2;
-    public static final int COL_WEATHER_MAX_TEMP = 3;
-    public static final int COL_WEATHER_MIN_TEMP = 4;
-    public static final int COL_WEATHER_HUMIDITY = 5;
-    public static final int COL_WEATHER_PRESSURE = 6;
-    public static final int COL_WEATHER_WIND_SPEED = 7;
-    public static final int COL_WEATHER_DEGREES = 8;
-    public static final int COL_WEATHER_CONDITION_ID = 9;
-
     private Uri mUri;
     /**
      * Private fields for referencing views in the view hierarchy
@@ -147,7 +117,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    public Loader<Bundle> onCreateLoader(int id, Bundle args) {
         Log.v(LOG_TAG, "In onCreateLoader");
         //We first get the intent that created this activity
 //        Intent intent = getActivity().getIntent();
@@ -165,68 +135,63 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
          * were using the intent.
          */
 
-        // Now create and return a CursorLoader that will take care of creating a cursor
-        // for the data being displayed
-        return new CursorLoader(
-                getActivity(),
-                mUri, //here we get the uri that we passed in via intent.setData
-                DETAIL_COLUMNS,
-                null,
-                null,
-                null
-        );
+        // Now create and return a DayLoader: the one row shown here comes back as a Bundle,
+        // through a provider call rather than a query and its cursor
+        return new DayLoader(getActivity(), mUri);
     }
 
     /**
-     * For detailactivity in the onloadfinished method we display the info queried by the cursor.
+     * For detailactivity in the onloadfinished method we display the day's info, keyed by its
+     * WeatherEntry columns.
      *
      * @param loader
      * @param data
      */
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+    public void onLoadFinished(Loader<Bundle> loader, Bundle data) {
         Log.v(LOG_TAG, "in onLoadFinished");
-        if (data != null && data.moveToFirst()) {
-            // Read weather condition ID from cursor
-            int weatherId = data.getInt(COL_WEATHER_CONDITION_ID);
+        if (data != null) {
+            // Read weather condition ID
+            int weatherId = data.getInt(WeatherEntry.COLUMN_WEATHER_ID);
             // Use placeholder Image
             Log.d("DetailFragment", "weatherID : " + weatherId);
             mIconView.setImageResource(Utility.getArtResourceForWeatherCondition(weatherId));
 
-            // Read date from cursor and update views for day of week and date
-            long date = data.getLong(COL_WEATHER_DATE);
-            String friendlyDateText = Utility.getDayName(getActivity(), date);
-            String dateText = Utility.getFormattedMonthDay(getActivity(), date);
+            // Read date and update views for day of week and date
+            long date = data.getLong(WeatherEntry.COLUMN_DATE);
+            TimeZone zone = TimeZone.getDefault();
+            String friendlyDateText = Utility.getDayName(getActivity(), date, zone);
+            String dateText = Utility.getFormattedMonthDay(getActivity(), date, zone);
             mFriendlyDateView.setText(friendlyDateText);
             mDateView.setText(dateText);
 
-            // Read description from cursor and update view
-            String description = data.getString(COL_WEATHER_DESC);
+            // Read description and update view
+            String description = data.getString(WeatherEntry.COLUMN_SHORT_DESC);
             mDescriptionView.setText(description);
 
-            // Read high temperature from cursor and update view
+            // Read high temperature and update view
             boolean isMetric = Utility.isMetric(getActivity());
 
-            double high = data.getDouble(COL_WEATHER_MAX_TEMP);
+            double high = data.getDouble(WeatherEntry.COLUMN_MAX_TEMP);
             String highString = Utility.formatTemperature(getActivity(), high, isMetric);
             mHighTempView.setText(highString);
 
-            // Read low temperature from cursor and update view
-            double low = data.getDouble(COL_WEATHER_MIN_TEMP);
+            // Read low temperature and update view
+            double low = data.getDouble(WeatherEntry.COLUMN_MIN_TEMP);
             String lowString = Utility.formatTemperature(getActivity(), low, isMetric);
             mLowTempView.setText(lowString);
 
-            // Read humidity from cursor and update view
-            float humidity = data.getFloat(COL_WEATHER_HUMIDITY);
+            // Read humidity and update view
+            float humidity = (float) data.getDouble(WeatherEntry.COLUMN_HUMIDITY);
             mHumidityView.setText(getActivity().getString(R.string.format_humidity, humidity));
 
-            // Read wind speed and direction from cursor and update view
-            float windSpeedStr = data.getFloat(COL_WEATHER_WIND_SPEED);
-            float windDirStr = data.getFloat(COL_WEATHER_DEGREES);
+            // Read wind speed and direction and update view
+            float windSpeedStr = (float) data.getDouble(WeatherEntry.COLUMN_WIND_SPEED);
+            float windDirStr = (float) data.getDouble(WeatherEntry.COLUMN_DEGREES);
             mWindView.setText(Utility.getFormattedWind(getActivity(), windSpeedStr, windDirStr));
 
-            // Read pressure from cursor and update view
-            float pressure = data.getFloat(COL_WEATHER_PRESSURE);
+            // Read pressure and update view
+            float pressure = (float) data.getDouble(WeatherEntry.COLUMN_PRESSURE);
             mPressureView.setText(getActivity().getString(R.string.format_pressure, pressure));
 
             // We still need this for the share intent
@@ -240,7 +205,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<Bundle> loader) {
         //do nothing as there is not data that we hold onto
     }
 }
\ No newline at end of file
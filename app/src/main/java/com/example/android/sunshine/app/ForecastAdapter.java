@@ -9,6 +9,8 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.TimeZone;
+
 /**
  * {@link ForecastAdapter} exposes a list of weather forecasts
  * from a {@link android.database.Cursor} to a {@link android.widget.ListView}.
@@ -18,10 +20,20 @@ public class ForecastAdapter extends CursorAdapter {
     private final int VIEW_TYPE_TODAY = 0;
     private final int VIEW_TYPE_FUTURE_DAY = 1;
 
+    // TimeZone.getDefault() copies the zone on every call, so bindView uses this one, resolved
+    // again each time the data changes
+    private TimeZone mZone = TimeZone.getDefault();
+
     public ForecastAdapter(Context context, Cursor c, int flags) {
         super(context, c, flags);
     }
 
+    @Override
+    public void notifyDataSetChanged() {
+        mZone = TimeZone.getDefault();
+        super.notifyDataSetChanged();
+    }
+
     private boolean mUseTodayLayout; // used to decide whether to display the todal layout normally or in larger view
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -131,7 +143,7 @@ public class ForecastAdapter extends CursorAdapter {
         // Read date from cursor
         long dateInMillis = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
         // Find tetview and set formatted date on it
-        viewHolder.dateView.setText(Utility.getFriendlyDayString(context, dateInMillis));
+        viewHolder.dateView.setText(Utility.getFriendlyDayString(context, dateInMillis, mZone));
 
         // Read weather forecast from cursor
         String description = cursor.getString(ForecastFragment.COL_WEATHER_DESC);
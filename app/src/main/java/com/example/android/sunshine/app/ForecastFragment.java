@@ -21,7 +21,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -54,21 +53,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     // Specify the columns we need.
     private static final String[] FORECAST_COLUMNS = {
             // In this case the id needs to be fully qualified with a table name, since
-            // the content provider joins the location & weather tables in the background
-            // (both have an _id column)
-            // On the one hand, that's annoying.  On the other, you can search the weather table
-            // using the location set by the user, which is only in the Location table.
-            // So the convenience is worth it.
+            // until the location has been synced the content provider joins the location &
+            // weather tables in the background (both have an _id column)
+            // Only weather columns are asked for: the location row (the coordinates for the
+            // map) comes once per cursor in its extras, rather than copied into every row.
 
             WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
             WeatherContract.WeatherEntry.COLUMN_DATE,
             WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
             WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -78,10 +73,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_DESC = 2;
     static final int COL_WEATHER_MAX_TEMP = 3;
     static final int COL_WEATHER_MIN_TEMP = 4;
-    static final int COL_LOCATION_SETTING = 5;
-    static final int COL_WEATHER_CONDITION_ID = 6;
-    static final int COL_COORD_LAT = 7;
-    static final int COL_COORD_LONG = 8;
+    static final int COL_WEATHER_CONDITION_ID = 5;
 
     private ListView mListView; //??
     private int mposition = ListView.INVALID_POSITION; //position fragment to hold the current position in the scroll
@@ -141,10 +133,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         if (null != mForecastAdapter) {
             Cursor c = mForecastAdapter.getCursor();
             if (null != c) {
-                c.moveToPosition(0);
-                String posLat = c.getString(COL_COORD_LAT);
-                String posLong = c.getString(COL_COORD_LONG);
-                Uri geoLocation = Uri.parse("geo:" + posLat + "," + posLong);
+                Bundle location = c.getExtras();
+                Uri geoLocation;
+                if (location.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT)) {
+                    geoLocation = Uri.parse("geo:" +
+                            location.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT) + "," +
+                            location.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+                } else {
+                    // not synced yet, so let the map app look the setting up
+                    geoLocation = Uri.parse("geo:0,0?q=" +
+                            Uri.encode(Utility.getPreferredLocation(getActivity())));
+                }
 
 
                 Intent intent = new Intent(Intent.ACTION_VIEW);
@@ -186,11 +185,18 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 //if it cannot seek to that position.
                 Cursor cursor = (Cursor) adapterView.getItemAtPosition(position);
                 if (cursor != null) {
-                    String locationSetting = Utility.getPreferredLocation(getActivity());
+                    long date = cursor.getLong(COL_WEATHER_DATE);
+                    Bundle location = cursor.getExtras();
+                    Uri dateUri;
+                    if (location.containsKey(WeatherContract.LocationEntry._ID)) {
+                        dateUri = WeatherContract.WeatherEntry.buildWeatherLocationIdWithDate(
+                                location.getLong(WeatherContract.LocationEntry._ID), date);
+                    } else {
+                        dateUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                                Utility.getPreferredLocation(getActivity()), date);
+                    }
                     //we use callback instead of launching a new intent. MainActivity implements the callback interface
-                    ((Callback) getActivity()).onItemSelected(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
-                            locationSetting, cursor.getLong(COL_WEATHER_DATE)
-                    ));
+                    ((Callback) getActivity()).onItemSelected(dateUri);
                 }
 
                 mposition = position;//this stores the current position as a field so that when device is rotated,
@@ -302,16 +308,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // dates after or including today.
         //Sort order: Ascending,, by date.
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis()
-        );
 
         Log.d("ForecastFragment.java", "Returning new cursor loader");
-        return new CursorLoader(getActivity(),
-                weatherForLocationUri,
+        return new ForecastLoader(getActivity(),
+                locationSetting,
+                System.currentTimeMillis(),
                 FORECAST_COLUMNS,
-                null,
-                null,
                 sortOrder);
 //        uri — The URI for the content to retrieve.
 //        projection — A list of which columns to return. Passing null will return all columns, which is inefficient.
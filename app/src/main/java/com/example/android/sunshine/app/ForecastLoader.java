@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v4.content.CursorLoader;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherLookups;
+
+/**
+ * Loads the forecast for a location setting through the
+ * weather_by_location/&lt;location _id&gt; URIs, which read the weather table without joining
+ * location on every row.
+ * <p/>
+ * The setting is turned into its location _id on the loader thread, once; until the location
+ * has been synced the setting's own URI is queried instead, and its change notification brings
+ * us back here to pick up the new _id.
+ */
+class ForecastLoader extends CursorLoader {
+
+    private final String mLocationSetting;
+    private final long mStartDate;
+    // -1 until the location row has been found
+    private long mLocationId = -1;
+
+    ForecastLoader(Context context, String locationSetting, long startDate,
+                   String[] projection, String sortOrder) {
+        super(context, WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, startDate), projection, null, null, sortOrder);
+        mLocationSetting = locationSetting;
+        mStartDate = startDate;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        if (mLocationId == -1) {
+            mLocationId = queryLocationId();
+        }
+        if (mLocationId == -1) {
+            setUri(WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                    mLocationSetting, mStartDate));
+            return super.loadInBackground();
+        }
+        setUri(WeatherContract.WeatherEntry.buildWeatherLocationIdWithStartDate(
+                mLocationId, mStartDate));
+        Cursor cursor = super.loadInBackground();
+        if (cursor != null && cursor.getExtras().isEmpty()) {
+            // the location row went away; look it up again next time
+            mLocationId = -1;
+        }
+        return cursor;
+    }
+
+    private long queryLocationId() {
+        Bundle location = WeatherLookups.getLocationMeta(getContext().getContentResolver(),
+                mLocationSetting);
+        return location != null ? location.getLong(WeatherContract.LocationEntry._ID) : -1;
+    }
+}
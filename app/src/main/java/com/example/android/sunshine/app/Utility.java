@@ -18,11 +18,14 @@ package com.example.android.sunshine.app;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.EpochDays;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class Utility {
     public static String getPreferredLocation(Context context) {
@@ -64,6 +67,44 @@ public class Utility {
     // back into date objects for comparison/processing.
     public static final String DATE_FORMAT = "yyyyMMdd";
 
+    /*
+        The day formats the list and detail views use, built once per thread and locale rather
+        than on every bind.  SimpleDateFormat isn't thread-safe, hence one set per thread.
+     */
+    private static final class DayFormats {
+        final Locale locale;
+        final SimpleDateFormat shortened;
+        final SimpleDateFormat dayName;
+        final SimpleDateFormat monthDay;
+        TimeZone zone;
+
+        DayFormats(Locale locale) {
+            this.locale = locale;
+            shortened = new SimpleDateFormat("EEE MMM dd", locale);
+            dayName = new SimpleDateFormat("EEEE", locale);
+            monthDay = new SimpleDateFormat("MMMM dd", locale);
+        }
+    }
+
+    private static final ThreadLocal<DayFormats> sDayFormats = new ThreadLocal<DayFormats>();
+
+    private static DayFormats getDayFormats(TimeZone zone) {
+        Locale locale = Locale.getDefault();
+        DayFormats formats = sDayFormats.get();
+        if (formats == null || !formats.locale.equals(locale)) {
+            formats = new DayFormats(locale);
+            sDayFormats.set(formats);
+        }
+        // callers resolve the zone once per pass, so this is usually the same object
+        if (formats.zone != zone) {
+            formats.shortened.setTimeZone(zone);
+            formats.dayName.setTimeZone(zone);
+            formats.monthDay.setTimeZone(zone);
+            formats.zone = zone;
+        }
+        return formats;
+    }
+
     /**
      * Helper method to convert the database representation of the date into something to display
      * to users.  As classy and polished a user experience as "20140102" is, we can do better.
@@ -73,34 +114,39 @@ public class Utility {
      * @return a user-friendly representation of the date.
      */
     public static String getFriendlyDayString(Context context, long dateInMillis) {
+        return getFriendlyDayString(context, dateInMillis, TimeZone.getDefault());
+    }
+
+    /**
+     * {@link #getFriendlyDayString(Context, long)} in the given zone, for callers formatting
+     * many dates that resolve the default zone once rather than per date.
+     */
+    public static String getFriendlyDayString(Context context, long dateInMillis,
+                                              TimeZone zone) {
         // The day string for forecast uses the following logic:
         // For today: "Today, June 8"
         // For tomorrow:  "Tomorrow"
         // For the next 5 days: "Wednesday" (just the day name)
         // For all days after that: "Mon Jun 8"
 
-        Time time = new Time();
-        time.setToNow();
-        long currentTime = System.currentTimeMillis();
-        int julianDay = Time.getJulianDay(dateInMillis, time.gmtoff);
-        int currentJulianDay = Time.getJulianDay(currentTime, time.gmtoff);
+        long day = EpochDays.toEpochDay(dateInMillis, zone);
+        long today = EpochDays.toEpochDay(System.currentTimeMillis(), zone);
 
         // If the date we're building the String for is today's date, the format
         // is "Today, June 24"
-        if (julianDay == currentJulianDay) {
-            String today = context.getString(R.string.today);
+        if (day == today) {
+            String todayName = context.getString(R.string.today);
             int formatId = R.string.format_full_friendly_date;
             return String.format(context.getString(
                     formatId,
-                    today,
-                    getFormattedMonthDay(context, dateInMillis)));
-        } else if (julianDay < currentJulianDay + 7) {
+                    todayName,
+                    getFormattedMonthDay(context, dateInMillis, zone)));
+        } else if (day < today + 7) {
             // If the input date is less than a week in the future, just return the day name.
-            return getDayName(context, dateInMillis);
+            return getDayName(context, dateInMillis, zone);
         } else {
             // Otherwise, use the form "Mon Jun 3"
-            SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
-            return shortenedDateFormat.format(dateInMillis);
+            return getDayFormats(zone).shortened.format(dateInMillis);
         }
     }
 
@@ -113,23 +159,25 @@ public class Utility {
      * @return
      */
     public static String getDayName(Context context, long dateInMillis) {
+        return getDayName(context, dateInMillis, TimeZone.getDefault());
+    }
+
+    /**
+     * {@link #getDayName(Context, long)} in the given zone.
+     */
+    public static String getDayName(Context context, long dateInMillis, TimeZone zone) {
         // If the date is today, return the localized version of "Today" instead of the actual
         // day name.
 
-        Time t = new Time();
-        t.setToNow();
-        int julianDay = Time.getJulianDay(dateInMillis, t.gmtoff);
-        int currentJulianDay = Time.getJulianDay(System.currentTimeMillis(), t.gmtoff);
-        if (julianDay == currentJulianDay) {
+        long day = EpochDays.toEpochDay(dateInMillis, zone);
+        long today = EpochDays.toEpochDay(System.currentTimeMillis(), zone);
+        if (day == today) {
             return context.getString(R.string.today);
-        } else if (julianDay == currentJulianDay + 1) {
+        } else if (day == today + 1) {
             return context.getString(R.string.tomorrow);
         } else {
-            Time time = new Time();
-            time.setToNow();
             // Otherwise, the format is just the day of the week (e.g "Wednesday".
-            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
-            return dayFormat.format(dateInMillis);
+            return getDayFormats(zone).dayName.format(dateInMillis);
         }
     }
 
@@ -142,12 +190,15 @@ public class Utility {
      * @return The day in the form of a string formatted "December 6"
      */
     public static String getFormattedMonthDay(Context context, long dateInMillis) {
-        Time time = new Time();
-        time.setToNow();
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
-        SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
-        String monthDayString = monthDayFormat.format(dateInMillis);
-        return monthDayString;
+        return getFormattedMonthDay(context, dateInMillis, TimeZone.getDefault());
+    }
+
+    /**
+     * {@link #getFormattedMonthDay(Context, long)} in the given zone.
+     */
+    public static String getFormattedMonthDay(Context context, long dateInMillis,
+                                              TimeZone zone) {
+        return getDayFormats(zone).monthDay.format(dateInMillis);
     }
 
     /**
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Calendar days as plain numbers: an epoch day counts days since 1970-01-01 in some time zone,
+ * so "today", "tomorrow" and "the start of this day" are integer arithmetic on millis and a
+ * zone offset.  Nothing here allocates, unlike android.text.format.Time.
+ * <p/>
+ * The zone is always explicit.  TimeZone.getDefault() returns a fresh copy on every call, so
+ * code converting many dates should look it up once and pass it in.
+ */
+public final class EpochDays {
+
+    public static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private EpochDays() {
+    }
+
+    /**
+     * @return the day containing the instant, for a zone with a fixed offset from UTC.
+     */
+    public static long toEpochDay(long millis, int offsetMillis) {
+        return floorDiv(millis + offsetMillis, DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the day containing the instant in the given zone.
+     */
+    public static long toEpochDay(long millis, TimeZone zone) {
+        return toEpochDay(millis, zone.getOffset(millis));
+    }
+
+    /**
+     * @return the instant the day starts, for a zone with a fixed offset from UTC.
+     */
+    public static long startOfDayMillis(long epochDay, int offsetMillis) {
+        return epochDay * DAY_IN_MILLIS - offsetMillis;
+    }
+
+    /**
+     * @return the instant the day starts in the given zone: its local midnight, the earlier one
+     * if the clocks go back over midnight, or the moment they jump if they skip midnight.
+     */
+    public static long startOfDayMillis(long epochDay, TimeZone zone) {
+        long wallMidnight = epochDay * DAY_IN_MILLIS;
+        // Local midnight is within 14 hours of wallMidnight, so these two offsets bracket it.
+        // (Zones never change offset twice in two days.)
+        int before = zone.getOffset(wallMidnight - DAY_IN_MILLIS);
+        int after = zone.getOffset(wallMidnight + DAY_IN_MILLIS);
+        long startBefore = wallMidnight - before;
+        if (before == after) {
+            return startBefore;
+        }
+        // An offset change near midnight: keep the candidates that really are midnight.
+        long startAfter = wallMidnight - after;
+        boolean beforeIsMidnight = zone.getOffset(startBefore) == before;
+        boolean afterIsMidnight = zone.getOffset(startAfter) == after;
+        if (beforeIsMidnight && afterIsMidnight) {
+            return Math.min(startBefore, startAfter);
+        } else if (beforeIsMidnight) {
+            return startBefore;
+        } else if (afterIsMidnight) {
+            return startAfter;
+        }
+        // midnight was skipped; the day starts when the clocks jump forward
+        return wallMidnight - Math.min(before, after);
+    }
+
+    /**
+     * @return the start of the day containing the instant in the given zone.
+     */
+    public static long normalize(long millis, TimeZone zone) {
+        return startOfDayMillis(toEpochDay(millis, zone), zone);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Weather rows held column by column, in parallel primitive arrays, for ingesting without a
+ * ContentValues -- and the boxed values and HashMap inside it -- per row.  Descriptions are
+ * interned: each distinct one is kept once, and rows hold its index.  OWM only has a handful,
+ * so a batch of any size holds a handful of Strings.
+ * <p/>
+ * Goes to the provider whole through {@link WeatherContract#METHOD_INGEST_WEATHER_BATCH}.
+ * Not thread safe.
+ */
+public final class ForecastBatch implements Parcelable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize;
+    private long[] mLocationIds;
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private int[] mDescriptions;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    // the interned descriptions, by the index rows hold
+    private String[] mDescriptionTable = new String[4];
+    private int mDescriptionCount;
+    private final Map<String, Integer> mDescriptionIndex = new HashMap<String, Integer>();
+
+    public ForecastBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the rows to make room for up front; the batch grows past it as needed
+     */
+    public ForecastBatch(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param date the day, in milliseconds; the provider normalizes it as it would a
+     *             bulkInserted row's
+     * @return the row's index
+     */
+    public int add(long locationId, long date, int weatherId, String description, double minTemp,
+                   double maxTemp, double humidity, double pressure, double windSpeed,
+                   double degrees) {
+        if (description == null) {
+            throw new IllegalArgumentException("Weather row has no description");
+        }
+        if (mSize == mDates.length) {
+            grow(mSize * 2);
+        }
+        int row = mSize++;
+        mLocationIds[row] = locationId;
+        mDates[row] = date;
+        mWeatherIds[row] = weatherId;
+        mDescriptions[row] = intern(description);
+        mMinTemps[row] = minTemp;
+        mMaxTemps[row] = maxTemp;
+        mHumidities[row] = humidity;
+        mPressures[row] = pressure;
+        mWindSpeeds[row] = windSpeed;
+        mDegrees[row] = degrees;
+        return row;
+    }
+
+    /**
+     * Appends every row of other, under locationId instead of their own.
+     */
+    public void addAll(ForecastBatch other, long locationId) {
+        for (int row = 0; row < other.mSize; row++) {
+            add(locationId, other.mDates[row], other.mWeatherIds[row],
+                    other.mDescriptionTable[other.mDescriptions[row]], other.mMinTemps[row],
+                    other.mMaxTemps[row], other.mHumidities[row], other.mPressures[row],
+                    other.mWindSpeeds[row], other.mDegrees[row]);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Empties the batch, keeping its arrays and descriptions for the next rows.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public long getLocationId(int row) {
+        return mLocationIds[check(row)];
+    }
+
+    public long getDate(int row) {
+        return mDates[check(row)];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[check(row)];
+    }
+
+    public String getDescription(int row) {
+        return mDescriptionTable[mDescriptions[check(row)]];
+    }
+
+    public double getMinTemp(int row) {
+        return mMinTemps[check(row)];
+    }
+
+    public double getMaxTemp(int row) {
+        return mMaxTemps[check(row)];
+    }
+
+    public double getHumidity(int row) {
+        return mHumidities[check(row)];
+    }
+
+    public double getPressure(int row) {
+        return mPressures[check(row)];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[check(row)];
+    }
+
+    public double getDegrees(int row) {
+        return mDegrees[check(row)];
+    }
+
+    /**
+     * @return the row's {@link WeatherEntry#contentHash}
+     */
+    public long contentHash(int row) {
+        check(row);
+        return WeatherEntry.contentHash(mWeatherIds[row],
+                mDescriptionTable[mDescriptions[row]], mMinTemps[row], mMaxTemps[row],
+                mHumidities[row], mPressures[row], mWindSpeeds[row], mDegrees[row]);
+    }
+
+    /**
+     * @return the rows as a weather bulkInsert takes them, for providers without the batch
+     * ingest
+     */
+    public ContentValues[] toContentValues() {
+        ContentValues[] values = new ContentValues[mSize];
+        for (int row = 0; row < mSize; row++) {
+            ContentValues value = new ContentValues();
+            value.put(WeatherEntry.COLUMN_LOC_KEY, mLocationIds[row]);
+            value.put(WeatherEntry.COLUMN_DATE, mDates[row]);
+            value.put(WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[row]);
+            value.put(WeatherEntry.COLUMN_SHORT_DESC, mDescriptionTable[mDescriptions[row]]);
+            value.put(WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[row]);
+            value.put(WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[row]);
+            value.put(WeatherEntry.COLUMN_HUMIDITY, mHumidities[row]);
+            value.put(WeatherEntry.COLUMN_PRESSURE, mPressures[row]);
+            value.put(WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds[row]);
+            value.put(WeatherEntry.COLUMN_DEGREES, mDegrees[row]);
+            values[row] = value;
+        }
+        return values;
+    }
+
+    private int intern(String description) {
+        Integer index = mDescriptionIndex.get(description);
+        if (index != null) {
+            return index;
+        }
+        if (mDescriptionCount == mDescriptionTable.length) {
+            mDescriptionTable = Arrays.copyOf(mDescriptionTable, mDescriptionCount * 2);
+        }
+        mDescriptionTable[mDescriptionCount] = description;
+        mDescriptionIndex.put(description, mDescriptionCount);
+        return mDescriptionCount++;
+    }
+
+    private int check(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + mSize);
+        }
+        return row;
+    }
+
+    private void allocate(int capacity) {
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    private void grow(int capacity) {
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    // The descriptions, then the rows column by column; only the rows in use are written.
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mDescriptionCount);
+        for (int i = 0; i < mDescriptionCount; i++) {
+            dest.writeString(mDescriptionTable[i]);
+        }
+        dest.writeInt(mSize);
+        for (int row = 0; row < mSize; row++) {
+            dest.writeLong(mLocationIds[row]);
+            dest.writeLong(mDates[row]);
+            dest.writeInt(mWeatherIds[row]);
+            dest.writeInt(mDescriptions[row]);
+            dest.writeDouble(mMinTemps[row]);
+            dest.writeDouble(mMaxTemps[row]);
+            dest.writeDouble(mHumidities[row]);
+            dest.writeDouble(mPressures[row]);
+            dest.writeDouble(mWindSpeeds[row]);
+            dest.writeDouble(mDegrees[row]);
+        }
+    }
+
+    private ForecastBatch(Parcel in) {
+        int descriptions = in.readInt();
+        mDescriptionTable = new String[Math.max(descriptions, 1)];
+        for (int i = 0; i < descriptions; i++) {
+            intern(in.readString());
+        }
+        int size = in.readInt();
+        allocate(Math.max(size, 1));
+        for (int row = 0; row < size; row++) {
+            mLocationIds[row] = in.readLong();
+            mDates[row] = in.readLong();
+            mWeatherIds[row] = in.readInt();
+            int description = in.readInt();
+            if (description < 0 || description >= mDescriptionCount) {
+                throw new IllegalArgumentException("Row " + row + " has no description");
+            }
+            mDescriptions[row] = description;
+            mMinTemps[row] = in.readDouble();
+            mMaxTemps[row] = in.readDouble();
+            mHumidities[row] = in.readDouble();
+            mPressures[row] = in.readDouble();
+            mWindSpeeds[row] = in.readDouble();
+            mDegrees[row] = in.readDouble();
+        }
+        mSize = size;
+    }
+
+    public static final Creator<ForecastBatch> CREATOR = new Creator<ForecastBatch>() {
+        @Override
+        public ForecastBatch createFromParcel(Parcel in) {
+            return new ForecastBatch(in);
+        }
+
+        @Override
+        public ForecastBatch[] newArray(int size) {
+            return new ForecastBatch[size];
+        }
+    };
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The _id of each location row, by location_setting, for the ingest path, so storing a forecast
+ * doesn't take a provider query to find the row its weather belongs to.
+ * <p/>
+ * The cache is warmed from the whole location table once, then learns the ids of the
+ * locations its callers resolve.  Ids never change while their row exists, so only removing
+ * rows or changing their settings can make an entry wrong: WeatherProvider drops every entry
+ * when such a write commits, and the cache warms again on next use.  That only holds while
+ * the provider runs in this process, as it does.
+ * <p/>
+ * Callers that resolve ids through the provider put them with the {@link #getGeneration
+ * generation} read before they started, so ids read before a delete committed are not kept.
+ */
+public final class LocationIdCache {
+
+    private static final String[] COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    // guarded by this
+    private final Map<String, Long> mIds = new HashMap<String, Long>();
+    private boolean mWarm;
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private int mWarmCount;
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    private LocationIdCache() {
+    }
+
+    public synchronized boolean isWarm() {
+        return mWarm;
+    }
+
+    /**
+     * @return a number that changes whenever entries are dropped.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Loads every location row, unless the cache is already warm.
+     *
+     * @return true if the location table was queried.
+     */
+    public boolean warm(ContentResolver resolver) {
+        int generation = getGeneration();
+        if (isWarm()) {
+            return false;
+        }
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI, COLUMNS, null, null, null);
+        if (cursor == null) {
+            return true;
+        }
+        Map<String, Long> ids = new HashMap<String, Long>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mIds.putAll(ids);
+                mWarm = true;
+                mWarmCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the cached id of each of the settings that has one.  The others are added to
+     * misses, for the caller to resolve.
+     */
+    public synchronized Map<String, Long> lookup(Collection<String> locationSettings,
+                                                 Collection<String> misses) {
+        Map<String, Long> found = new HashMap<String, Long>(locationSettings.size());
+        for (String setting : locationSettings) {
+            Long id = mIds.get(setting);
+            if (id != null) {
+                found.put(setting, id);
+                mHitCount++;
+            } else {
+                misses.add(setting);
+                mMissCount++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Caches ids resolved through the provider, unless entries were dropped since the caller
+     * read generation.
+     */
+    public synchronized void putAll(Map<String, Long> ids, int generation) {
+        if (generation == mGeneration) {
+            mIds.putAll(ids);
+        }
+    }
+
+    /**
+     * Drops every entry.  The next caller warms the cache again.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mIds.clear();
+        mWarm = false;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how many times the cache has been loaded from the location table.
+     */
+    public synchronized int getWarmCount() {
+        return mWarmCount;
+    }
+}
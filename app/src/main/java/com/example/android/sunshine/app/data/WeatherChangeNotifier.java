@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns the rows touched by a provider write into as few content notifications as possible.
+ * <p/>
+ * While a write is open the provider marks the (location_setting, date) keys of the weather
+ * rows it wrote, plus any URI it can't scope more precisely.  When the outermost write
+ * commits, the keys become one notification per weather/&lt;location&gt; URI (and per
+ * weather_by_location/&lt;location _id&gt; URI), so loaders watching other locations are left
+ * alone.  Commits landing inside the debounce window are merged and sent together.
+ */
+class WeatherChangeNotifier {
+
+    // SELECT location_setting FROM location WHERE _id = ?
+    private static final String sLocationSettingQuery =
+            "SELECT " + LocationEntry.COLUMN_LOCATION_SETTING + " FROM " +
+                    LocationEntry.TABLE_NAME + " WHERE " + LocationEntry._ID + " = ?";
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private volatile long mDebounceMillis;
+
+    private volatile CommitListener mCommitListener;
+
+    private final ThreadLocal<WriteScope> mOpenWrites = new ThreadLocal<WriteScope>();
+
+    private final Object mLock = new Object();
+    // Committed changes waiting for the debounce window to close; guarded by mLock.
+    private ChangeSet mPending;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            ChangeSet changes;
+            synchronized (mLock) {
+                changes = mPending;
+                mPending = null;
+            }
+            if (changes != null) {
+                dispatch(changes);
+            }
+        }
+    };
+
+    WeatherChangeNotifier(ContentResolver resolver, long debounceMillis) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * @param debounceMillis how long to hold committed changes before notifying; zero or less
+     *                       notifies as soon as the write commits.
+     */
+    void setDebounceMillis(long debounceMillis) {
+        mDebounceMillis = debounceMillis;
+    }
+
+    long getDebounceMillis() {
+        return mDebounceMillis;
+    }
+
+    /**
+     * @param listener told about every committed write, on the writing thread, before the
+     *                 write returns to its caller and regardless of the debounce window.
+     */
+    void setCommitListener(CommitListener listener) {
+        mCommitListener = listener;
+    }
+
+    /**
+     * @return true if the calling thread is inside a write, and so may see uncommitted rows.
+     */
+    boolean isWriteOpen() {
+        return mOpenWrites.get() != null;
+    }
+
+    /**
+     * Opens a write on the calling thread.  Writes nest; only the outermost endWrite notifies.
+     */
+    void beginWrite() {
+        WriteScope scope = mOpenWrites.get();
+        if (scope == null) {
+            scope = new WriteScope();
+            mOpenWrites.set(scope);
+        }
+        scope.depth++;
+    }
+
+    /**
+     * Closes a write.  When it's the outermost one and it committed, its changes are
+     * scheduled for notification; otherwise they are dropped.
+     */
+    void endWrite(boolean committed) {
+        WriteScope scope = currentScope();
+        if (--scope.depth > 0) {
+            return;
+        }
+        mOpenWrites.remove();
+        if (committed && !scope.changes.isEmpty()) {
+            CommitListener listener = mCommitListener;
+            if (listener != null) {
+                listener.onCommit(scope.changes);
+            }
+            schedule(scope.changes);
+        }
+    }
+
+    /**
+     * Notifies the committed changes still waiting for the debounce window now, on the
+     * calling thread, and closes the window, so the next commit opens a new one.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+        mFlush.run();
+    }
+
+    /**
+     * Records a weather row written for the given location.  Must be called inside the write's
+     * transaction so a location inserted by the same write can still be resolved.
+     */
+    void markWeather(SQLiteDatabase db, long locationId, long date) {
+        WriteScope scope = currentScope();
+        String locationSetting = scope.locationSettings.get(locationId);
+        if (locationSetting == null && !scope.locationSettings.containsKey(locationId)) {
+            locationSetting = lookupLocationSetting(db, locationId);
+            scope.locationSettings.put(locationId, locationSetting);
+        }
+        if (locationSetting == null) {
+            // can't scope a row whose location we don't know, so tell everyone
+            scope.changes.uris.add(WeatherEntry.CONTENT_URI);
+        } else {
+            scope.changes.addWeather(locationSetting, date);
+            scope.changes.locationIds.add(locationId);
+        }
+    }
+
+    /**
+     * Records a change that can only be described by its URI, e.g. an update with an
+     * arbitrary selection.
+     */
+    void markUri(Uri uri) {
+        currentScope().changes.uris.add(uri);
+    }
+
+    /**
+     * Records that location rows were deleted, or may have had their _id or location_setting
+     * changed, so ids cached by setting may no longer hold.
+     */
+    void markLocationKeysChanged() {
+        currentScope().changes.locationKeysChanged = true;
+    }
+
+    private WriteScope currentScope() {
+        WriteScope scope = mOpenWrites.get();
+        if (scope == null) {
+            throw new IllegalStateException("No write open on this thread");
+        }
+        return scope;
+    }
+
+    private void schedule(ChangeSet changes) {
+        long debounceMillis = mDebounceMillis;
+        if (debounceMillis <= 0) {
+            dispatch(changes);
+            return;
+        }
+        synchronized (mLock) {
+            if (mPending == null) {
+                mPending = new ChangeSet();
+                mHandler.postDelayed(mFlush, debounceMillis);
+            }
+            mPending.addAll(changes);
+        }
+    }
+
+    private void dispatch(ChangeSet changes) {
+        for (Uri uri : changes.uris) {
+            mResolver.notifyChange(uri, null);
+        }
+        // A notification on weather itself already reaches every weather/<location> observer;
+        // the weather_by_location/<id> ones live under a path of their own.
+        if (changes.uris.contains(WeatherEntry.CONTENT_URI)) {
+            mResolver.notifyChange(WeatherEntry.LOCATION_ID_CONTENT_URI, null);
+            return;
+        }
+        for (String locationSetting : changes.weather.keySet()) {
+            mResolver.notifyChange(WeatherEntry.buildWeatherLocation(locationSetting), null);
+        }
+        // weather_by_location/<id> cursors carry their location row as extras, so any location
+        // write goes to all of them; otherwise just to the locations whose weather changed.
+        if (changes.uris.contains(LocationEntry.CONTENT_URI)) {
+            mResolver.notifyChange(WeatherEntry.LOCATION_ID_CONTENT_URI, null);
+            return;
+        }
+        for (Long locationId : changes.locationIds) {
+            mResolver.notifyChange(WeatherEntry.buildWeatherLocationId(locationId), null);
+        }
+    }
+
+    private static String lookupLocationSetting(SQLiteDatabase db, long locationId) {
+        try {
+            return DatabaseUtils.stringForQuery(db, sLocationSettingQuery,
+                    new String[]{Long.toString(locationId)});
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    interface CommitListener {
+        void onCommit(ChangeSet changes);
+    }
+
+    /**
+     * The keys and URIs touched by one or more writes.
+     */
+    static final class ChangeSet {
+        // location_setting -> normalized dates of the weather rows written for it
+        final Map<String, Set<Long>> weather = new HashMap<String, Set<Long>>();
+        final Set<Long> locationIds = new HashSet<Long>();
+        final Set<Uri> uris = new LinkedHashSet<Uri>();
+        boolean locationKeysChanged;
+
+        void addWeather(String locationSetting, long date) {
+            Set<Long> dates = weather.get(locationSetting);
+            if (dates == null) {
+                dates = new HashSet<Long>();
+                weather.put(locationSetting, dates);
+            }
+            dates.add(date);
+        }
+
+        void addAll(ChangeSet other) {
+            for (Map.Entry<String, Set<Long>> entry : other.weather.entrySet()) {
+                for (Long date : entry.getValue()) {
+                    addWeather(entry.getKey(), date);
+                }
+            }
+            locationIds.addAll(other.locationIds);
+            uris.addAll(other.uris);
+            locationKeysChanged |= other.locationKeysChanged;
+        }
+
+        boolean isEmpty() {
+            return weather.isEmpty() && uris.isEmpty();
+        }
+    }
+
+    private static final class WriteScope {
+        int depth;
+        final ChangeSet changes = new ChangeSet();
+        // location _id -> location_setting, or null when the row doesn't exist
+        final Map<Long, String> locationSettings = new HashMap<Long, String>();
+    }
+}
@@ -19,7 +19,8 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +44,90 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    // weather_by_location/<location _id>: weather addressed by the location row instead of its
+    // setting.  A path of its own, as any segment under weather/ is a possible location setting.
+    public static final String PATH_WEATHER_BY_LOCATION_ID = "weather_by_location";
+    public static final String PATH_EXPORT = "export";
+
+    // Read-only: every location and weather row as a WeatherExportStream, streamed through a
+    // pipe by ContentResolver.openInputStream or openTypedAssetFileDescriptor with EXPORT_TYPE.
+    // Only for reading whole; query() doesn't know it.
+    public static final Uri EXPORT_URI =
+            BASE_CONTENT_URI.buildUpon().appendPath(PATH_EXPORT).build();
+    public static final String EXPORT_TYPE =
+            "application/vnd." + CONTENT_AUTHORITY + "." + PATH_EXPORT;
+
+    // ContentProvider.call() method returning the provider's query cache counters in a Bundle,
+    // under the QUERY_CACHE_* keys.  Used to size the cache (R.integer.provider_query_cache_kb).
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "getQueryCacheStats";
+    public static final String QUERY_CACHE_HITS = "hits";
+    public static final String QUERY_CACHE_MISSES = "misses";
+    public static final String QUERY_CACHE_EVICTIONS = "evictions";
+    public static final String QUERY_CACHE_INVALIDATIONS = "invalidations";
+    public static final String QUERY_CACHE_ENTRIES = "entries";
+    public static final String QUERY_CACHE_SIZE_BYTES = "size_bytes";
+    public static final String QUERY_CACHE_MAX_BYTES = "max_bytes";
+
+    // ContentProvider.call() method returning what the weather retention policy reclaimed since
+    // the provider started, and the current table sizes, under RETENTION_* keys.
+    public static final String METHOD_GET_RETENTION_STATS = "getRetentionStats";
+    public static final String RETENTION_WEATHER_ROWS_DELETED = "weather_rows_deleted";
+    public static final String RETENTION_LOCATIONS_DELETED = "locations_deleted";
+    public static final String RETENTION_WEATHER_ROWS = "weather_rows";
+    public static final String RETENTION_LOCATION_ROWS = "location_rows";
+
+    // ContentProvider.call() method storing weather rows with the semantics of a weather
+    // bulkInsert, except that a row whose content is what is already stored for its
+    // (location, date) is left alone, and a changed row is updated in place and keeps its _id.
+    // Only rows written are notified.  The rows go in the extras under INGEST_VALUES as a
+    // ContentValues array.  The result counts the rows under the INGEST_* keys, and under
+    // INGEST_OUTCOMES has a byte per row, in order, holding its INGEST_OUTCOME_*.  With
+    // INGEST_NOTIFY_NOW true in the extras, the ingest and any earlier writes still waiting out
+    // the provider's notification debounce are notified, together, before the call returns.
+    public static final String METHOD_INGEST_WEATHER_DELTA = "ingestWeatherDelta";
+    public static final String INGEST_VALUES = "values";
+    public static final String INGEST_NOTIFY_NOW = "notify_now";
+    public static final String INGEST_UNCHANGED = "unchanged";
+    public static final String INGEST_UPDATED = "updated";
+    public static final String INGEST_INSERTED = "inserted";
+    public static final String INGEST_OUTCOMES = "outcomes";
+    public static final byte INGEST_OUTCOME_FAILED = 0;
+    public static final byte INGEST_OUTCOME_UNCHANGED = 1;
+    public static final byte INGEST_OUTCOME_UPDATED = 2;
+    public static final byte INGEST_OUTCOME_INSERTED = 3;
+
+    // ContentProvider.call() method doing METHOD_INGEST_WEATHER_DELTA's ingest, with the same
+    // result and INGEST_NOTIFY_NOW, for rows sent as a ForecastBatch under INGEST_BATCH rather
+    // than as ContentValues.  The rows are bound straight from the batch's arrays.
+    public static final String METHOD_INGEST_WEATHER_BATCH = "ingestWeatherBatch";
+    public static final String INGEST_BATCH = "batch";
+
+    // ContentProvider.call() method storing weather rows exactly as a weather bulkInsert would,
+    // read off a WeatherIngestStream rather than marshalled as ContentValues.  The read end of
+    // a pipe goes in the extras under INGEST_STREAM as a ParcelFileDescriptor, which the
+    // provider closes; the rows are decoded and written a few at a time inside one transaction,
+    // so a stream of any length takes the same memory.  The result has the number of rows
+    // inserted or updated under INGEST_ROWS.  A stream that is broken off or malformed stores
+    // nothing, and the call throws.  WeatherIngestStream.ingest does the client's side.
+    public static final String METHOD_INGEST_WEATHER_STREAM = "ingestWeatherStream";
+    public static final String INGEST_STREAM = "stream";
+    public static final String INGEST_ROWS = "rows";
+
+    // ContentProvider.call() methods looking up a single row without a Cursor, each returning
+    // a Bundle of its columns under their WeatherEntry or LocationEntry names, or null when
+    // there's no such row.  METHOD_GET_DAY takes a weather/<setting>/<date> or
+    // weather_by_location/<location _id>/<date> URI as its arg, and returns what a query of it
+    // would.  METHOD_GET_TODAY_SUMMARY and METHOD_GET_LOCATION_META take a location setting:
+    // the first returns the date, weather id, description, min and max of the setting's first
+    // day from today on, the second its location row.  WeatherLookups has the client's side.
+    public static final String METHOD_GET_DAY = "getDay";
+    public static final String METHOD_GET_TODAY_SUMMARY = "getTodaySummary";
+    public static final String METHOD_GET_LOCATION_META = "getLocationMeta";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of their day in the device's time zone.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return EpochDays.normalize(startDate, TimeZone.getDefault());
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,6 +157,20 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // When the location was last written or had weather synced for it, in milliseconds
+        // since the epoch.  The provider stamps it; locations left unused for long enough are
+        // dropped together with their weather.
+        public static final String COLUMN_LAST_USED = "last_used";
+
+        // The validators of the last forecast downloaded for the location, sent back with the
+        // next request so an unchanged forecast comes back as 304 Not Modified: the ETag and
+        // Last-Modified response headers, as the server sent them, or null if it sent none.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // The max-age, in seconds, the server allowed that forecast to be cached for, or null.
+        public static final String COLUMN_MAX_AGE = "max_age";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -97,6 +187,10 @@ public class WeatherContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
+        // Parent of the weather_by_location/<location _id> URIs.
+        public static final Uri LOCATION_ID_CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER_BY_LOCATION_ID).build();
+
         public static final String TABLE_NAME = "weather";
 
         // Column with the foreign key into the location table.
@@ -126,6 +220,57 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // contentHash() of the row's other columns, written by the provider; null on rows
+        // written before it was kept, or through the row-by-row fallback.
+        public static final String COLUMN_CONTENT_HASH = "content_hash";
+
+        private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        /**
+         * @return a 64-bit FNV-1a hash of a day's weather: every stored column but the
+         * location and date.  Rows with the same weather hash the same however their values
+         * were boxed.
+         */
+        public static long contentHash(int weatherId, String shortDesc, double min, double max,
+                                       double humidity, double pressure, double wind,
+                                       double degrees) {
+            long hash = FNV_OFFSET_BASIS;
+            hash = fnv(hash, weatherId);
+            hash = fnv(hash, shortDesc);
+            hash = fnv(hash, Double.doubleToLongBits(min));
+            hash = fnv(hash, Double.doubleToLongBits(max));
+            hash = fnv(hash, Double.doubleToLongBits(humidity));
+            hash = fnv(hash, Double.doubleToLongBits(pressure));
+            hash = fnv(hash, Double.doubleToLongBits(wind));
+            return fnv(hash, Double.doubleToLongBits(degrees));
+        }
+
+        private static long fnv(long hash, long value) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                hash ^= (value >>> shift) & 0xff;
+                hash *= FNV_PRIME;
+            }
+            return hash;
+        }
+
+        // The length, -1 for null, then every char, so no two descriptions share a prefix of
+        // the stream and the whole description goes into the 64 bits.
+        private static long fnv(long hash, String value) {
+            if (value == null) {
+                return fnv(hash, -1L);
+            }
+            hash = fnv(hash, (long) value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                hash ^= c & 0xff;
+                hash *= FNV_PRIME;
+                hash ^= c >>> 8;
+                hash *= FNV_PRIME;
+            }
+            return hash;
+        }
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -149,6 +294,35 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /*
+            The weather_by_location/<location _id> URIs read the weather table alone, so their
+            rows only carry weather columns.  The location row comes once per cursor instead,
+            in Cursor.getExtras() under the LocationEntry column names (_ID as a long, the
+            coordinates as doubles).  The extras are empty when no such location exists.
+         */
+        public static Uri buildWeatherLocationId(long locationId) {
+            return ContentUris.withAppendedId(LOCATION_ID_CONTENT_URI, locationId);
+        }
+
+        public static Uri buildWeatherLocationIdWithStartDate(long locationId, long startDate) {
+            long normalizedDate = normalizeDate(startDate);
+            return buildWeatherLocationId(locationId).buildUpon()
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
+        }
+
+        public static Uri buildWeatherLocationIdWithDate(long locationId, long date) {
+            return buildWeatherLocationId(locationId).buildUpon()
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+
+        public static long getDateFromLocationIdUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
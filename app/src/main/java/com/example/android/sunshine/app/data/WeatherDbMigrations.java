@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Ordered schema upgrades for the weather database, one version at a time.
+ * <p/>
+ * To change the schema: update WeatherDbHelper.onCreate so new installs get the new schema,
+ * bump DATABASE_VERSION, and append a Migration from the previous version that brings an
+ * existing database to the same shape without dropping the location or weather rows.
+ * A step's DDL is written out as it stood at that version, never taken from WeatherDbHelper,
+ * whose statements describe the latest schema and would change what an old step builds.
+ */
+final class WeatherDbMigrations {
+
+    /**
+     * Moves the schema from {@link #fromVersion} to {@code fromVersion + 1}.  Runs inside the
+     * upgrade transaction SQLiteOpenHelper opens, so a failing step leaves the old schema.
+     */
+    abstract static class Migration {
+        final int fromVersion;
+
+        Migration(int fromVersion) {
+            this.fromVersion = fromVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // The first schema we know how to step forward from.  Anything older is rebuilt.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    // Consecutive steps: MIGRATIONS[i] upgrades OLDEST_MIGRATABLE_VERSION + i.
+    static final Migration[] MIGRATIONS = {
+            // 2 -> 3: index weather by (location_id, date) for the location-scoped queries,
+            // covering the forecast list's columns
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Frozen: the index as of version 3; never edit this.
+                    db.execSQL("CREATE INDEX IF NOT EXISTS weather_location_date_idx ON " +
+                            "weather (location_id, date, weather_id, short_desc, max, min);");
+                }
+            },
+            // 3 -> 4: track when each location was last used, for the retention policy.
+            // Existing locations count as used now, so the first purge doesn't drop them all.
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + WeatherContract.LocationEntry.TABLE_NAME +
+                            " ADD COLUMN " + WeatherContract.LocationEntry.COLUMN_LAST_USED +
+                            " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("UPDATE " + WeatherContract.LocationEntry.TABLE_NAME +
+                            " SET " + WeatherContract.LocationEntry.COLUMN_LAST_USED + " = " +
+                            System.currentTimeMillis());
+                }
+            },
+            // 4 -> 5: keep each location's HTTP validators for conditional forecast requests.
+            // Existing rows start without any, so their next request is unconditional.
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String[] columns = {
+                            WeatherContract.LocationEntry.COLUMN_ETAG + " TEXT",
+                            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED + " TEXT",
+                            WeatherContract.LocationEntry.COLUMN_MAX_AGE + " INTEGER"};
+                    for (String column : columns) {
+                        db.execSQL("ALTER TABLE " + WeatherContract.LocationEntry.TABLE_NAME +
+                                " ADD COLUMN " + column);
+                    }
+                }
+            },
+            // 5 -> 6: keep a hash of each weather row's content, so a delta ingest can tell
+            // which rows changed.  Existing rows have none and count as changed once.
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + WeatherContract.WeatherEntry.TABLE_NAME +
+                            " ADD COLUMN " + WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH +
+                            " INTEGER");
+                }
+            },
+            // 6 -> 7: drop ON CONFLICT REPLACE from the weather table, now the provider
+            // upserts.  SQLite can't alter a constraint, so the table is rebuilt: the rows keep
+            // their _ids, and the AUTOINCREMENT counter moves over so deleted _ids stay unused.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String weather = WeatherContract.WeatherEntry.TABLE_NAME;
+                    String old = weather + "_v6";
+                    db.execSQL("ALTER TABLE " + weather + " RENAME TO " + old);
+                    // Frozen: the table and index as of version 7; never edit these.
+                    db.execSQL("CREATE TABLE weather (" +
+                            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, " +
+                            "date INTEGER NOT NULL, " +
+                            "short_desc TEXT NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "min REAL NOT NULL, " +
+                            "max REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, " +
+                            "pressure REAL NOT NULL, " +
+                            "wind REAL NOT NULL, " +
+                            "degrees REAL NOT NULL, " +
+                            "content_hash INTEGER, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id));");
+                    String columns = columns(db, weather);
+                    db.execSQL("INSERT INTO " + weather + " (" + columns + ") SELECT " +
+                            columns + " FROM " + old);
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + weather + "'");
+                    db.execSQL("UPDATE sqlite_sequence SET name = '" + weather +
+                            "' WHERE name = '" + old + "'");
+                    // the index went with the old table
+                    db.execSQL("DROP TABLE " + old);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS weather_location_date_idx ON " +
+                            "weather (location_id, date, weather_id, short_desc, max, min);");
+                }
+            },
+    };
+
+    // The table's column names, comma separated.
+    private static String columns(SQLiteDatabase db, String table) {
+        StringBuilder columns = new StringBuilder();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.append(columns.length() == 0 ? "" : ", ").append(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns.toString();
+    }
+
+    private WeatherDbMigrations() {
+    }
+
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        return oldVersion >= OLDEST_MIGRATABLE_VERSION
+                && oldVersion <= newVersion
+                && newVersion <= OLDEST_MIGRATABLE_VERSION + MIGRATIONS.length;
+    }
+
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            throw new IllegalArgumentException(
+                    "No migration path from version " + oldVersion + " to " + newVersion);
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration step = MIGRATIONS[version - OLDEST_MIGRATABLE_VERSION];
+            if (step.fromVersion != version) {
+                throw new IllegalStateException("Migration for version " + step.fromVersion +
+                        " is registered for version " + version);
+            }
+            step.migrate(db);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The binary export {@link WeatherContract#EXPORT_URI} serves: every location row, then every
+ * weather row, written straight off SQLite cursors, and a decoder for it.
+ * <p/>
+ * The stream is MAGIC and VERSION, then records, each a tag byte, the length of its payload as
+ * an int, and the payload:
+ * <ul>
+ * <li>RECORD_LOCATION: _id as a long, location setting and city name as modified UTF-8
+ * (DataOutput.writeUTF), then latitude and longitude as doubles.</li>
+ * <li>RECORD_WEATHER: _id, location _id and date as longs, weather id as an int, the
+ * description as modified UTF-8, then min, max, humidity, pressure, wind speed and degrees as
+ * doubles.</li>
+ * <li>RECORD_END, with no payload: the end of the export.  An export that stops without it was
+ * broken off.</li>
+ * </ul>
+ * All big-endian, as DataOutputStream writes them.  Readers skip records with tags they don't
+ * know, and trailing fields they don't know in records they do, so later exports of the same
+ * VERSION can add both.
+ */
+public final class WeatherExportStream {
+
+    // "SWEX"
+    static final int MAGIC = 0x53574558;
+    // readers refuse any other version; a new one can change everything after it
+    static final int VERSION = 1;
+
+    public static final int RECORD_END = 0;
+    public static final int RECORD_LOCATION = 1;
+    public static final int RECORD_WEATHER = 2;
+
+    // Longest payload a reader accepts; the records above are well under a kilobyte.
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    private static final int BUFFER_BYTES = 8192;
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String[] WEATHER_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // (location_id, date) is weather_location_date_idx's order, so SQLite walks the index
+    // rather than sorting the table into a temporary b-tree first
+    private static final String WEATHER_ORDER =
+            WeatherEntry.COLUMN_LOC_KEY + " ASC, " + WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherExportStream() {
+    }
+
+    /**
+     * Receives an export's rows as they are decoded.
+     */
+    public interface Listener {
+        void onLocation(long id, String locationSetting, String cityName, double latitude,
+                        double longitude);
+
+        void onWeather(long id, long locationId, long date, int weatherId, String description,
+                       double minTemp, double maxTemp, double humidity, double pressure,
+                       double windSpeed, double degrees);
+    }
+
+    /**
+     * Writes the export of the database file at path to out, as one snapshot, read through a
+     * read-only connection of its own.  The snapshot is a read transaction, so under WAL
+     * writers carry on however long the reader of out takes; without WAL its shared lock holds
+     * their commits back, as any reader's does.
+     *
+     * @return the number of rows written
+     * @throws IOException if out fails, as it does when a pipe's reader goes away
+     */
+    static int writeSnapshot(String path, OutputStream out) throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            // SQLiteDatabase only begins write transactions; a savepoint opened outside one
+            // begins a deferred, read-only one.  This is the connection's only user, so both
+            // queries run inside it.
+            db.execSQL("SAVEPOINT export");
+            try {
+                return write(db, out);
+            } finally {
+                db.execSQL("RELEASE export");
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Writes the export of the database to out, one row at a time, and flushes it.  Only a
+     * record and the cursor's window are held at once, however big the tables.  Rows written
+     * while the export runs may or may not be in it; {@link #writeSnapshot} leaves them out.
+     *
+     * @return the number of rows written
+     * @throws IOException if out fails, as it does when a pipe's reader goes away
+     */
+    static int write(SQLiteDatabase db, OutputStream out) throws IOException {
+        DataOutputStream stream =
+                new DataOutputStream(new BufferedOutputStream(out, BUFFER_BYTES));
+        stream.writeInt(MAGIC);
+        stream.writeByte(VERSION);
+        // each record's payload is built here first, to learn its length
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(payload);
+        int rows = 0;
+
+        Cursor locations = db.query(LocationEntry.TABLE_NAME, LOCATION_COLUMNS, null, null,
+                null, null, LocationEntry._ID + " ASC");
+        try {
+            while (locations.moveToNext()) {
+                payload.reset();
+                record.writeLong(locations.getLong(0));
+                record.writeUTF(locations.getString(1));
+                record.writeUTF(locations.getString(2));
+                record.writeDouble(locations.getDouble(3));
+                record.writeDouble(locations.getDouble(4));
+                writeRecord(stream, RECORD_LOCATION, payload);
+                rows++;
+            }
+        } finally {
+            locations.close();
+        }
+
+        Cursor weather = db.query(WeatherEntry.TABLE_NAME, WEATHER_COLUMNS, null, null, null,
+                null, WEATHER_ORDER);
+        try {
+            while (weather.moveToNext()) {
+                payload.reset();
+                record.writeLong(weather.getLong(0));
+                record.writeLong(weather.getLong(1));
+                record.writeLong(weather.getLong(2));
+                record.writeInt(weather.getInt(3));
+                record.writeUTF(weather.getString(4));
+                for (int column = 5; column < WEATHER_COLUMNS.length; column++) {
+                    record.writeDouble(weather.getDouble(column));
+                }
+                writeRecord(stream, RECORD_WEATHER, payload);
+                rows++;
+            }
+        } finally {
+            weather.close();
+        }
+
+        stream.writeByte(RECORD_END);
+        stream.writeInt(0);
+        stream.flush();
+        return rows;
+    }
+
+    private static void writeRecord(DataOutputStream stream, int tag,
+                                    ByteArrayOutputStream payload) throws IOException {
+        stream.writeByte(tag);
+        stream.writeInt(payload.size());
+        payload.writeTo(stream);
+    }
+
+    /**
+     * Decodes an export, handing each row to the listener as it is read.  The stream is read
+     * to the export's end but not closed.
+     *
+     * @return the number of rows read
+     * @throws IOException if the stream fails, isn't an export of this version, or was broken
+     *                     off
+     */
+    public static int read(InputStream in, Listener listener) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(in, BUFFER_BYTES));
+        int rows = 0;
+        try {
+            int magic = stream.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a weather export: " + Integer.toHexString(magic));
+            }
+            int version = stream.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Weather export version " + version + ", expected " +
+                        VERSION);
+            }
+            while (true) {
+                int tag = stream.readUnsignedByte();
+                int length = stream.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    throw new IOException("Weather export record of " + length + " bytes");
+                }
+                if (tag == RECORD_END) {
+                    return rows;
+                }
+                int read;
+                if (tag == RECORD_LOCATION) {
+                    read = readLocation(stream, listener);
+                    rows++;
+                } else if (tag == RECORD_WEATHER) {
+                    read = readWeather(stream, listener);
+                    rows++;
+                } else {
+                    read = 0;
+                }
+                if (read > length) {
+                    throw new IOException("Weather export record " + tag + " overran its " +
+                            length + " bytes");
+                }
+                skipFully(stream, length - read);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Weather export broken off after " + rows + " rows");
+        }
+    }
+
+    // Reads a location record's fields and returns how many bytes they took.
+    private static int readLocation(DataInputStream stream, Listener listener)
+            throws IOException {
+        long id = stream.readLong();
+        String locationSetting = stream.readUTF();
+        String cityName = stream.readUTF();
+        double latitude = stream.readDouble();
+        double longitude = stream.readDouble();
+        listener.onLocation(id, locationSetting, cityName, latitude, longitude);
+        return 8 + utfLength(locationSetting) + utfLength(cityName) + 8 + 8;
+    }
+
+    // Reads a weather record's fields and returns how many bytes they took.
+    private static int readWeather(DataInputStream stream, Listener listener)
+            throws IOException {
+        long id = stream.readLong();
+        long locationId = stream.readLong();
+        long date = stream.readLong();
+        int weatherId = stream.readInt();
+        String description = stream.readUTF();
+        double minTemp = stream.readDouble();
+        double maxTemp = stream.readDouble();
+        double humidity = stream.readDouble();
+        double pressure = stream.readDouble();
+        double windSpeed = stream.readDouble();
+        double degrees = stream.readDouble();
+        listener.onWeather(id, locationId, date, weatherId, description, minTemp, maxTemp,
+                humidity, pressure, windSpeed, degrees);
+        return 8 + 8 + 8 + 4 + utfLength(description) + 6 * 8;
+    }
+
+    // The bytes writeUTF writes for the string: a two byte length, then modified UTF-8.
+    private static int utfLength(String string) {
+        int bytes = 2;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static void skipFully(DataInputStream stream, int bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = stream.skipBytes(bytes);
+            if (skipped <= 0) {
+                // skipBytes gives up at the end of the stream; find out if that's where we are
+                stream.readByte();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
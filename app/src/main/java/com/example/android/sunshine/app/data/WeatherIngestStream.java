@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary weather stream {@link WeatherContract#METHOD_INGEST_WEATHER_STREAM} reads: the
+ * rows a weather bulkInsert takes, written one after another, so neither end ever holds more
+ * than a few of them.
+ * <p/>
+ * The stream is MAGIC and VERSION, then records, each starting with a tag byte:
+ * <ul>
+ * <li>TAG_DESCRIPTION: a modified UTF-8 description (DataOutput.writeUTF), given the next
+ * description index, from 0.</li>
+ * <li>TAG_ROW: location _id and date as longs, weather id and description index as ints, then
+ * min, max, humidity, pressure, wind speed and degrees as doubles.</li>
+ * <li>TAG_END: the end of the rows.  A stream that stops without it is broken off, and the
+ * ingest fails.</li>
+ * </ul>
+ * All big-endian, as DataOutputStream writes them.
+ */
+public final class WeatherIngestStream {
+
+    private static final String LOG_TAG = WeatherIngestStream.class.getSimpleName();
+
+    // "SWIS"
+    static final int MAGIC = 0x53574953;
+    // readers refuse any other version; a new one can change everything after it
+    static final int VERSION = 1;
+
+    static final int TAG_END = 0;
+    static final int TAG_ROW = 1;
+    static final int TAG_DESCRIPTION = 2;
+
+    // Distinct descriptions a stream may define.  OWM has a handful; the cap keeps a broken
+    // or hostile stream from growing the reader without bound.
+    static final int MAX_DESCRIPTIONS = 1024;
+
+    private static final int BUFFER_BYTES = 8192;
+
+    private WeatherIngestStream() {
+    }
+
+    /**
+     * Writes weather rows to the stream.  Not thread safe.
+     */
+    public static final class Writer {
+        private final DataOutputStream mOut;
+        private final Map<String, Integer> mDescriptions = new HashMap<String, Integer>();
+
+        /**
+         * Writes the stream's header.  The stream is closed by {@link #close}.
+         */
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_BYTES));
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        }
+
+        /**
+         * Writes a weather row, with the columns a weather bulkInsert's row would have.
+         */
+        public void write(long locationId, long date, int weatherId, String description,
+                          double minTemp, double maxTemp, double humidity, double pressure,
+                          double windSpeed, double degrees) throws IOException {
+            if (description == null) {
+                throw new IllegalArgumentException("Weather row has no description");
+            }
+            Integer index = mDescriptions.get(description);
+            if (index == null) {
+                if (mDescriptions.size() == MAX_DESCRIPTIONS) {
+                    throw new IOException("More than " + MAX_DESCRIPTIONS + " descriptions");
+                }
+                index = mDescriptions.size();
+                mDescriptions.put(description, index);
+                mOut.writeByte(TAG_DESCRIPTION);
+                mOut.writeUTF(description);
+            }
+            mOut.writeByte(TAG_ROW);
+            mOut.writeLong(locationId);
+            mOut.writeLong(date);
+            mOut.writeInt(weatherId);
+            mOut.writeInt(index);
+            mOut.writeDouble(minTemp);
+            mOut.writeDouble(maxTemp);
+            mOut.writeDouble(humidity);
+            mOut.writeDouble(pressure);
+            mOut.writeDouble(windSpeed);
+            mOut.writeDouble(degrees);
+        }
+
+        /**
+         * Writes every row of the batch.
+         */
+        public void write(ForecastBatch batch) throws IOException {
+            for (int row = 0; row < batch.size(); row++) {
+                write(batch.getLocationId(row), batch.getDate(row), batch.getWeatherId(row),
+                        batch.getDescription(row), batch.getMinTemp(row), batch.getMaxTemp(row),
+                        batch.getHumidity(row), batch.getPressure(row), batch.getWindSpeed(row),
+                        batch.getDegrees(row));
+            }
+        }
+
+        /**
+         * Ends the rows and flushes them.  Without this the reader sees the stream broken off.
+         */
+        public void finish() throws IOException {
+            mOut.writeByte(TAG_END);
+            mOut.flush();
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Reads weather rows off the stream into a ForecastBatch, as many at a time as asked for.
+     */
+    static final class Reader {
+        private final DataInputStream mIn;
+        private String[] mDescriptions = new String[8];
+        private int mDescriptionCount;
+        private boolean mEnded;
+        private long mFirstDate = Long.MAX_VALUE;
+
+        /**
+         * Reads and checks the stream's header.
+         *
+         * @throws IOException if the stream isn't a weather stream of this version
+         */
+        Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in, BUFFER_BYTES));
+            try {
+                int magic = mIn.readInt();
+                if (magic != MAGIC) {
+                    throw new IOException("Not a weather stream: " + Integer.toHexString(magic));
+                }
+                int version = mIn.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException("Weather stream version " + version +
+                            ", expected " + VERSION);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Weather stream has no header");
+            }
+        }
+
+        /**
+         * Appends up to maxRows rows to the batch.
+         *
+         * @return the rows appended; 0 once the stream has ended
+         * @throws IOException if the stream fails, is broken off, or holds something that
+         *                     isn't a record
+         */
+        int read(ForecastBatch batch, int maxRows) throws IOException {
+            int rows = 0;
+            try {
+                while (!mEnded && rows < maxRows) {
+                    int tag = mIn.readUnsignedByte();
+                    if (tag == TAG_ROW) {
+                        readRow(batch);
+                        rows++;
+                    } else if (tag == TAG_DESCRIPTION) {
+                        readDescription();
+                    } else if (tag == TAG_END) {
+                        mEnded = true;
+                    } else {
+                        throw new IOException("Unknown weather stream record " + tag);
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("Weather stream broken off");
+            }
+            return rows;
+        }
+
+        /**
+         * @return the earliest date read so far, or Long.MAX_VALUE before any row
+         */
+        long getFirstDate() {
+            return mFirstDate;
+        }
+
+        private void readRow(ForecastBatch batch) throws IOException {
+            long locationId = mIn.readLong();
+            long date = mIn.readLong();
+            int weatherId = mIn.readInt();
+            int description = mIn.readInt();
+            if (description < 0 || description >= mDescriptionCount) {
+                throw new IOException("Weather row refers to undefined description " +
+                        description);
+            }
+            batch.add(locationId, date, weatherId, mDescriptions[description],
+                    mIn.readDouble(), mIn.readDouble(), mIn.readDouble(), mIn.readDouble(),
+                    mIn.readDouble(), mIn.readDouble());
+            mFirstDate = Math.min(mFirstDate, date);
+        }
+
+        private void readDescription() throws IOException {
+            if (mDescriptionCount == MAX_DESCRIPTIONS) {
+                throw new IOException("More than " + MAX_DESCRIPTIONS + " descriptions");
+            }
+            if (mDescriptionCount == mDescriptions.length) {
+                mDescriptions = Arrays.copyOf(mDescriptions, mDescriptionCount * 2);
+            }
+            mDescriptions[mDescriptionCount++] = mIn.readUTF();
+        }
+    }
+
+    /**
+     * Writes a stream's rows to {@link #ingest}'s pipe.
+     */
+    public interface Source {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    /**
+     * Ingests the rows the source writes through the provider's
+     * {@link WeatherContract#METHOD_INGEST_WEATHER_STREAM}, with the semantics of a weather
+     * bulkInsert.  The source writes on a thread of its own while the provider reads, so
+     * however many rows it writes, only a pipe's worth are in flight.
+     *
+     * @return the number of rows inserted or updated, as bulkInsert returns
+     * @throws IOException if the source failed, or the stream couldn't be written; nothing
+     *                     the source wrote is stored
+     * @throws IllegalArgumentException if the provider rejected a stream that was written
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static int ingest(ContentResolver resolver, final Source source) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        final IOException[] failure = new IOException[1];
+        Thread writerThread = new Thread("WeatherIngestStream") {
+            @Override
+            public void run() {
+                try {
+                    Writer writer = new Writer(out);
+                    try {
+                        source.writeTo(writer);
+                        writer.finish();
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    // also how the writer learns the provider stopped reading
+                    failure[0] = e;
+                } catch (RuntimeException e) {
+                    // a broken source mustn't take the process down with it
+                    failure[0] = new IOException("Weather source failed", e);
+                } finally {
+                    // the provider reads until the stream ends, so it must end however the
+                    // source did
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+        writerThread.start();
+
+        Bundle result = null;
+        RuntimeException rejected = null;
+        try {
+            Bundle extras = new Bundle(1);
+            extras.putParcelable(WeatherContract.INGEST_STREAM, pipe[0]);
+            result = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_INGEST_WEATHER_STREAM, null, extras);
+        } catch (RuntimeException e) {
+            rejected = e;
+        } finally {
+            // the provider closes the read end it was given; this one is ours, unless the
+            // provider is in this process, and closing it twice is harmless.  Either way, once
+            // both are closed a writer still writing fails rather than blocking.
+            closeQuietly(pipe[0]);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure[0] != null) {
+            if (rejected != null) {
+                // either the source failed and broke the stream off, or the provider stopped
+                // reading and the writes failed; both are worth seeing
+                Log.w(LOG_TAG, "Weather stream rejected", rejected);
+            }
+            throw failure[0];
+        }
+        if (rejected != null) {
+            throw rejected;
+        }
+        return result.getInt(WeatherContract.INGEST_ROWS);
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor descriptor) {
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error closing the ingest pipe", e);
+        }
+    }
+}
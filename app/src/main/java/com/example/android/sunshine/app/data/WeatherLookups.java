@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The single-row lookups behind {@link WeatherContract#METHOD_GET_DAY},
+ * {@link WeatherContract#METHOD_GET_TODAY_SUMMARY} and
+ * {@link WeatherContract#METHOD_GET_LOCATION_META}, and the client's side of them.
+ * <p/>
+ * Each lookup is a SELECT of just the row's columns, read straight off the provider's own
+ * cursor into a Bundle: no query builder, no projection map, no notification URI and no
+ * CursorWindow sent across the binder.  Columns keep their stored values exactly; a NULL
+ * column is left out of the Bundle, so reading it gives the type's default.
+ */
+public final class WeatherLookups {
+
+    // The keys of each lookup's Bundle, in the order the lookup selects them, and their types:
+    // l(ong), i(nt), d(ouble) or s(tring).
+    private static final String[] DAY_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+    private static final String DAY_TYPES = "llidddddds";
+    // DAY_COLUMNS for a query(), where a weather/<setting> URI's join would make _id ambiguous
+    private static final String[] DAY_PROJECTION = DAY_COLUMNS.clone();
+
+    static {
+        DAY_PROJECTION[0] = WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID;
+    }
+
+    private static final String[] SUMMARY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+    private static final String SUMMARY_TYPES = "lidds";
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            LocationEntry.COLUMN_LAST_USED,
+            LocationEntry.COLUMN_CITY_NAME
+    };
+    private static final String LOCATION_TYPES = "lddls";
+
+    private static final String WEATHER_JOIN_LOCATION =
+            WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+                    LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+
+    // SELECT weather._id, ... FROM weather INNER JOIN location ON ...
+    //     WHERE location.location_setting = ? AND weather.date = ?
+    private static final String sDayBySettingQuery = "SELECT " +
+            qualified(WeatherEntry.TABLE_NAME, DAY_COLUMNS) + " FROM " + WEATHER_JOIN_LOCATION +
+            " WHERE " + LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING +
+            " = ? AND " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + " = ?";
+
+    // SELECT weather._id, ... FROM weather WHERE location_id = ? AND date = ?
+    private static final String sDayByLocationIdQuery = "SELECT " +
+            qualified(WeatherEntry.TABLE_NAME, DAY_COLUMNS) + " FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " = ?";
+
+    // SELECT weather.date, ... FROM weather INNER JOIN location ON ...
+    //     WHERE location.location_setting = ? AND weather.date >= ? ORDER BY weather.date
+    //     LIMIT 1
+    private static final String sTodaySummaryQuery = "SELECT " +
+            qualified(WeatherEntry.TABLE_NAME, SUMMARY_COLUMNS) + " FROM " +
+            WEATHER_JOIN_LOCATION + " WHERE " + LocationEntry.TABLE_NAME + "." +
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_DATE + " LIMIT 1";
+
+    // SELECT location._id, ... FROM location WHERE location_setting = ?
+    private static final String sLocationMetaQuery = "SELECT " +
+            qualified(LocationEntry.TABLE_NAME, LOCATION_COLUMNS) + " FROM " +
+            LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING +
+            " = ?";
+
+    private static final String LOCATION_SETTING_SELECTION =
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private WeatherLookups() {
+    }
+
+    // table.a, table.b, ...
+    private static String qualified(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(table).append('.').append(columns[i]);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return the day's weather, under the WeatherEntry column names, or null if there's none
+     */
+    static Bundle getDayBySetting(SQLiteDatabase db, String locationSetting, long date) {
+        return lookUp(db, sDayBySettingQuery,
+                new String[]{locationSetting, Long.toString(date)}, DAY_COLUMNS, DAY_TYPES);
+    }
+
+    /**
+     * @return the day's weather, under the WeatherEntry column names, or null if there's none
+     */
+    static Bundle getDayByLocationId(SQLiteDatabase db, long locationId, long date) {
+        return lookUp(db, sDayByLocationIdQuery,
+                new String[]{Long.toString(locationId), Long.toString(date)}, DAY_COLUMNS,
+                DAY_TYPES);
+    }
+
+    /**
+     * @return the first day on or after today of the location's weather, or null if none is
+     * stored
+     */
+    static Bundle getTodaySummary(SQLiteDatabase db, String locationSetting, long today) {
+        return lookUp(db, sTodaySummaryQuery,
+                new String[]{locationSetting, Long.toString(today)}, SUMMARY_COLUMNS,
+                SUMMARY_TYPES);
+    }
+
+    /**
+     * @return the location row, under the LocationEntry column names, or null if there's none
+     */
+    static Bundle getLocationMeta(SQLiteDatabase db, String locationSetting) {
+        return lookUp(db, sLocationMetaQuery, new String[]{locationSetting}, LOCATION_COLUMNS,
+                LOCATION_TYPES);
+    }
+
+    private static Bundle lookUp(SQLiteDatabase db, String sql, String[] args,
+                                 String[] columns, String types) {
+        return readFirst(db.rawQuery(sql, args), columns, types);
+    }
+
+    // The cursor's first row, as a lookup's Bundle of the columns, or null if it has none.
+    // Closes the cursor.
+    private static Bundle readFirst(Cursor cursor, String[] columns, String types) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Bundle result = new Bundle(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                if (cursor.isNull(i)) {
+                    continue;
+                }
+                switch (types.charAt(i)) {
+                    case 'l':
+                        result.putLong(columns[i], cursor.getLong(i));
+                        break;
+                    case 'i':
+                        result.putInt(columns[i], cursor.getInt(i));
+                        break;
+                    case 'd':
+                        result.putDouble(columns[i], cursor.getDouble(i));
+                        break;
+                    default:
+                        result.putString(columns[i], cursor.getString(i));
+                }
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Looks up one day's weather: a weather/&lt;setting&gt;/&lt;date&gt; or
+     * weather_by_location/&lt;location _id&gt;/&lt;date&gt; URI's row, as a Bundle under the
+     * WeatherEntry column names (_ID, COLUMN_DATE, COLUMN_WEATHER_ID, COLUMN_SHORT_DESC and the
+     * measurements), through {@link WeatherContract#METHOD_GET_DAY}.  Before API 11, which has
+     * no ContentResolver.call, the same Bundle is read from a query of the URI.  Don't call it
+     * on the main thread.
+     *
+     * @return the day, or null if it isn't stored
+     */
+    public static Bundle getDay(ContentResolver resolver, Uri dayUri) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return call(resolver, WeatherContract.METHOD_GET_DAY, dayUri.toString());
+        }
+        return queryDay(resolver, dayUri);
+    }
+
+    /**
+     * Looks up the location's weather for today, or for its first stored day after today: the
+     * date, weather id, short description, min and max under their WeatherEntry column names,
+     * through {@link WeatherContract#METHOD_GET_TODAY_SUMMARY}, or a query before API 11.
+     * Don't call it on the main thread.
+     *
+     * @return the summary, or null if the location has no weather from today on
+     */
+    public static Bundle getTodaySummary(ContentResolver resolver, String locationSetting) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return call(resolver, WeatherContract.METHOD_GET_TODAY_SUMMARY, locationSetting);
+        }
+        return queryTodaySummary(resolver, locationSetting);
+    }
+
+    /**
+     * Looks up the location row for the setting: _ID, the city name, coordinates and last
+     * used stamp under their LocationEntry column names, through
+     * {@link WeatherContract#METHOD_GET_LOCATION_META}, or a query before API 11.  Don't call
+     * it on the main thread.
+     *
+     * @return the location, or null if it isn't stored
+     */
+    public static Bundle getLocationMeta(ContentResolver resolver, String locationSetting) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return call(resolver, WeatherContract.METHOD_GET_LOCATION_META, locationSetting);
+        }
+        return queryLocationMeta(resolver, locationSetting);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bundle call(ContentResolver resolver, String method, String arg) {
+        return resolver.call(WeatherContract.BASE_CONTENT_URI, method, arg, null);
+    }
+
+    // The query() equivalents of the lookups, which they fall back on before API 11.
+
+    static Bundle queryDay(ContentResolver resolver, Uri dayUri) {
+        return queryFirst(resolver, dayUri, DAY_PROJECTION, null, null, null, DAY_COLUMNS,
+                DAY_TYPES);
+    }
+
+    static Bundle queryTodaySummary(ContentResolver resolver, String locationSetting) {
+        return queryFirst(resolver, WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()), SUMMARY_COLUMNS, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC", SUMMARY_COLUMNS, SUMMARY_TYPES);
+    }
+
+    static Bundle queryLocationMeta(ContentResolver resolver, String locationSetting) {
+        return queryFirst(resolver, LocationEntry.CONTENT_URI, LOCATION_COLUMNS,
+                LOCATION_SETTING_SELECTION, new String[]{locationSetting}, null,
+                LOCATION_COLUMNS, LOCATION_TYPES);
+    }
+
+    // The query's first row, as a lookup's Bundle of the columns.
+    private static Bundle queryFirst(ContentResolver resolver, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder,
+                                     String[] columns, String types) {
+        return readFirst(resolver.query(uri, projection, selection, selectionArgs, sortOrder),
+                columns, types);
+    }
+}
@@ -17,23 +17,53 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TimeZone;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private WeatherChangeNotifier mNotifier;
+    private WeatherQueryCache mQueryCache;
+    private WeatherRetention mRetention;
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_ID = 103;
+    static final int WEATHER_WITH_LOCATION_ID_AND_DATE = 104;
     static final int LOCATION = 300;
+    static final int EXPORT = 400;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -68,6 +98,125 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    // The location row handed out once per cursor by the location-id routes.
+    private static final String[] sLocationExtrasColumns = {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    //location._id = ?
+    private static final String sLocationIdRowSelection = WeatherContract.LocationEntry._ID + " = ?";
+
+    // Columns bound, in order, by the compiled bulk insert statement below.
+    private static final String[] sWeatherInsertColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            // always bound from the other columns, whatever the row says
+            WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH
+    };
+
+    // INSERT INTO weather (location_id, date, ...) VALUES (?, ?, ...)
+    private static final String sWeatherInsertStatement = buildInsertStatement("INSERT",
+            WeatherContract.WeatherEntry.TABLE_NAME, sWeatherInsertColumns);
+
+    // UPDATE weather SET weather_id = ?3, ..., content_hash = ?11
+    //     WHERE location_id = ?1 AND date = ?2
+    // Takes the same parameters as the insert, so a row binds the same way into either.
+    private static final String sWeatherUpdateStatement;
+
+    static {
+        StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+        for (int i = 2; i < sWeatherInsertColumns.length; i++) {
+            sql.append(i == 2 ? "" : ", ").append(sWeatherInsertColumns[i])
+                    .append(" = ?").append(i + 1);
+        }
+        sWeatherUpdateStatement = sql.append(" WHERE ")
+                .append(WeatherContract.WeatherEntry.COLUMN_LOC_KEY).append(" = ?1 AND ")
+                .append(WeatherContract.WeatherEntry.COLUMN_DATE).append(" = ?2").toString();
+    }
+
+    // Rows a streamed ingest decodes and binds at a time.
+    private static final int STREAM_CHUNK_ROWS = 256;
+
+    // Rows the connection's last INSERT, UPDATE or DELETE changed.  Compiled statements can't
+    // return it before API 11 (executeUpdateDelete), so the upsert asks for it.
+    private static final String sChangesQuery = "SELECT changes()";
+
+    // SELECT content_hash IS ?3 FROM weather WHERE location_id = ?1 AND date = ?2
+    // 1 if the stored row has the hash, 0 if it differs; no row at all if there's none stored.
+    private static final String sWeatherUnchangedQuery =
+            "SELECT " + WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH + " IS ?3 FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ?2";
+
+    // Columns bound, in order, by the compiled location upsert statements below.  Both also
+    // take the last_used stamp as parameter 5.
+    private static final String[] sLocationUpsertColumns = {
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    // INSERT OR IGNORE INTO location (city_name, coord_lat, coord_long, location_setting,
+    //     last_used) VALUES (?, ?, ?, ?, ?)
+    private static final String sLocationInsertStatement = buildInsertStatement("INSERT OR IGNORE",
+            WeatherContract.LocationEntry.TABLE_NAME, new String[]{
+                    WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    WeatherContract.LocationEntry.COLUMN_LAST_USED
+            });
+
+    // UPDATE location SET city_name = ?1, coord_lat = ?2, coord_long = ?3, last_used = ?5
+    //     WHERE location_setting = ?4
+    private static final String sLocationUpdateStatement =
+            "UPDATE " + WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+                    WeatherContract.LocationEntry.COLUMN_CITY_NAME + " = ?1, " +
+                    WeatherContract.LocationEntry.COLUMN_COORD_LAT + " = ?2, " +
+                    WeatherContract.LocationEntry.COLUMN_COORD_LONG + " = ?3, " +
+                    WeatherContract.LocationEntry.COLUMN_LAST_USED + " = ?5 WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?4";
+
+    private static String buildInsertStatement(String verb, String table, String[] columns) {
+        StringBuilder sql = new StringBuilder(verb).append(" INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -83,12 +232,11 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return rawQuery(mOpenHelper.getReadableDatabase(),
+                sWeatherByLocationSettingQueryBuilder.getTables(),
                 projection,
                 selection,
                 selectionArgs,
-                null,
-                null,
                 sortOrder
         );
     }
@@ -98,22 +246,121 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return rawQuery(mOpenHelper.getReadableDatabase(),
+                sWeatherByLocationSettingQueryBuilder.getTables(),
                 projection,
                 sLocationSettingAndDaySelection,
                 new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
                 sortOrder
         );
     }
 
+    private Cursor getWeatherByLocationId(Uri uri, String[] projection, String sortOrder) {
+        long locationId = WeatherContract.WeatherEntry.getLocationIdFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+
+        String[] selectionArgs;
+        String selection;
+
+        if (startDate == 0) {
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{Long.toString(locationId)};
+        } else {
+            selection = sLocationIdWithStartDateSelection;
+            selectionArgs = new String[]{Long.toString(locationId), Long.toString(startDate)};
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor weather = rawQuery(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                sortOrder
+        );
+        return new LocationExtrasCursor(weather, queryLocationExtras(db, locationId));
+    }
+
+    private Cursor getWeatherByLocationIdAndDate(Uri uri, String[] projection, String sortOrder) {
+        long locationId = WeatherContract.WeatherEntry.getLocationIdFromUri(uri);
+        long date = WeatherContract.WeatherEntry.getDateFromLocationIdUri(uri);
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor weather = rawQuery(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                sortOrder
+        );
+        return new LocationExtrasCursor(weather, queryLocationExtras(db, locationId));
+    }
+
+    // The location row as cursor extras, or an empty Bundle when there's no such location.
+    private Bundle queryLocationExtras(SQLiteDatabase db, long locationId) {
+        Cursor location = rawQuery(db, WeatherContract.LocationEntry.TABLE_NAME,
+                sLocationExtrasColumns,
+                sLocationIdRowSelection,
+                new String[]{Long.toString(locationId)},
+                null
+        );
+        try {
+            if (!location.moveToFirst()) {
+                return Bundle.EMPTY;
+            }
+            Bundle extras = new Bundle(5);
+            extras.putLong(WeatherContract.LocationEntry._ID, locationId);
+            extras.putString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    location.getString(0));
+            extras.putString(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                    location.getString(1));
+            extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                    location.getDouble(2));
+            extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                    location.getDouble(3));
+            return extras;
+        } finally {
+            location.close();
+        }
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
         and LOCATION integer constants defined above.  You can test this by uncommenting the
         testUriMatcher test within TestUriMatcher.
      */
+    // Every code buildUriMatcher can return, so tests can walk all the routes.
+    static final int[] ROUTES = {
+            WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
+            WEATHER_WITH_LOCATION_ID, WEATHER_WITH_LOCATION_ID_AND_DATE, LOCATION
+    };
+
+    /**
+     * Sees the SQL of each filtered SELECT query() runs, so tests can check the plans of what
+     * the provider really executes.
+     */
+    interface QueryObserver {
+        void onQuery(String sql, String[] selectionArgs);
+    }
+
+    private volatile QueryObserver mQueryObserver;
+
+    // Package-private for tests; null to stop observing.
+    void setQueryObserver(QueryObserver observer) {
+        mQueryObserver = observer;
+    }
+
+    // SQLiteDatabase.query() of the tables, built here so the observer sees the statement.
+    private Cursor rawQuery(SQLiteDatabase db, String tables, String[] projection,
+                            String selection, String[] selectionArgs, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, tables, projection, selection,
+                null, null, sortOrder, null);
+        QueryObserver observer = mQueryObserver;
+        if (observer != null) {
+            observer.onQuery(sql, selectionArgs);
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
     static UriMatcher buildUriMatcher() {
         // I know what you're thinking.  Why create a UriMatcher when you can use regular
         // expressions instead?  Because you're not crazy, that's why.
@@ -128,8 +375,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_BY_LOCATION_ID + "/#",
+                WEATHER_WITH_LOCATION_ID);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_BY_LOCATION_ID + "/#/#",
+                WEATHER_WITH_LOCATION_ID_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_EXPORT, EXPORT);
         return matcher;
     }
 
@@ -140,6 +392,23 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mNotifier = new WeatherChangeNotifier(getContext().getContentResolver(),
+                getContext().getResources().getInteger(R.integer.provider_notify_debounce_millis));
+        mQueryCache = new WeatherQueryCache(
+                getContext().getResources().getInteger(R.integer.provider_query_cache_kb) * 1024);
+        mNotifier.setCommitListener(new WeatherChangeNotifier.CommitListener() {
+            @Override
+            public void onCommit(WeatherChangeNotifier.ChangeSet changes) {
+                mQueryCache.onCommit(changes);
+                if (changes.locationKeysChanged) {
+                    LocationIdCache.getInstance().invalidate();
+                }
+            }
+        });
+        mRetention = new WeatherRetention(
+                getContext().getResources().getInteger(R.integer.retention_past_days),
+                getContext().getResources().getInteger(R.integer.retention_unused_location_days),
+                getContext().getResources().getInteger(R.integer.retention_batch_rows));
         return true;
     }
 
@@ -160,10 +429,16 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
+            case WEATHER_WITH_LOCATION_ID:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case EXPORT:
+                return WeatherContract.EXPORT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,10 +447,26 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+
+        // The location-scoped weather routes are served from the query cache when they can be.
+        // A thread in the middle of a write may see its own uncommitted rows, so it bypasses it.
+        WeatherQueryCache.Key cacheKey = null;
+        long cacheGeneration = 0;
+        if (isCacheable(match) && mQueryCache.isEnabled() && !mNotifier.isWriteOpen()) {
+            cacheKey = new WeatherQueryCache.Key(uri, projection, sortOrder);
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            cacheGeneration = mQueryCache.getGeneration();
+        }
+
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE: {
                 retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
@@ -186,6 +477,16 @@ public class WeatherProvider extends ContentProvider {
                 retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
                 break;
             }
+            // "weather_by_location/#/#"
+            case WEATHER_WITH_LOCATION_ID_AND_DATE: {
+                retCursor = getWeatherByLocationIdAndDate(uri, projection, sortOrder);
+                break;
+            }
+            // "weather_by_location/#"
+            case WEATHER_WITH_LOCATION_ID: {
+                retCursor = getWeatherByLocationId(uri, projection, sortOrder);
+                break;
+            }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -216,10 +517,319 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        if (cacheKey != null) {
+            retCursor = cacheResult(match, uri, cacheKey, retCursor, cacheGeneration);
+        }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
 
+    private static boolean isCacheable(int match) {
+        switch (match) {
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+            case WEATHER_WITH_LOCATION_ID:
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Caches a result under the location and dates it covers, so writes elsewhere keep it.
+    private Cursor cacheResult(int match, Uri uri, WeatherQueryCache.Key key, Cursor cursor,
+                               long generation) {
+        String locationSetting;
+        long date = -1;
+        long startDate = 0;
+        switch (match) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                break;
+            case WEATHER_WITH_LOCATION:
+                locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                break;
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                // null when the location doesn't exist; creating it clears the whole cache
+                locationSetting = cursor.getExtras().getString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                date = WeatherContract.WeatherEntry.getDateFromLocationIdUri(uri);
+                break;
+            case WEATHER_WITH_LOCATION_ID:
+                locationSetting = cursor.getExtras().getString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown route: " + match);
+        }
+        return mQueryCache.put(key, cursor, generation, locationSetting, date, startDate);
+    }
+
+    // Package-private so tests and benchmarks can size the cache or switch it off.
+    WeatherQueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            return mQueryCache.getStats();
+        }
+        if (WeatherContract.METHOD_GET_RETENTION_STATS.equals(method)) {
+            return mRetention.getStats(mOpenHelper.getReadableDatabase());
+        }
+        if (WeatherContract.METHOD_INGEST_WEATHER_DELTA.equals(method)) {
+            return ingestWeatherDelta(extras);
+        }
+        if (WeatherContract.METHOD_INGEST_WEATHER_BATCH.equals(method)) {
+            return ingestWeatherBatch(extras);
+        }
+        if (WeatherContract.METHOD_INGEST_WEATHER_STREAM.equals(method)) {
+            return ingestWeatherStream(extras);
+        }
+        if (WeatherContract.METHOD_GET_DAY.equals(method)) {
+            return getDay(arg);
+        }
+        if (WeatherContract.METHOD_GET_TODAY_SUMMARY.equals(method)) {
+            return WeatherLookups.getTodaySummary(mOpenHelper.getReadableDatabase(),
+                    requireArg(arg), WeatherContract.normalizeDate(System.currentTimeMillis()));
+        }
+        if (WeatherContract.METHOD_GET_LOCATION_META.equals(method)) {
+            return WeatherLookups.getLocationMeta(mOpenHelper.getReadableDatabase(),
+                    requireArg(arg));
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // METHOD_GET_DAY: the row a query of the day URI in arg would return.
+    private Bundle getDay(String arg) {
+        Uri uri = Uri.parse(requireArg(arg));
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        switch (sUriMatcher.match(uri)) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return WeatherLookups.getDayBySetting(db,
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromUri(uri));
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return WeatherLookups.getDayByLocationId(db,
+                        WeatherContract.WeatherEntry.getLocationIdFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromLocationIdUri(uri));
+            default:
+                throw new IllegalArgumentException("Not a day uri: " + uri);
+        }
+    }
+
+    private static String requireArg(String arg) {
+        if (arg == null) {
+            throw new IllegalArgumentException("No arg");
+        }
+        return arg;
+    }
+
+    // METHOD_INGEST_WEATHER_DELTA: the delta ingest in the one transaction a weather
+    // bulkInsert would use, with the same location stamping and retention purge.
+    private Bundle ingestWeatherDelta(Bundle extras) {
+        Parcelable[] parcelables = extras != null ?
+                extras.getParcelableArray(WeatherContract.INGEST_VALUES) : null;
+        if (parcelables == null) {
+            throw new IllegalArgumentException("No " + WeatherContract.INGEST_VALUES);
+        }
+        ContentValues[] values = new ContentValues[parcelables.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (ContentValues) parcelables[i];
+        }
+        return ingestWeatherRows(new ValuesRows(values), values, extras);
+    }
+
+    // METHOD_INGEST_WEATHER_BATCH: ingestWeatherDelta(Bundle), for rows in a ForecastBatch.
+    private Bundle ingestWeatherBatch(Bundle extras) {
+        ForecastBatch batch = null;
+        if (extras != null) {
+            // the binder unparcels extras with the framework's class loader, which can't find
+            // the app's classes
+            extras.setClassLoader(ForecastBatch.class.getClassLoader());
+            batch = extras.getParcelable(WeatherContract.INGEST_BATCH);
+        }
+        if (batch == null) {
+            throw new IllegalArgumentException("No " + WeatherContract.INGEST_BATCH);
+        }
+        return ingestWeatherRows(new BatchRows(batch), null, extras);
+    }
+
+    // The delta ingest of either call's rows, and the location stamping, purge and
+    // INGEST_NOTIFY_NOW around it.
+    private Bundle ingestWeatherRows(WeatherRows rows, ContentValues[] values, Bundle extras) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        byte[] outcomes;
+        mNotifier.beginWrite();
+        boolean committed = false;
+        beginTransaction(db);
+        try {
+            TimeZone zone = TimeZone.getDefault();
+            outcomes = ingestWeatherRows(db, rows, values, zone, mNotifier);
+            long now = System.currentTimeMillis();
+            rows.touchLocations(db, now);
+            mRetention.purge(db, now, rows.firstDay(now, zone), zone, mNotifier);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mNotifier.endWrite(committed);
+        }
+        if (extras.getBoolean(WeatherContract.INGEST_NOTIFY_NOW)) {
+            mNotifier.flush();
+        }
+        return ingestResult(outcomes);
+    }
+
+    // METHOD_INGEST_WEATHER_STREAM: a weather bulkInsert of the rows on the stream.
+    private Bundle ingestWeatherStream(Bundle extras) {
+        ParcelFileDescriptor stream = extras != null ?
+                (ParcelFileDescriptor) extras.getParcelable(WeatherContract.INGEST_STREAM) : null;
+        if (stream == null) {
+            throw new IllegalArgumentException("No " + WeatherContract.INGEST_STREAM);
+        }
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(stream);
+        try {
+            WeatherIngestStream.Reader reader = new WeatherIngestStream.Reader(in);
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            int returnCount;
+            mNotifier.beginWrite();
+            boolean committed = false;
+            beginTransaction(db);
+            try {
+                long now = System.currentTimeMillis();
+                TimeZone zone = TimeZone.getDefault();
+                returnCount = bulkInsertWeatherStream(db, reader, zone, mNotifier, now);
+                long firstDay = EpochDays.toEpochDay(now, zone);
+                if (reader.getFirstDate() != Long.MAX_VALUE) {
+                    firstDay = Math.min(firstDay,
+                            EpochDays.toEpochDay(reader.getFirstDate(), zone));
+                }
+                mRetention.purge(db, now, firstDay, zone, mNotifier);
+                db.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                db.endTransaction();
+                mNotifier.endWrite(committed);
+            }
+            Bundle result = new Bundle(1);
+            result.putInt(WeatherContract.INGEST_ROWS, returnCount);
+            return result;
+        } catch (IOException e) {
+            // the transaction rolled back; nothing from the stream is stored.  Only the message
+            // crosses a Binder call, so the cause is logged here as well as chained.
+            Log.e(LOG_TAG, "Bad weather stream", e);
+            throw new IllegalArgumentException("Bad weather stream: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // rolled back too, say by a database error
+            Log.e(LOG_TAG, "Error ingesting the weather stream", e);
+            throw e;
+        } finally {
+            // however the ingest ended, the writer must see its pipe close rather than block
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error closing the weather stream", e);
+            }
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // The result of an ingest call: the counts of each outcome, and the outcomes.
+    private static Bundle ingestResult(byte[] outcomes) {
+        int[] counts = new int[WeatherContract.INGEST_OUTCOME_INSERTED + 1];
+        for (byte outcome : outcomes) {
+            counts[outcome]++;
+        }
+        Bundle result = new Bundle(4);
+        result.putInt(WeatherContract.INGEST_UNCHANGED,
+                counts[WeatherContract.INGEST_OUTCOME_UNCHANGED]);
+        result.putInt(WeatherContract.INGEST_UPDATED,
+                counts[WeatherContract.INGEST_OUTCOME_UPDATED]);
+        result.putInt(WeatherContract.INGEST_INSERTED,
+                counts[WeatherContract.INGEST_OUTCOME_INSERTED]);
+        result.putByteArray(WeatherContract.INGEST_OUTCOMES, outcomes);
+        return result;
+    }
+
+    /*
+        EXPORT: a pipe the export is written into on a thread of its own, which ends when the
+        export does or the reader closes its end.  openTypedAssetFile needs nothing of its own:
+        ContentProvider's hands EXPORT_TYPE (or any type matching it) to this.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return super.openFile(uri, mode);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export is read-only, not \"" + mode + "\"");
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = createExportPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("No pipe for the export: " + e.getMessage());
+        }
+        // opens (and upgrades) the database before the export reads the file on its own
+        final String path = mOpenHelper.getReadableDatabase().getPath();
+        new Thread("WeatherExport") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                String error = null;
+                try {
+                    // a snapshot that doesn't take the write lock, as the reader sets the pace
+                    WeatherExportStream.writeSnapshot(path, out);
+                } catch (IOException e) {
+                    // the reader closed its end early; the export just stops
+                    Log.d(LOG_TAG, "Export stopped: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // a database error, say the database was closed under the export
+                    Log.e(LOG_TAG, "Export failed", e);
+                    error = "Export failed: " + e.getMessage();
+                } finally {
+                    closeExport(pipe[1], out, error);
+                }
+            }
+        }.start();
+        return pipe[0];
+    }
+
+    // A pipe whose writer can report an error to the reader, where the platform has one.
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static ParcelFileDescriptor[] createExportPipe() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return ParcelFileDescriptor.createReliablePipe();
+        }
+        return ParcelFileDescriptor.createPipe();
+    }
+
+    // Closes the export's end of the pipe, with the error if there was one.  Without a reliable
+    // pipe the reader still learns of it, as the export then ends without its end record.
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void closeExport(ParcelFileDescriptor descriptor, OutputStream out,
+                                    String error) {
+        try {
+            if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                descriptor.closeWithError(error);
+            } else {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error closing the export", e);
+        }
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -229,28 +839,45 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
 
-        switch (match) {
-            case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
-                if (_id > 0)
-                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
-            }
-            case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if (_id > 0)
-                    returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+        mNotifier.beginWrite();
+        boolean committed = false;
+        try {
+            switch (match) {
+                case WEATHER: {
+                    // the upsert's SELECT and its write must see the same rows, or two inserts
+                    // of one day both miss it and the second breaks the UNIQUE constraint
+                    beginTransaction(db);
+                    try {
+                        long _id = upsertWeatherRow(db, values);
+                        if (_id > 0)
+                            returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                        else
+                            throw new android.database.SQLException(
+                                    "Failed to insert row into " + uri);
+                        markWeatherRow(mNotifier, db, values);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    break;
+                }
+                case LOCATION: {
+                    long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                            withLastUsed(values, System.currentTimeMillis()));
+                    if (_id > 0)
+                        returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    else
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    mNotifier.markUri(uri);
+                    break;
+                }
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+            committed = true;
+        } finally {
+            mNotifier.endWrite(committed);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
         return returnUri;
     }
 
@@ -261,26 +888,37 @@ public class WeatherProvider extends ContentProvider {
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if (null == selection) selection = "1";
-        switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case LOCATION:
-                rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
-        }
-        // Because a null deletes all rows
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+
+        mNotifier.beginWrite();
+        boolean committed = false;
+        try {
+            switch (match) {
+                case WEATHER:
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    break;
+                case LOCATION:
+                    rowsDeleted = db.delete(
+                            WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
+            // Because a null deletes all rows
+            if (rowsDeleted != 0) {
+                mNotifier.markUri(uri);
+                if (match == LOCATION) {
+                    mNotifier.markLocationKeysChanged();
+                }
+            }
+            committed = true;
+        } finally {
+            mNotifier.endWrite(committed);
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    private static void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
@@ -288,6 +926,21 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    // Scopes the notification for a single written weather row to its location.
+    private static void markWeatherRow(WeatherChangeNotifier notifier, SQLiteDatabase db,
+                                       ContentValues values) {
+        if (notifier == null) {
+            return;
+        }
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            notifier.markWeather(db, locationId, date);
+        } else {
+            notifier.markUri(WeatherContract.WeatherEntry.CONTENT_URI);
+        }
+    }
+
     @Override
     public int update(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
@@ -295,49 +948,503 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
 
+        mNotifier.beginWrite();
+        boolean committed = false;
+        try {
+            switch (match) {
+                case WEATHER:
+                    normalizeDate(values);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
+                            selectionArgs);
+                    break;
+                case LOCATION:
+                    rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
+                            selectionArgs);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
+            if (rowsUpdated != 0) {
+                mNotifier.markUri(uri);
+                if (match == LOCATION && changesLocationKeys(values)) {
+                    mNotifier.markLocationKeysChanged();
+                }
+            }
+            committed = true;
+        } finally {
+            mNotifier.endWrite(committed);
+        }
+        return rowsUpdated;
+    }
+
+    // Whether a location update can move a setting to another _id.  The validators every sync
+    // writes can't, and mustn't cost the ingest path its cached ids.
+    private static boolean changesLocationKeys(ContentValues values) {
+        return values.containsKey(WeatherContract.LocationEntry._ID) ||
+                values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int match = sUriMatcher.match(uri);
+        int returnCount;
         switch (match) {
             case WEATHER:
-                normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
             case LOCATION:
-                rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
                 break;
             default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+                return super.bulkInsert(uri, values);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+
+        mNotifier.beginWrite();
+        boolean committed = false;
+        beginTransaction(db);
+        try {
+            if (match == WEATHER) {
+                TimeZone zone = TimeZone.getDefault();
+                returnCount = bulkInsertWeatherCompiled(db, values, zone, mNotifier);
+                // a weather ingest is also when old rows are purged, a batch at a time
+                long now = System.currentTimeMillis();
+                WeatherRetention.touchLocations(db, values, now);
+                mRetention.purge(db, now, values, zone, mNotifier);
+            } else {
+                returnCount = bulkUpsertLocations(db, values, System.currentTimeMillis());
+                if (returnCount != 0) {
+                    mNotifier.markUri(uri);
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mNotifier.endWrite(committed);
         }
-        return rowsUpdated;
+        return returnCount;
     }
 
+    /*
+        Runs the whole batch in one transaction.  The operations' insert, update, delete and
+        bulkInsert calls nest inside this write, so their changes are only notified once the
+        batch commits -- coalesced per location -- and not at all if it fails.
+     */
     @Override
-    public int bulkInsert(Uri uri, ContentValues[] values) {
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+        ContentProviderResult[] results;
+        mNotifier.beginWrite();
+        boolean committed = false;
+        beginTransaction(db);
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mNotifier.endWrite(committed);
+        }
+        return results;
+    }
+
+    /*
+        Android's beginTransaction is EXCLUSIVE.  Under WAL a non-exclusive (IMMEDIATE)
+        transaction still keeps other writers out but lets readers on the pooled connections
+        carry on, which is the point of WAL here.
+     */
+    @TargetApi(11)
+    private void beginTransaction(SQLiteDatabase db) {
+        if (mOpenHelper.isWriteAheadLogging()) {
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+    }
+
+    /*
+        Inserts each location, or refreshes the city name and coordinates of the row already
+        holding its location_setting.  Existing rows keep their _id, so weather rows pointing at
+        them stay attached.  Returns the number of rows inserted or updated.  Rows that are not
+        exactly the four non-null sLocationUpsertColumns fall back to db.insert, which rejects
+        them the same way insert() does.  Every row written is stamped as last used at now.
+        Must be called inside a transaction.
+     */
+    static int bulkUpsertLocations(SQLiteDatabase db, ContentValues[] values, long now) {
+        final SQLiteStatement insert = db.compileStatement(sLocationInsertStatement);
+        final SQLiteStatement update = db.compileStatement(sLocationUpdateStatement);
+        int returnCount = 0;
+        try {
+            for (ContentValues value : values) {
+                // a missing column would be bound as NULL, and INSERT OR IGNORE would swallow
+                // the NOT NULL violation
+                if (!canBindRow(value, sLocationUpsertColumns) ||
+                        value.size() != sLocationUpsertColumns.length || hasNullValue(value)) {
+                    if (db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                            withLastUsed(value, now)) != -1) {
+                        returnCount++;
+                    }
+                    continue;
+                }
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                    insert.clearBindings();
+                    for (int i = 0; i < sLocationUpsertColumns.length; i++) {
+                        bindValue(insert, i + 1, value.get(sLocationUpsertColumns[i]));
+                    }
+                    insert.bindLong(sLocationUpsertColumns.length + 1, now);
+                    if (insert.executeInsert() == -1) {
+                        // location_setting is already there; the parameters match the UPDATE's
+                        update.clearBindings();
+                        for (int i = 0; i < sLocationUpsertColumns.length; i++) {
+                            bindValue(update, i + 1, value.get(sLocationUpsertColumns[i]));
                         }
+                        update.bindLong(sLocationUpsertColumns.length + 1, now);
+                        update.execute();
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                    returnCount++;
+                } catch (android.database.SQLException e) {
+                    Log.e(LOG_TAG, "Error upserting " + value, e);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+            }
+        } finally {
+            insert.close();
+            update.close();
+        }
+        return returnCount;
+    }
+
+    /*
+        The original ingest loop: every row goes through normalizeDate (a zone lookup per row)
+        and upsertWeatherRow, which builds and compiles a fresh query and INSERT or UPDATE for
+        each ContentValues.  Kept as the baseline for the ingest benchmark.
+        Must be called inside a transaction.
+     */
+    static int bulkInsertWeatherRowByRow(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        for (ContentValues value : values) {
+            long _id = upsertWeatherRow(db, value);
+            if (_id != -1) {
+                returnCount++;
+            }
+        }
+        return returnCount;
+    }
+
+    /*
+        Writes one weather row: updates the row already stored for its (location_id, date) in
+        place, keeping its _id, or inserts it if there's none.  Normalizes the row's date and
+        stores its content hash.  Returns the row's _id, or -1 if it couldn't be written.  Call
+        it inside a transaction, so no other write lands between the lookup and the write.
+     */
+    static long upsertWeatherRow(SQLiteDatabase db, ContentValues value) {
+        normalizeDate(value);
+        ContentValues row = new ContentValues(value);
+        Long hash = contentHash(value);
+        if (hash != null) {
+            row.put(WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH, hash);
+        } else {
+            row.putNull(WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH);
+        }
+
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            long _id = -1;
+            Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherContract.WeatherEntry._ID},
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                    new String[]{Long.toString(locationId), Long.toString(date)},
+                    null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    _id = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (_id != -1) {
+                return db.update(WeatherContract.WeatherEntry.TABLE_NAME, row,
+                        WeatherContract.WeatherEntry._ID + " = " + _id, null) > 0 ? _id : -1;
+            }
+        }
+        return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, row);
+    }
+
+    /*
+        Compiles one UPDATE and one INSERT for the whole batch and binds each row straight into
+        them: the UPDATE rewrites the row already stored for the (location_id, date) in place,
+        and only if it changed nothing is the row inserted.  Existing rows keep their _id, so
+        weather/# URIs stay valid, and a refresh touches neither the (date, location_id) index
+        nor the AUTOINCREMENT counter.  Dates are normalized against the default zone, looked up
+        once for the batch.  Rows the statements can't bind -- missing a column, or carrying one
+        outside sWeatherInsertColumns (an explicit _id, say) -- fall back to upsertWeatherRow so
+        the count and the stored data match the row-by-row loop.  Must be called inside a
+        transaction.
+     */
+    static int bulkInsertWeatherCompiled(SQLiteDatabase db, ContentValues[] values) {
+        return bulkInsertWeatherCompiled(db, values, TimeZone.getDefault(), null);
+    }
+
+    private static int bulkInsertWeatherCompiled(SQLiteDatabase db, ContentValues[] values,
+                                                 TimeZone zone, WeatherChangeNotifier notifier) {
+        final SQLiteStatement update = db.compileStatement(sWeatherUpdateStatement);
+        final SQLiteStatement changes = db.compileStatement(sChangesQuery);
+        final SQLiteStatement insert = db.compileStatement(sWeatherInsertStatement);
+        try {
+            return upsertWeatherRows(db, new ValuesRows(values), values, zone, notifier,
+                    update, changes, insert);
+        } finally {
+            update.close();
+            changes.close();
+            insert.close();
+        }
+    }
+
+    /*
+        The compiled bulkInsert of every row on the stream, decoded STREAM_CHUNK_ROWS at a time
+        into one ForecastBatch and bound from it, so the stream is never held whole.  Each chunk's
+        locations are stamped as used at now, as a bulkInsert's are.  Returns the rows inserted
+        or updated.  Must be called inside a transaction, which a failed stream must roll back.
+     */
+    static int bulkInsertWeatherStream(SQLiteDatabase db, WeatherIngestStream.Reader reader,
+                                       TimeZone zone, WeatherChangeNotifier notifier, long now)
+            throws IOException {
+        final SQLiteStatement update = db.compileStatement(sWeatherUpdateStatement);
+        final SQLiteStatement changes = db.compileStatement(sChangesQuery);
+        final SQLiteStatement insert = db.compileStatement(sWeatherInsertStatement);
+        ForecastBatch chunk = new ForecastBatch(STREAM_CHUNK_ROWS);
+        WeatherRows rows = new BatchRows(chunk);
+        int returnCount = 0;
+        try {
+            while (reader.read(chunk, STREAM_CHUNK_ROWS) > 0) {
+                returnCount += upsertWeatherRows(db, rows, null, zone, notifier, update, changes,
+                        insert);
+                WeatherRetention.touchLocations(db, chunk, now);
+                chunk.clear();
+            }
+        } finally {
+            update.close();
+            changes.close();
+            insert.close();
+        }
+        return returnCount;
+    }
+
+    /*
+        The compiled bulkInsert's loop: each row goes through the UPDATE, and only if that
+        changed nothing through the INSERT.  When the rows came as values, those the statements
+        can't bind go through upsertWeatherRow; a batch's rows always bind, so it passes null.
+        Returns the rows inserted or updated.
+     */
+    private static int upsertWeatherRows(SQLiteDatabase db, WeatherRows rows,
+                                         ContentValues[] values, TimeZone zone,
+                                         WeatherChangeNotifier notifier, SQLiteStatement update,
+                                         SQLiteStatement changes, SQLiteStatement insert) {
+        int returnCount = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            try {
+                if (values != null && !canBindWeatherRow(values[row])) {
+                    if (writeUnboundWeatherRow(db, values[row], notifier)) {
+                        returnCount++;
+                    }
+                    continue;
+                }
+                long normalizedDate = EpochDays.normalize(rows.getDate(row), zone);
+                long hash = rows.contentHash(row);
+                rows.bind(update, row, normalizedDate, hash);
+                update.execute();
+                boolean written = changes.simpleQueryForLong() > 0;
+                if (!written) {
+                    rows.bind(insert, row, normalizedDate, hash);
+                    written = insert.executeInsert() != -1;
+                }
+                if (written) {
+                    returnCount++;
+                    if (notifier != null) {
+                        notifier.markWeather(db, rows.getLocationId(row), normalizedDate);
+                    }
+                }
+            } catch (android.database.SQLException e) {
+                // db.insert logs and returns -1 for a row that violates a constraint; the
+                // compiled statements and db.update throw instead.  Either way the row is not
+                // counted.
+                Log.e(LOG_TAG, "Error inserting " + rows.describe(row), e);
+            }
+        }
+        return returnCount;
+    }
+
+    /*
+        The delta ingest: each row is looked up by its (location_id, date) and compared by
+        content hash with the stored row.  An equal row is left alone, a different one is
+        updated in place -- keeping its _id -- and a new one is inserted.  Only rows written are
+        marked for notification.  Rows the compiled statements can't bind go through
+        upsertWeatherRow, as in the compiled bulkInsert, and count as inserted.  Returns each
+        row's WeatherContract.INGEST_OUTCOME_*.  Must be called inside a transaction.
+     */
+    static byte[] ingestWeatherDelta(SQLiteDatabase db, ContentValues[] values, TimeZone zone,
+                                     WeatherChangeNotifier notifier) {
+        return ingestWeatherRows(db, new ValuesRows(values), values, zone, notifier);
+    }
+
+    /*
+        The delta ingest for a ForecastBatch, with each row bound from the batch's arrays.  Must
+        be called inside a transaction.
+     */
+    static byte[] ingestWeatherBatch(SQLiteDatabase db, ForecastBatch batch, TimeZone zone,
+                                     WeatherChangeNotifier notifier) {
+        return ingestWeatherRows(db, new BatchRows(batch), null, zone, notifier);
+    }
+
+    // The delta ingest's loop; values as for upsertWeatherRows.
+    private static byte[] ingestWeatherRows(SQLiteDatabase db, WeatherRows rows,
+                                            ContentValues[] values, TimeZone zone,
+                                            WeatherChangeNotifier notifier) {
+        final SQLiteStatement unchanged = db.compileStatement(sWeatherUnchangedQuery);
+        final SQLiteStatement update = db.compileStatement(sWeatherUpdateStatement);
+        final SQLiteStatement insert = db.compileStatement(sWeatherInsertStatement);
+        byte[] outcomes = new byte[rows.size()];
+        try {
+            for (int row = 0; row < outcomes.length; row++) {
+                if (values != null && !canBindWeatherRow(values[row])) {
+                    if (writeUnboundWeatherRow(db, values[row], notifier)) {
+                        outcomes[row] = WeatherContract.INGEST_OUTCOME_INSERTED;
+                    }
+                    continue;
+                }
+                long locationId = rows.getLocationId(row);
+                long normalizedDate = EpochDays.normalize(rows.getDate(row), zone);
+                long hash = rows.contentHash(row);
+                try {
+                    unchanged.bindLong(1, locationId);
+                    unchanged.bindLong(2, normalizedDate);
+                    unchanged.bindLong(3, hash);
+                    boolean stored;
+                    boolean same = false;
+                    try {
+                        same = unchanged.simpleQueryForLong() != 0;
+                        stored = true;
+                    } catch (SQLiteDoneException e) {
+                        stored = false;
+                    }
+                    if (same) {
+                        outcomes[row] = WeatherContract.INGEST_OUTCOME_UNCHANGED;
+                        continue;
+                    }
+                    if (stored) {
+                        rows.bind(update, row, normalizedDate, hash);
+                        update.execute();
+                        outcomes[row] = WeatherContract.INGEST_OUTCOME_UPDATED;
+                    } else {
+                        rows.bind(insert, row, normalizedDate, hash);
+                        if (insert.executeInsert() == -1) {
+                            continue;
+                        }
+                        outcomes[row] = WeatherContract.INGEST_OUTCOME_INSERTED;
+                    }
+                    if (notifier != null) {
+                        notifier.markWeather(db, locationId, normalizedDate);
+                    }
+                } catch (android.database.SQLException e) {
+                    Log.e(LOG_TAG, "Error ingesting " + rows.describe(row), e);
+                }
+            }
+        } finally {
+            unchanged.close();
+            update.close();
+            insert.close();
+        }
+        return outcomes;
+    }
+
+    // Binds a batch row into the insert or update, in sWeatherInsertColumns order.
+    private static void bindWeatherRow(SQLiteStatement statement, ForecastBatch batch, int row,
+                                       long normalizedDate, long hash) {
+        statement.bindLong(1, batch.getLocationId(row));
+        statement.bindLong(2, normalizedDate);
+        statement.bindLong(3, batch.getWeatherId(row));
+        statement.bindString(4, batch.getDescription(row));
+        statement.bindDouble(5, batch.getMinTemp(row));
+        statement.bindDouble(6, batch.getMaxTemp(row));
+        statement.bindDouble(7, batch.getHumidity(row));
+        statement.bindDouble(8, batch.getPressure(row));
+        statement.bindDouble(9, batch.getWindSpeed(row));
+        statement.bindDouble(10, batch.getDegrees(row));
+        statement.bindLong(11, hash);
+    }
+
+    // Binds a weather row into the insert or update: its columns in sWeatherInsertColumns
+    // order, with the date normalized, and its content hash.
+    private static void bindWeatherRow(SQLiteStatement statement, ContentValues value,
+                                       long normalizedDate, long hash) {
+        int hashIndex = sWeatherInsertColumns.length;
+        for (int i = 0; i < hashIndex - 1; i++) {
+            bindValue(statement, i + 1, value.get(sWeatherInsertColumns[i]));
+        }
+        statement.bindLong(2, normalizedDate);
+        statement.bindLong(hashIndex, hash);
+    }
+
+    // The row's WeatherEntry.contentHash, or null if it lacks a column the hash covers.
+    private static Long contentHash(ContentValues value) {
+        Integer weatherId = value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        String shortDesc = value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        Double min = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        Double max = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        Double humidity = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY);
+        Double pressure = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+        Double wind = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED);
+        Double degrees = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES);
+        if (weatherId == null || shortDesc == null || min == null || max == null ||
+                humidity == null || pressure == null || wind == null || degrees == null) {
+            return null;
+        }
+        return WeatherContract.WeatherEntry.contentHash(weatherId, shortDesc, min, max,
+                humidity, pressure, wind, degrees);
+    }
+
+    // The row with last_used stamped at now, unless the caller set it.
+    private static ContentValues withLastUsed(ContentValues value, long now) {
+        if (value.containsKey(WeatherContract.LocationEntry.COLUMN_LAST_USED)) {
+            return value;
+        }
+        ContentValues stamped = new ContentValues(value);
+        stamped.put(WeatherContract.LocationEntry.COLUMN_LAST_USED, now);
+        return stamped;
+    }
+
+    private static boolean canBindRow(ContentValues value, String[] columns) {
+        int known = 0;
+        for (String column : columns) {
+            if (value.containsKey(column)) {
+                known++;
+            }
+        }
+        return known == value.size();
+    }
+
+    private static boolean hasNullValue(ContentValues value) {
+        for (Map.Entry<String, Object> entry : value.valueSet()) {
+            if (entry.getValue() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
         }
     }
 
@@ -350,4 +1457,165 @@ public class WeatherProvider extends ContentProvider {
         mOpenHelper.close();
         super.shutdown();
     }
-}
\ No newline at end of file
+
+    /*
+        Whether the row has a location, a date and every hashed column, and no other columns,
+        so the compiled statements can bind it.
+     */
+    private static boolean canBindWeatherRow(ContentValues value) {
+        return value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) != null &&
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE) != null &&
+                contentHash(value) != null &&
+                canBindRow(value, sWeatherInsertColumns);
+    }
+
+    // Writes a row canBindWeatherRow refused through upsertWeatherRow, marking it if written.
+    private static boolean writeUnboundWeatherRow(SQLiteDatabase db, ContentValues value,
+                                                  WeatherChangeNotifier notifier) {
+        if (upsertWeatherRow(db, value) == -1) {
+            return false;
+        }
+        markWeatherRow(notifier, db, value);
+        return true;
+    }
+
+    /*
+        The weather rows of an ingest as the ingest loops read them, whether they came as
+        ContentValues or as a ForecastBatch.  Rows that came as ContentValues are only read
+        through here once canBindWeatherRow has accepted them.
+     */
+    private interface WeatherRows {
+        int size();
+
+        long getLocationId(int row);
+
+        long getDate(int row);
+
+        long contentHash(int row);
+
+        // Binds the row in sWeatherInsertColumns order, with its date normalized.
+        void bind(SQLiteStatement statement, int row, long normalizedDate, long hash);
+
+        // The row, for the log.
+        String describe(int row);
+
+        void touchLocations(SQLiteDatabase db, long now);
+
+        // WeatherRetention.firstDay of the rows.
+        long firstDay(long now, TimeZone zone);
+    }
+
+    private static final class ValuesRows implements WeatherRows {
+        private final ContentValues[] mValues;
+
+        ValuesRows(ContentValues[] values) {
+            mValues = values;
+        }
+
+        @Override
+        public int size() {
+            return mValues.length;
+        }
+
+        @Override
+        public long getLocationId(int row) {
+            return mValues[row].getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        }
+
+        @Override
+        public long getDate(int row) {
+            return mValues[row].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        }
+
+        @Override
+        public long contentHash(int row) {
+            return WeatherProvider.contentHash(mValues[row]);
+        }
+
+        @Override
+        public void bind(SQLiteStatement statement, int row, long normalizedDate, long hash) {
+            bindWeatherRow(statement, mValues[row], normalizedDate, hash);
+        }
+
+        @Override
+        public String describe(int row) {
+            return mValues[row].toString();
+        }
+
+        @Override
+        public void touchLocations(SQLiteDatabase db, long now) {
+            WeatherRetention.touchLocations(db, mValues, now);
+        }
+
+        @Override
+        public long firstDay(long now, TimeZone zone) {
+            return WeatherRetention.firstDay(now, mValues, zone);
+        }
+    }
+
+    private static final class BatchRows implements WeatherRows {
+        private final ForecastBatch mBatch;
+
+        BatchRows(ForecastBatch batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public int size() {
+            return mBatch.size();
+        }
+
+        @Override
+        public long getLocationId(int row) {
+            return mBatch.getLocationId(row);
+        }
+
+        @Override
+        public long getDate(int row) {
+            return mBatch.getDate(row);
+        }
+
+        @Override
+        public long contentHash(int row) {
+            return mBatch.contentHash(row);
+        }
+
+        @Override
+        public void bind(SQLiteStatement statement, int row, long normalizedDate, long hash) {
+            bindWeatherRow(statement, mBatch, row, normalizedDate, hash);
+        }
+
+        @Override
+        public String describe(int row) {
+            return "row " + row + " for location " + mBatch.getLocationId(row);
+        }
+
+        @Override
+        public void touchLocations(SQLiteDatabase db, long now) {
+            WeatherRetention.touchLocations(db, mBatch, now);
+        }
+
+        @Override
+        public long firstDay(long now, TimeZone zone) {
+            return WeatherRetention.firstDay(now, mBatch, zone);
+        }
+    }
+
+    /*
+        Hands out the location row once, through getExtras(), rather than on every weather row.
+        (Cursor.setExtras only arrived in API 23.)
+     */
+    private static final class LocationExtrasCursor extends CursorWrapper {
+        private final Bundle mExtras;
+
+        LocationExtrasCursor(Cursor cursor, Bundle extras) {
+            super(cursor);
+            mExtras = extras;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An LRU cache of provider query results, so a rotation or a two-pane reselection doesn't run
+ * the same forecast query and refill a CursorWindow again.
+ * <p/>
+ * Results are copied into immutable snapshots, bounded by an estimate of their heap size, and
+ * every hit is served as a fresh cursor over the shared snapshot.  Each entry remembers the
+ * location and dates it covers, so a committed write only drops the entries that could have
+ * seen the rows it touched.  Only the location-scoped weather routes are cached; the caller's
+ * selection is ignored by those, so (URI, projection, sort order) identifies a result.
+ */
+class WeatherQueryCache implements WeatherChangeNotifier.CommitListener {
+
+    // Rough heap cost of the objects a snapshot holds, for the memory budget.
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int BOXED_NUMBER_BYTES = 16;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    // access-ordered, so iteration starts at the least recently used entry; guarded by this
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private int mMaxBytes;
+    private int mSizeBytes;
+    // bumped by every invalidation, so a result read before a write can't be cached after it
+    private long mGeneration;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mInvalidationCount;
+
+    /**
+     * @param maxBytes the memory budget; zero turns the cache off.
+     */
+    WeatherQueryCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Snapshots need Cursor.getType, so the cache stays off before Honeycomb.
+     */
+    synchronized boolean isEnabled() {
+        return mMaxBytes > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * @return a cursor over the cached result for key, or null (counted as a miss).
+     */
+    synchronized Cursor get(Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new SnapshotCursor(entry.snapshot);
+    }
+
+    /**
+     * Read before running the query whose result goes to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copies a freshly queried result into the cache and returns the cursor to hand out in its
+     * place.  The result isn't kept when a write committed since generation was read, or when
+     * it is too large for the budget; the original cursor is then returned, rewound.
+     *
+     * @param locationSetting the location the result belongs to, or null if there's none
+     * @param date            the single date the result covers, or -1 for a range
+     * @param startDate       the first date of the range, or 0 for every date
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(Key key, Cursor cursor, long generation,
+               String locationSetting, long date, long startDate) {
+        int maxBytes;
+        synchronized (this) {
+            maxBytes = mMaxBytes;
+        }
+        Snapshot snapshot = Snapshot.copyOf(cursor, maxBytes / 4);
+        if (snapshot == null) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+
+        Entry entry = new Entry(snapshot, locationSetting, date, startDate,
+                key.sizeBytes() + snapshot.sizeBytes);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                Entry previous = mEntries.put(key, entry);
+                if (previous != null) {
+                    mSizeBytes -= previous.sizeBytes;
+                }
+                mSizeBytes += entry.sizeBytes;
+                trimToSize(mMaxBytes);
+            }
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Drops the entries a committed write may have changed.  Weather rows are matched by
+     * location and date; anything the notifier could only describe by URI (location rows, or
+     * weather updated or deleted with an arbitrary selection) drops everything, since every
+     * cached result carries or depends on its location row.
+     */
+    @Override
+    public synchronized void onCommit(WeatherChangeNotifier.ChangeSet changes) {
+        mGeneration++;
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (!changes.uris.isEmpty() || entry.isAffectedBy(changes.weather)) {
+                mSizeBytes -= entry.sizeBytes;
+                mInvalidationCount++;
+                entries.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(WeatherContract.QUERY_CACHE_HITS, mHitCount);
+        stats.putInt(WeatherContract.QUERY_CACHE_MISSES, mMissCount);
+        stats.putInt(WeatherContract.QUERY_CACHE_EVICTIONS, mEvictionCount);
+        stats.putInt(WeatherContract.QUERY_CACHE_INVALIDATIONS, mInvalidationCount);
+        stats.putInt(WeatherContract.QUERY_CACHE_ENTRIES, mEntries.size());
+        stats.putInt(WeatherContract.QUERY_CACHE_SIZE_BYTES, mSizeBytes);
+        stats.putInt(WeatherContract.QUERY_CACHE_MAX_BYTES, mMaxBytes);
+        return stats;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private void trimToSize(int maxBytes) {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (mSizeBytes > maxBytes && entries.hasNext()) {
+            mSizeBytes -= entries.next().sizeBytes;
+            mEvictionCount++;
+            entries.remove();
+        }
+    }
+
+    private static int stringBytes(String s) {
+        return s == null ? 0 : STRING_OVERHEAD_BYTES + 2 * s.length();
+    }
+
+    /**
+     * What a cached result was asked for with.
+     */
+    static final class Key {
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(Uri uri, String[] projection, String sortOrder) {
+            mUri = uri.toString();
+            mProjection = projection == null ? null : projection.clone();
+            mSortOrder = sortOrder;
+            mHashCode = 31 * (31 * mUri.hashCode() + Arrays.hashCode(mProjection)) +
+                    (sortOrder == null ? 0 : sortOrder.hashCode());
+        }
+
+        int sizeBytes() {
+            int size = stringBytes(mUri) + stringBytes(mSortOrder);
+            if (mProjection != null) {
+                for (String column : mProjection) {
+                    size += REFERENCE_BYTES + stringBytes(column);
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode && mUri.equals(other.mUri) &&
+                    Arrays.equals(mProjection, other.mProjection) &&
+                    (mSortOrder == null ? other.mSortOrder == null : mSortOrder.equals(other.mSortOrder));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class Entry {
+        final Snapshot snapshot;
+        final String locationSetting;
+        final long date;
+        final long startDate;
+        final int sizeBytes;
+
+        Entry(Snapshot snapshot, String locationSetting, long date, long startDate, int sizeBytes) {
+            this.snapshot = snapshot;
+            this.locationSetting = locationSetting;
+            this.date = date;
+            this.startDate = startDate;
+            this.sizeBytes = ENTRY_OVERHEAD_BYTES + sizeBytes;
+        }
+
+        boolean isAffectedBy(Map<String, Set<Long>> weather) {
+            Set<Long> dates = locationSetting == null ? null : weather.get(locationSetting);
+            if (dates == null) {
+                return false;
+            }
+            if (date != -1) {
+                return dates.contains(date);
+            }
+            for (long written : dates) {
+                if (written >= startDate) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An immutable copy of a query result: its columns, its cells row by row (as Long, Double,
+     * String, byte[] or null) and its extras.
+     */
+    static final class Snapshot {
+        final String[] columnNames;
+        final Object[] cells;
+        final int rowCount;
+        final Bundle extras;
+        final int sizeBytes;
+
+        private Snapshot(String[] columnNames, Object[] cells, int rowCount, Bundle extras,
+                         int sizeBytes) {
+            this.columnNames = columnNames;
+            this.cells = cells;
+            this.rowCount = rowCount;
+            this.extras = extras;
+            this.sizeBytes = sizeBytes;
+        }
+
+        /**
+         * @return the copy, or null when it would take more than maxBytes.
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        static Snapshot copyOf(Cursor cursor, int maxBytes) {
+            String[] columnNames = cursor.getColumnNames();
+            int columnCount = columnNames.length;
+            int rowCount = cursor.getCount();
+            long sizeBytes = (long) rowCount * columnCount * REFERENCE_BYTES;
+            if (sizeBytes > maxBytes) {
+                return null;
+            }
+            for (String column : columnNames) {
+                sizeBytes += REFERENCE_BYTES + stringBytes(column);
+            }
+
+            Object[] cells = new Object[rowCount * columnCount];
+            int i = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int c = 0; c < columnCount; c++, i++) {
+                    switch (cursor.getType(c)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            cells[i] = cursor.getLong(c);
+                            sizeBytes += BOXED_NUMBER_BYTES;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            cells[i] = cursor.getDouble(c);
+                            sizeBytes += BOXED_NUMBER_BYTES;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String s = cursor.getString(c);
+                            cells[i] = s;
+                            sizeBytes += stringBytes(s);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(c);
+                            cells[i] = blob;
+                            sizeBytes += BOXED_NUMBER_BYTES + blob.length;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                if (sizeBytes > maxBytes) {
+                    return null;
+                }
+            }
+            return new Snapshot(columnNames, cells, rowCount, cursor.getExtras(), (int) sizeBytes);
+        }
+    }
+
+    /**
+     * A read-only cursor over a snapshot.  Conversions between types follow CursorWindow's.
+     */
+    static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        private Object cell(int column) {
+            checkPosition();
+            return mSnapshot.cells[getPosition() * mSnapshot.columnNames.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.rowCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.columnNames;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mSnapshot.extras;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = cell(column);
+            if (value == null || value instanceof String) {
+                return (String) value;
+            }
+            if (value instanceof byte[]) {
+                throw new android.database.sqlite.SQLiteException(
+                        "Unable to convert BLOB to string");
+            }
+            return value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = cell(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            if (value instanceof String) {
+                return ((String) value).getBytes();
+            }
+            throw new android.database.sqlite.SQLiteException(
+                    "Unable to convert " + value.getClass().getSimpleName() + " to BLOB");
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = cell(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Long.parseLong((String) value);
+                } catch (NumberFormatException e) {
+                    return (long) parseDouble((String) value);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = cell(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            if (value instanceof String) {
+                return parseDouble((String) value);
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return cell(column) == null;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = cell(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof String) {
+                return FIELD_TYPE_STRING;
+            }
+            return FIELD_TYPE_BLOB;
+        }
+
+        private static double parseDouble(String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
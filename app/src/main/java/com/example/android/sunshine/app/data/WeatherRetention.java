@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Keeps the weather table from growing without bound: weather for days more than a set number
+ * of days in the past is deleted, and so are locations that haven't been used for a set number
+ * of days, with their weather.  "Today" is the earlier of the device's today and the first day
+ * of the ingest, since a forecast starts on the city's today, which may be behind ours; that
+ * way a purge never deletes rows its own ingest just wrote.
+ * <p/>
+ * Each ingest runs one purge inside its own transaction, and a purge deletes at most a fixed
+ * number of rows, so a large backlog is worked off over several syncs instead of holding the
+ * database in one long delete.
+ */
+class WeatherRetention {
+
+    private static final String LOG_TAG = WeatherRetention.class.getSimpleName();
+
+    // SELECT _id, location_id, date FROM weather WHERE date < ? LIMIT ?
+    // Served by the UNIQUE (date, location_id) index.
+    private static final String sPastWeatherQuery =
+            "SELECT " + WeatherEntry._ID + ", " + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + " FROM " + WeatherEntry.TABLE_NAME +
+                    " WHERE " + WeatherEntry.COLUMN_DATE + " < ? LIMIT ?";
+
+    // SELECT _id, location_id, date FROM weather WHERE location_id = ? LIMIT ?
+    private static final String sLocationWeatherQuery =
+            "SELECT " + WeatherEntry._ID + ", " + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + " FROM " + WeatherEntry.TABLE_NAME +
+                    " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? LIMIT ?";
+
+    // SELECT _id FROM location WHERE last_used < ? LIMIT ?
+    private static final String sUnusedLocationQuery =
+            "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+                    " WHERE " + LocationEntry.COLUMN_LAST_USED + " < ? LIMIT ?";
+
+    private static final String sDeleteWeatherStatement =
+            "DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry._ID + " = ?";
+
+    private static final String sDeleteLocationStatement =
+            "DELETE FROM " + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry._ID + " = ?";
+
+    private static final String sTouchLocationStatement =
+            "UPDATE " + LocationEntry.TABLE_NAME + " SET " + LocationEntry.COLUMN_LAST_USED +
+                    " = ? WHERE " + LocationEntry._ID + " = ?";
+
+    // Unused locations looked at per purge; each one costs a query even if it has no weather.
+    private static final int MAX_LOCATIONS_PER_PURGE = 4;
+
+    private final int mPastDays;
+    private final int mUnusedLocationDays;
+    private final int mBatchRows;
+
+    // Totals since the provider started; guarded by this.
+    private int mWeatherRowsDeleted;
+    private int mLocationsDeleted;
+
+    /**
+     * @param pastDays           days before today whose weather is kept
+     * @param unusedLocationDays days a location may go unused before it is dropped
+     * @param batchRows          most rows one purge deletes
+     */
+    WeatherRetention(int pastDays, int unusedLocationDays, int batchRows) {
+        mPastDays = pastDays;
+        mUnusedLocationDays = unusedLocationDays;
+        mBatchRows = batchRows;
+    }
+
+    /**
+     * What one purge did.
+     */
+    static final class Report {
+        int weatherRowsDeleted;
+        int locationsDeleted;
+        // false when the purge stopped at its batch limit with rows left to delete
+        boolean caughtUp = true;
+    }
+
+    /**
+     * Marks the locations the given weather rows belong to as used at now.
+     */
+    static void touchLocations(SQLiteDatabase db, ContentValues[] weather, long now) {
+        Set<Long> locationIds = new HashSet<Long>();
+        for (ContentValues value : weather) {
+            Long locationId = value.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+            if (locationId != null) {
+                locationIds.add(locationId);
+            }
+        }
+        if (locationIds.isEmpty()) {
+            return;
+        }
+        SQLiteStatement touch = db.compileStatement(sTouchLocationStatement);
+        try {
+            for (long locationId : locationIds) {
+                touch.bindLong(1, now);
+                touch.bindLong(2, locationId);
+                touch.execute();
+            }
+        } finally {
+            touch.close();
+        }
+    }
+
+    /**
+     * Marks the locations the batch's rows belong to as used at now.
+     */
+    static void touchLocations(SQLiteDatabase db, ForecastBatch weather, long now) {
+        SQLiteStatement touch = db.compileStatement(sTouchLocationStatement);
+        try {
+            // rows come grouped by location, so this touches each about once
+            long previous = 0;
+            for (int row = 0; row < weather.size(); row++) {
+                long locationId = weather.getLocationId(row);
+                if (row > 0 && locationId == previous) {
+                    continue;
+                }
+                touch.bindLong(1, now);
+                touch.bindLong(2, locationId);
+                touch.execute();
+                previous = locationId;
+            }
+        } finally {
+            touch.close();
+        }
+    }
+
+    /**
+     * Deletes up to the batch limit of expired rows.  Must be called inside the ingest's
+     * transaction; with a notifier, inside its write as well, so the deletes are notified and
+     * invalidate the query cache with the rest of the ingest.
+     *
+     * @param ingested the weather rows the ingest wrote, or null
+     * @param zone     the zone the ingest normalized its dates against
+     */
+    Report purge(SQLiteDatabase db, long now, ContentValues[] ingested, TimeZone zone,
+                 WeatherChangeNotifier notifier) {
+        return purge(db, now, firstDay(now, ingested, zone), zone, notifier);
+    }
+
+    /**
+     * Deletes up to the batch limit of expired rows, as {@link #purge(SQLiteDatabase, long,
+     * ContentValues[], TimeZone, WeatherChangeNotifier)} does for the given first day.
+     *
+     * @param firstDay the epoch day past weather is kept from the retention window before:
+     *                 today's, or the earliest day ingested if that comes first
+     */
+    Report purge(SQLiteDatabase db, long now, long firstDay, TimeZone zone,
+                 WeatherChangeNotifier notifier) {
+        Report report = new Report();
+        int budget = mBatchRows;
+        SQLiteStatement deleteWeather = db.compileStatement(sDeleteWeatherStatement);
+        SQLiteStatement deleteLocation = db.compileStatement(sDeleteLocationStatement);
+        try {
+            long oldestKept = EpochDays.startOfDayMillis(firstDay - mPastDays, zone);
+            int deleted = deleteWeather(db, deleteWeather, notifier, sPastWeatherQuery,
+                    Long.toString(oldestKept), budget);
+            report.weatherRowsDeleted += deleted;
+            budget -= deleted;
+
+            long unusedSince = now - mUnusedLocationDays * EpochDays.DAY_IN_MILLIS;
+            Cursor unused = db.rawQuery(sUnusedLocationQuery, new String[]{
+                    Long.toString(unusedSince), Integer.toString(MAX_LOCATIONS_PER_PURGE)});
+            try {
+                while (budget > 0 && unused.moveToNext()) {
+                    long locationId = unused.getLong(0);
+                    deleted = deleteWeather(db, deleteWeather, notifier, sLocationWeatherQuery,
+                            Long.toString(locationId), budget);
+                    report.weatherRowsDeleted += deleted;
+                    budget -= deleted;
+                    if (budget == 0) {
+                        // may have more weather; the location goes once that's all deleted
+                        break;
+                    }
+                    deleteLocation.bindLong(1, locationId);
+                    deleteLocation.execute();
+                    report.locationsDeleted++;
+                    if (notifier != null) {
+                        notifier.markUri(LocationEntry.CONTENT_URI);
+                        notifier.markLocationKeysChanged();
+                    }
+                }
+            } finally {
+                unused.close();
+            }
+        } finally {
+            deleteWeather.close();
+            deleteLocation.close();
+        }
+        report.caughtUp = budget > 0;
+
+        if (report.weatherRowsDeleted > 0 || report.locationsDeleted > 0) {
+            Log.d(LOG_TAG, "Reclaimed " + report.weatherRowsDeleted + " weather rows and " +
+                    report.locationsDeleted + " locations" +
+                    (report.caughtUp ? "" : ", more to purge"));
+        }
+        synchronized (this) {
+            mWeatherRowsDeleted += report.weatherRowsDeleted;
+            mLocationsDeleted += report.locationsDeleted;
+        }
+        return report;
+    }
+
+    /**
+     * The totals reclaimed since the provider started, and the table sizes.  The sizes are
+     * counted here, when asked for, so that purges don't scan both tables inside the ingest's
+     * write transaction; must not be called inside one.
+     */
+    Bundle getStats(SQLiteDatabase db) {
+        Bundle stats = new Bundle();
+        synchronized (this) {
+            stats.putInt(WeatherContract.RETENTION_WEATHER_ROWS_DELETED, mWeatherRowsDeleted);
+            stats.putInt(WeatherContract.RETENTION_LOCATIONS_DELETED, mLocationsDeleted);
+        }
+        stats.putLong(WeatherContract.RETENTION_WEATHER_ROWS,
+                DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        stats.putLong(WeatherContract.RETENTION_LOCATION_ROWS,
+                DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+        return stats;
+    }
+
+    // The epoch day of today, or of the earliest day ingested if that comes first.
+    static long firstDay(long now, ContentValues[] ingested, TimeZone zone) {
+        long firstDay = EpochDays.toEpochDay(now, zone);
+        if (ingested != null) {
+            for (ContentValues value : ingested) {
+                Long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+                if (date != null) {
+                    firstDay = Math.min(firstDay, EpochDays.toEpochDay(date, zone));
+                }
+            }
+        }
+        return firstDay;
+    }
+
+    // The epoch day of today, or of the earliest day in the batch if that comes first.
+    static long firstDay(long now, ForecastBatch ingested, TimeZone zone) {
+        long firstDay = EpochDays.toEpochDay(now, zone);
+        for (int row = 0; row < ingested.size(); row++) {
+            firstDay = Math.min(firstDay, EpochDays.toEpochDay(ingested.getDate(row), zone));
+        }
+        return firstDay;
+    }
+
+    // Deletes the weather rows a (_id, location_id, date) query returns, up to limit of them.
+    private static int deleteWeather(SQLiteDatabase db, SQLiteStatement delete,
+                                     WeatherChangeNotifier notifier, String query, String arg,
+                                     int limit) {
+        Cursor rows = db.rawQuery(query, new String[]{arg, Integer.toString(limit)});
+        int deleted = 0;
+        try {
+            while (rows.moveToNext()) {
+                delete.bindLong(1, rows.getLong(0));
+                delete.execute();
+                deleted++;
+                if (notifier != null) {
+                    notifier.markWeather(db, rows.getLong(1), rows.getLong(2));
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads and parses the OpenWeatherMap daily forecast for a location setting.  Requests are
+ * conditional on the validators of the last forecast stored for the location, so an unchanged
+ * forecast costs a 304 and no parsing.  Requests go through the shared WeatherHttpClient, so
+ * back-to-back fetches reuse one kept-alive connection.  This is WeatherSyncEngine's transport
+ * for everything but tests.
+ */
+public class ForecastFetcher implements WeatherSyncEngine.Transport {
+
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    public static final Uri OWM_FORECAST_URI =
+            Uri.parse("http://api.openweathermap.org/data/2.5/forecast/daily");
+
+    private static final String QUERY_PARAM = "zip";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    // days of forecast asked for unless the caller says otherwise
+    public static final int NUM_DAYS = 14;
+
+    private final Uri mForecastUri;
+    private final WeatherHttpClient mClient;
+
+    public ForecastFetcher() {
+        this(OWM_FORECAST_URI);
+    }
+
+    /**
+     * @param forecastUri where to ask for forecasts instead of OpenWeatherMap, for tests
+     */
+    public ForecastFetcher(Uri forecastUri) {
+        this(forecastUri, WeatherHttpClient.getInstance());
+    }
+
+    ForecastFetcher(Uri forecastUri, WeatherHttpClient client) {
+        mForecastUri = forecastUri;
+        mClient = client;
+    }
+
+    /**
+     * What a fetch came back with.
+     */
+    public static final class Result {
+        // true if the server said the stored forecast is still current; nothing else is set
+        public final boolean notModified;
+        public final ForecastParser.Forecast forecast;
+        public final ForecastValidators validators;
+
+        public Result(boolean notModified, ForecastParser.Forecast forecast,
+                      ForecastValidators validators) {
+            this.notModified = notModified;
+            this.forecast = forecast;
+            this.validators = validators;
+        }
+    }
+
+    Uri buildUri(String locationSetting) {
+        return buildUri(locationSetting, NUM_DAYS);
+    }
+
+    Uri buildUri(String locationSetting, int days) {
+        // http://api.openweathermap.org/data/2.5/forecast/dailyweather?zip=6037,nz&appid=2de143494c0b295cca9337e1e96b00e0
+        return mForecastUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting + ",nz")
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(days))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+    }
+
+    /**
+     * Fetches the forecast, unless the server says the one the validators came with is
+     * current.
+     *
+     * @param validators those stored for the location, or ForecastValidators.NONE
+     * @throws IOException if the request fails, the server answers with an error, or the
+     *                     response isn't a forecast
+     */
+    public Result fetch(String locationSetting, ForecastValidators validators)
+            throws IOException {
+        return fetch(locationSetting, validators, NUM_DAYS);
+    }
+
+    /**
+     * Fetches the first days of the forecast.  Validators describe the response they came
+     * with, so those of a forecast of one length don't hold for another.
+     *
+     * @param days how many days to ask for, today first
+     */
+    @Override
+    public Result fetch(String locationSetting, ForecastValidators validators, int days)
+            throws IOException {
+        Uri builtUri = buildUri(locationSetting, days);
+        Log.d(LOG_TAG, builtUri.toString());
+
+        // Create the request to OpenWeatherMap, and open the connection
+        HttpURLConnection urlConnection = mClient.open(new URL(builtUri.toString()));
+        boolean released = false;
+        try {
+            validators.applyTo(urlConnection);
+            int status = urlConnection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mClient.release(urlConnection);
+                released = true;
+                return new Result(true, null, validators);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Forecast request failed: " + status);
+            }
+
+            // Parse the forecast as it arrives, without reading it into a String first
+            WeatherHttpClient.Body body = mClient.getBody(urlConnection);
+            ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+            ForecastParser.parse(body, forecast);
+            ForecastValidators newValidators = ForecastValidators.fromResponse(urlConnection);
+            // closing the body hands the connection back for the next fetch
+            released = true;
+            body.close();
+            return new Result(false, forecast, newValidators);
+        } finally {
+            if (!released) {
+                // disconnecting closes the body too; a failed response isn't worth draining
+                mClient.abort(urlConnection);
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.sunshine.app.data.EpochDays;
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.TimeZone;
+
+/**
+ * Reads an OpenWeatherMap daily forecast straight off the response stream, handing the city and
+ * each day to a {@link Listener} as they are read.  Only the fields Sunshine stores are kept;
+ * everything else is skipped without being built into strings or objects.
+ * <p/>
+ * android.util.JsonReader arrived in API 11.  Below that the response is read into a String and
+ * walked as an org.json tree, which is what the fetch code did before, so callers get the same
+ * records either way.
+ */
+public final class ForecastParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_DATE = "dt";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    // The fields a day must have, as bits of Day.mSeen; dt is optional.
+    private static final int SEEN_PRESSURE = 1;
+    private static final int SEEN_HUMIDITY = 1 << 1;
+    private static final int SEEN_WIND_SPEED = 1 << 2;
+    private static final int SEEN_WIND_DIRECTION = 1 << 3;
+    private static final int SEEN_HIGH = 1 << 4;
+    private static final int SEEN_LOW = 1 << 5;
+    private static final int SEEN_DESCRIPTION = 1 << 6;
+    private static final int SEEN_WEATHER_ID = 1 << 7;
+    private static final int SEEN_ALL = (1 << 8) - 1;
+
+    private static final String CHARSET = "UTF-8";
+
+    private ForecastParser() {
+    }
+
+    /**
+     * Receives a forecast as it is parsed.  The city may arrive before or after the days,
+     * in whatever order the server wrote them.  The parser hands every day of a response in the
+     * same Day, refilled, so a listener copies what it keeps.
+     */
+    public interface Listener {
+        void onCity(String cityName, double latitude, double longitude);
+
+        void onDay(Day day);
+    }
+
+    /**
+     * One day of the forecast, as OWM sent it.
+     */
+    public static final class Day {
+        // position in the list; day 0 is the city's today
+        public int index;
+        // seconds since the epoch OWM gave the day, or 0 if it left it out
+        public long dt;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        private int mSeen;
+
+        // Empties the day for the next one in the list.
+        private void reset(int index) {
+            this.index = index;
+            dt = 0;
+            description = null;
+            mSeen = 0;
+        }
+
+        /**
+         * @return the content hash of the weather row the day is stored as: everything but
+         * its place in the list and OWM's timestamp.  Equal days hash equal.
+         */
+        public long contentHash() {
+            return WeatherEntry.contentHash(weatherId, description, low, high, humidity,
+                    pressure, windSpeed, windDirection);
+        }
+    }
+
+    /**
+     * A Listener that appends each day straight into a {@link ForecastBatch} as a weather row of
+     * one location, dated by its place in the list counted from a start day, as OWM's first day
+     * is always the city's today.
+     */
+    public static class BatchFiller implements Listener {
+        public String cityName;
+        public double latitude;
+        public double longitude;
+
+        private final ForecastBatch mBatch;
+        private final long mLocationId;
+        private final long mStartDay;
+        private final TimeZone mZone;
+
+        /**
+         * @param startDay the epoch day, in zone, of the forecast's first day
+         */
+        public BatchFiller(ForecastBatch batch, long locationId, long startDay, TimeZone zone) {
+            mBatch = batch;
+            mLocationId = locationId;
+            mStartDay = startDay;
+            mZone = zone;
+        }
+
+        /**
+         * @return true if the response named a city; error responses don't.
+         */
+        public boolean hasCity() {
+            return cityName != null;
+        }
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            this.cityName = cityName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public void onDay(Day day) {
+            mBatch.add(mLocationId, EpochDays.startOfDayMillis(mStartDay + day.index, mZone),
+                    day.weatherId, day.description, day.low, day.high, day.humidity,
+                    day.pressure, day.windSpeed, day.windDirection);
+        }
+    }
+
+    /**
+     * A whole forecast, for callers that need the city before they can store the days: the
+     * days go into a ForecastBatch of their own, dated from the day the forecast was parsed,
+     * whose rows the sync engine moves under the location's _id with
+     * {@link ForecastBatch#addAll} once it has one.  Until then their location ids are 0.
+     */
+    public static final class Forecast extends BatchFiller {
+        public final ForecastBatch days;
+
+        /**
+         * A forecast whose first day is today in the default time zone.
+         */
+        public Forecast() {
+            this(TimeZone.getDefault());
+        }
+
+        private Forecast(TimeZone zone) {
+            this(EpochDays.toEpochDay(System.currentTimeMillis(), zone), zone);
+        }
+
+        /**
+         * @param startDay the epoch day, in zone, of the forecast's first day
+         */
+        public Forecast(long startDay, TimeZone zone) {
+            this(new ForecastBatch(ForecastFetcher.NUM_DAYS), startDay, zone);
+        }
+
+        private Forecast(ForecastBatch days, long startDay, TimeZone zone) {
+            super(days, 0, startDay, zone);
+            this.days = days;
+        }
+    }
+
+    /**
+     * Parses a forecast response.  The stream is read to the end of the JSON document but not
+     * closed.
+     *
+     * @return the number of days parsed
+     * @throws IOException if the stream fails or isn't a forecast
+     */
+    public static int parse(InputStream in, Listener listener) throws IOException {
+        Reader reader = new InputStreamReader(in, CHARSET);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStream(reader, listener);
+        }
+        try {
+            return parseTree(readFully(reader), listener);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseStream(Reader in, Listener listener) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int days = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_LIST.equals(name)) {
+                    days = readList(reader, listener);
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, listener);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return days;
+        } catch (IllegalStateException e) {
+            // JsonReader reports a value of the wrong type this way
+            throw new IOException("Not a forecast: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a forecast: " + e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Listener listener) throws IOException {
+        String cityName = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coord = reader.nextName();
+                    if (OWM_LATITUDE.equals(coord)) {
+                        latitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coord)) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (cityName == null || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            throw new IOException("Forecast city has no name or coordinates");
+        }
+        listener.onCity(cityName, latitude, longitude);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int readList(JsonReader reader, Listener listener) throws IOException {
+        int index = 0;
+        Day day = new Day();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            day.reset(index);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DATE.equals(name)) {
+                    day.dt = reader.nextLong();
+                } else if (OWM_PRESSURE.equals(name)) {
+                    day.pressure = reader.nextDouble();
+                    day.mSeen |= SEEN_PRESSURE;
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    // JSONObject.getInt truncates fractions; keep doing the same
+                    day.humidity = (int) reader.nextDouble();
+                    day.mSeen |= SEEN_HUMIDITY;
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    day.windSpeed = reader.nextDouble();
+                    day.mSeen |= SEEN_WIND_SPEED;
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    day.windDirection = reader.nextDouble();
+                    day.mSeen |= SEEN_WIND_DIRECTION;
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    readTemperature(reader, day);
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, day);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            checkDay(day);
+            listener.onDay(day);
+            index++;
+        }
+        reader.endArray();
+        return index;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readTemperature(JsonReader reader, Day day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                day.high = reader.nextDouble();
+                day.mSeen |= SEEN_HIGH;
+            } else if (OWM_MIN.equals(name)) {
+                day.low = reader.nextDouble();
+                day.mSeen |= SEEN_LOW;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    // Description is in a child array called "weather", which is 1 element long.
+    // That element also contains a weather code.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readWeather(JsonReader reader, Day day) throws IOException {
+        reader.beginArray();
+        boolean first = true;
+        while (reader.hasNext()) {
+            if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            first = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    day.description = reader.nextString();
+                    day.mSeen |= SEEN_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    day.weatherId = (int) reader.nextDouble();
+                    day.mSeen |= SEEN_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    private static void checkDay(Day day) throws IOException {
+        if (day.mSeen != SEEN_ALL) {
+            throw new IOException("Forecast day " + day.index + " is missing fields ("
+                    + Integer.toBinaryString(day.mSeen) + ")");
+        }
+    }
+
+    /**
+     * Parses a whole forecast response held in a String by building the org.json tree, the way
+     * the fetch code always did.  Kept for devices without JsonReader, and as the reference
+     * the streaming parser is tested against.
+     */
+    static int parseTree(String forecastJsonStr, Listener listener) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        listener.onCity(cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        Day day = new Day();
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            day.reset(i);
+            day.dt = dayForecast.optLong(OWM_DATE);
+            day.pressure = dayForecast.getDouble(OWM_PRESSURE);
+            day.humidity = dayForecast.getInt(OWM_HUMIDITY);
+            day.windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+            day.windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            day.description = weatherObject.getString(OWM_DESCRIPTION);
+            day.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            day.high = temperatureObject.getDouble(OWM_MAX);
+            day.low = temperatureObject.getDouble(OWM_MIN);
+            day.mSeen = SEEN_ALL;
+            listener.onDay(day);
+        }
+        return weatherArray.length();
+    }
+
+    static String readFully(Reader reader) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        char[] chars = new char[4096];
+        int read;
+        while ((read = reader.read(chars)) != -1) {
+            buffer.append(chars, 0, read);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP validators of the last forecast downloaded for a location, kept in its location row.
+ * Sending them back makes the server answer 304 Not Modified when the forecast hasn't changed,
+ * and then there is nothing to parse or store.
+ */
+public final class ForecastValidators {
+
+    public static final ForecastValidators NONE = new ForecastValidators(null, null, -1);
+
+    private static final String[] VALIDATOR_COLUMNS = {
+            LocationEntry.COLUMN_ETAG,
+            LocationEntry.COLUMN_LAST_MODIFIED,
+            LocationEntry.COLUMN_MAX_AGE
+    };
+    private static final int COL_ETAG = 0;
+    private static final int COL_LAST_MODIFIED = 1;
+    private static final int COL_MAX_AGE = 2;
+
+    private static final String LOCATION_SETTING_SELECTION =
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private static final String MAX_AGE = "max-age=";
+
+    // Well under SQLite's limit of 999 arguments per statement.
+    static final int MAX_SELECTION_ARGS = 500;
+
+    // null when the server didn't send one
+    public final String etag;
+    public final String lastModified;
+    // -1 when the server didn't say
+    public final long maxAgeSeconds;
+
+    public ForecastValidators(String etag, String lastModified, long maxAgeSeconds) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * @return the validators stored for each of the locations that has a row, by setting.
+     */
+    static Map<String, ForecastValidators> queryAll(ContentResolver resolver,
+                                                   List<String> locationSettings) {
+        Map<String, ForecastValidators> validators = new HashMap<String, ForecastValidators>();
+        String[] columns = new String[VALIDATOR_COLUMNS.length + 1];
+        System.arraycopy(VALIDATOR_COLUMNS, 0, columns, 0, VALIDATOR_COLUMNS.length);
+        columns[VALIDATOR_COLUMNS.length] = LocationEntry.COLUMN_LOCATION_SETTING;
+        for (int start = 0; start < locationSettings.size(); start += MAX_SELECTION_ARGS) {
+            List<String> chunk = locationSettings.subList(start,
+                    Math.min(start + MAX_SELECTION_ARGS, locationSettings.size()));
+            Cursor cursor = resolver.query(LocationEntry.CONTENT_URI, columns,
+                    inSelection(LocationEntry.COLUMN_LOCATION_SETTING, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    validators.put(cursor.getString(VALIDATOR_COLUMNS.length), fromRow(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return validators;
+    }
+
+    // "column IN (?,?,?)" for count arguments.
+    static String inSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column.length() + 6 + 2 * count);
+        selection.append(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    private static ForecastValidators fromRow(Cursor cursor) {
+        return new ForecastValidators(cursor.getString(COL_ETAG),
+                cursor.getString(COL_LAST_MODIFIED),
+                cursor.isNull(COL_MAX_AGE) ? -1 : cursor.getLong(COL_MAX_AGE));
+    }
+
+    /**
+     * @return the validators stored for the location, or NONE if it has none or isn't stored.
+     */
+    public static ForecastValidators query(ContentResolver resolver, String locationSetting) {
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI, VALIDATOR_COLUMNS,
+                LOCATION_SETTING_SELECTION, new String[]{locationSetting}, null);
+        if (cursor == null) {
+            return NONE;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return NONE;
+            }
+            return fromRow(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores the validators in the location's row, replacing the ones there.  Call it only once
+     * the forecast they came with is stored, or a later 304 would leave the location without
+     * that forecast.
+     */
+    public void store(ContentResolver resolver, String locationSetting) {
+        resolver.update(LocationEntry.CONTENT_URI, toContentValues(), LOCATION_SETTING_SELECTION,
+                new String[]{locationSetting});
+    }
+
+    /**
+     * @return an update of the location's row to these validators, for writing several
+     * locations' validators in one batch.
+     */
+    ContentProviderOperation newStoreOperation(String locationSetting) {
+        return ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValues(toContentValues())
+                .withSelection(LOCATION_SETTING_SELECTION, new String[]{locationSetting})
+                .build();
+    }
+
+    private ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_ETAG, etag);
+        values.put(LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        if (maxAgeSeconds == -1) {
+            values.putNull(LocationEntry.COLUMN_MAX_AGE);
+        } else {
+            values.put(LocationEntry.COLUMN_MAX_AGE, maxAgeSeconds);
+        }
+        return values;
+    }
+
+    /**
+     * @return true if there is nothing to make a request conditional on.
+     */
+    public boolean isEmpty() {
+        return etag == null && lastModified == null;
+    }
+
+    /**
+     * Makes the request conditional on the forecast having changed.  Call before connecting.
+     */
+    void applyTo(HttpURLConnection connection) {
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * @return the validators of a 200 response.
+     */
+    static ForecastValidators fromResponse(HttpURLConnection connection) {
+        return new ForecastValidators(connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"),
+                parseMaxAge(connection.getHeaderField("Cache-Control")));
+    }
+
+    // "public, max-age=600" -> 600; -1 if there is no usable max-age.
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.regionMatches(true, 0, MAX_AGE, 0, MAX_AGE.length())) {
+                try {
+                    long seconds = Long.parseLong(directive.substring(MAX_AGE.length()).trim());
+                    return seconds >= 0 ? seconds : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
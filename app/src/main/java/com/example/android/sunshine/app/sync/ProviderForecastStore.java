@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores forecasts through WeatherProvider.  Locations already stored are found in a
+ * {@link LocationIdCache}, when there is one, rather than looked up through the provider, and
+ * weather goes through the provider's delta ingest, as a {@link ForecastBatch}, so days that
+ * haven't changed since the last sync aren't rewritten.
+ */
+final class ProviderForecastStore implements WeatherSyncEngine.Store {
+
+    private static final String LOG_TAG = ProviderForecastStore.class.getSimpleName();
+
+    private static final String[] LOCATION_ID_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private final ContentResolver mResolver;
+    // null to look every location up through the provider
+    private final LocationIdCache mLocationIds;
+
+    /**
+     * @param locationIds where to find the location rows, or null to look every location up
+     *                    through the provider
+     */
+    ProviderForecastStore(ContentResolver resolver, LocationIdCache locationIds) {
+        mResolver = resolver;
+        mLocationIds = locationIds;
+    }
+
+    @Override
+    public Map<String, ForecastValidators> queryValidators(List<String> locationSettings) {
+        return ForecastValidators.queryAll(mResolver, locationSettings);
+    }
+
+    @Override
+    public boolean findLocationIds(List<String> locationSettings, Map<String, Long> ids,
+                                   List<String> misses) {
+        if (mLocationIds == null) {
+            misses.addAll(locationSettings);
+            return false;
+        }
+        boolean queried = mLocationIds.warm(mResolver);
+        ids.putAll(mLocationIds.lookup(locationSettings, misses));
+        return queried;
+    }
+
+    /*
+        One bulkInsert -- an INSERT OR IGNORE, so a row already there keeps its _id -- then one
+        query for the ids, which are cached unless the cache was dropped in between.  A cached
+        location's city name and coordinates are never rewritten, as OWM names the same place
+        for a setting every time; weather ingest still stamps it as used.
+     */
+    @Override
+    public void insertLocations(List<ContentValues> locations, Map<String, Long> ids) {
+        int generation = mLocationIds != null ? mLocationIds.getGeneration() : 0;
+        mResolver.bulkInsert(LocationEntry.CONTENT_URI,
+                locations.toArray(new ContentValues[locations.size()]));
+        List<String> settings = new ArrayList<String>(locations.size());
+        for (ContentValues location : locations) {
+            settings.add(location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING));
+        }
+        Map<String, Long> resolved = queryLocationIds(settings);
+        if (mLocationIds != null) {
+            mLocationIds.putAll(resolved, generation);
+        }
+        ids.putAll(resolved);
+    }
+
+    /*
+        Before Honeycomb there's no ContentResolver.call, so the rows go through bulkInsert as
+        ContentValues, every one counts as updated, and notifications wait out the provider's
+        debounce window as usual.
+     */
+    @Override
+    public byte[] storeWeather(ForecastBatch rows, boolean notifyNow) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return ingestWeatherBatch(rows, notifyNow);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, rows.toContentValues());
+        byte[] outcomes = new byte[rows.size()];
+        Arrays.fill(outcomes, WeatherContract.INGEST_OUTCOME_UPDATED);
+        return outcomes;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private byte[] ingestWeatherBatch(ForecastBatch rows, boolean notifyNow) {
+        Bundle extras = new Bundle(2);
+        extras.putParcelable(WeatherContract.INGEST_BATCH, rows);
+        extras.putBoolean(WeatherContract.INGEST_NOTIFY_NOW, notifyNow);
+        Bundle result = mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_INGEST_WEATHER_BATCH, null, extras);
+        return result.getByteArray(WeatherContract.INGEST_OUTCOMES);
+    }
+
+    @Override
+    public boolean storeValidators(Map<String, ForecastValidators> validators) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(validators.size());
+        for (Map.Entry<String, ForecastValidators> entry : validators.entrySet()) {
+            operations.add(entry.getValue().newStoreOperation(entry.getKey()));
+        }
+        try {
+            mResolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Error storing validators for " + validators.keySet(), e);
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing validators for " + validators.keySet(), e);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error storing validators for " + validators.keySet(), e);
+        }
+        return false;
+    }
+
+    // The _id of each stored location, by setting.  settings is at most
+    // WeatherSyncEngine.MAX_GROUP_LOCATIONS.
+    private Map<String, Long> queryLocationIds(List<String> settings) {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI, LOCATION_ID_COLUMNS,
+                ForecastValidators.inSelection(LocationEntry.COLUMN_LOCATION_SETTING,
+                        settings.size()),
+                settings.toArray(new String[settings.size()]), null);
+        if (cursor == null) {
+            return ids;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+}
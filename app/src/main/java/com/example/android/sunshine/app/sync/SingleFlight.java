@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one piece of work per key in flight.  The first caller to {@link #join} a key leads:
+ * it does the work and {@link #finish}es the key with the outcome.  Callers that join the key
+ * before then get the leader's {@link Flight} to wait on instead of doing the work again, and
+ * are counted as suppressed duplicates.
+ */
+final class SingleFlight<K, V> {
+
+    /**
+     * The outcome of a key's work, once its leader has finished it.
+     */
+    static final class Flight<V> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile V mValue;
+
+        /**
+         * @return the leader's outcome, once it has one.
+         */
+        V await() throws InterruptedException {
+            mDone.await();
+            return mValue;
+        }
+
+        private void complete(V value) {
+            mValue = value;
+            mDone.countDown();
+        }
+    }
+
+    // guarded by this
+    private final Map<K, Flight<V>> mInFlight = new HashMap<K, Flight<V>>();
+    private final AtomicLong mSuppressed = new AtomicLong();
+
+    /**
+     * @return the flight to wait on if the key is already in flight, or null if the caller now
+     * leads it and must call {@link #finish} whatever happens.
+     */
+    synchronized Flight<V> join(K key) {
+        Flight<V> flight = mInFlight.get(key);
+        if (flight != null) {
+            mSuppressed.incrementAndGet();
+            return flight;
+        }
+        mInFlight.put(key, new Flight<V>());
+        return null;
+    }
+
+    /**
+     * Hands the outcome of the key's work to everyone waiting on it.  The next caller to join
+     * the key leads a new flight.
+     */
+    void finish(K key, V value) {
+        Flight<V> flight;
+        synchronized (this) {
+            flight = mInFlight.remove(key);
+        }
+        if (flight != null) {
+            flight.complete(value);
+        }
+    }
+
+    /**
+     * @return how many callers have joined a flight instead of leading their own.
+     */
+    long getSuppressedCount() {
+        return mSuppressed.get();
+    }
+}
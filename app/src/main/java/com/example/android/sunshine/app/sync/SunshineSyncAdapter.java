@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.annotation.TargetApi;
+import android.content.AbstractThreadedSyncAdapter;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncRequest;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Syncs the preferred location's forecast for the sync manager.  The fetching and storing is
+ * all WeatherSyncEngine's; the adapter only decides whether a sync is due, and tells the sync
+ * manager how it went so failed syncs are retried with backoff.
+ */
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
+
+    private static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+
+    private final WeatherSyncEngine mEngine;
+    private final SyncScheduler mScheduler;
+
+    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        super(context, autoInitialize);
+        mEngine = new WeatherSyncEngine(context);
+        mScheduler = new SyncScheduler(context);
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority,
+                              ContentProviderClient provider, SyncResult syncResult) {
+        Log.d(LOG_TAG, "onPerformSync Called.");
+        List<String> settings =
+                Collections.singletonList(Utility.getPreferredLocation(getContext()));
+        WeatherSyncEngine.Report report;
+        if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)) {
+            // asked for by the user, or by a new location being picked
+            report = mEngine.syncNow(settings, mScheduler);
+        } else {
+            // the periodic sync fires on a fixed period; the scheduler says if it's worth a fetch
+            report = mEngine.syncDue(settings, mScheduler);
+        }
+
+        for (WeatherSyncEngine.LocationReport location : report.locations) {
+            switch (location.status) {
+                case UPDATED:
+                    syncResult.stats.numInserts += location.insertedDays;
+                    syncResult.stats.numUpdates += location.updatedDays;
+                    break;
+                case FAILED:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Helper method to have the sync adapter sync immediately
+     *
+     * @param context The context used to access the account service
+     */
+    public static void syncImmediately(Context context) {
+        Account account = getSyncAccount(context);
+        if (account == null) {
+            return;
+        }
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        ContentResolver.requestSync(account, context.getString(R.string.content_authority),
+                bundle);
+    }
+
+    /**
+     * Helper method to get the fake account to be used with SyncAdapter, or make a new one
+     * if the fake account doesn't exist yet.  If we make a new account, we call the
+     * onAccountCreated method so we can initialize things.
+     *
+     * @param context The context used to access the account service
+     * @return a fake account, or null if it couldn't be added.
+     */
+    public static Account getSyncAccount(Context context) {
+        // Get an instance of the Android account manager
+        AccountManager accountManager =
+                (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
+
+        // Create the account type and default account
+        Account newAccount = new Account(
+                context.getString(R.string.app_name),
+                context.getString(R.string.sync_account_type));
+
+        // If the password doesn't exist, the account doesn't exist
+        if (null == accountManager.getPassword(newAccount)) {
+            /*
+             * Add the account and account type, no password or user data
+             * If successful, return the Account object, otherwise report an error.
+             */
+            if (!accountManager.addAccountExplicitly(newAccount, "", null)) {
+                Log.e(LOG_TAG, "Couldn't add the sync account");
+                return null;
+            }
+            onAccountCreated(newAccount, context);
+        }
+        return newAccount;
+    }
+
+    /*
+        Syncs periodically at the scheduler's shortest interval.  Most of those syncs find the
+        forecast isn't due and fetch nothing; the scheduler widens the gap between real fetches
+        while the weather is settled.
+     */
+    private static void onAccountCreated(Account newAccount, Context context) {
+        long intervalSeconds =
+                context.getResources().getInteger(R.integer.sync_min_interval_minutes) * 60L;
+        configurePeriodicSync(context, newAccount, intervalSeconds, intervalSeconds / 3);
+
+        // Without calling setSyncAutomatically, our periodic sync will not be enabled.
+        ContentResolver.setSyncAutomatically(newAccount,
+                context.getString(R.string.content_authority), true);
+
+        // Finally, let's do a sync to get things started
+        syncImmediately(context);
+    }
+
+    /**
+     * Helper method to schedule the sync adapter periodic execution.  Flex time only exists
+     * from KitKat on.
+     */
+    private static void configurePeriodicSync(Context context, Account account,
+                                              long syncIntervalSeconds, long flexTimeSeconds) {
+        String authority = context.getString(R.string.content_authority);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            requestPeriodicSync(account, authority, syncIntervalSeconds, flexTimeSeconds);
+        } else {
+            ContentResolver.addPeriodicSync(account, authority, new Bundle(),
+                    syncIntervalSeconds);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void requestPeriodicSync(Account account, String authority,
+                                            long syncIntervalSeconds, long flexTimeSeconds) {
+        SyncRequest request = new SyncRequest.Builder()
+                .syncPeriodic(syncIntervalSeconds, flexTimeSeconds)
+                .setSyncAdapter(account, authority)
+                .setExtras(new Bundle())
+                .build();
+        ContentResolver.requestSync(request);
+    }
+
+    /**
+     * Makes sure the sync account exists, which sets up the periodic sync the first time.
+     */
+    public static void initializeSyncAdapter(Context context) {
+        getSyncAccount(context);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which locations a periodic sync should fetch, instead of fetching every location
+ * every period.
+ * <p/>
+ * Each location remembers when it was last synced and its own sync interval.  A location is
+ * skipped while its data is younger than the TTL or its next sync isn't due.  After each sync
+ * the interval doubles if the forecast barely changed, up to the maximum, and halves if most of
+ * it changed, down to the minimum, so settled weather is asked for less often than weather on
+ * the move.  The next sync is put a random fraction of the interval early or late, so devices
+ * that synced together drift apart instead of hitting the API at the same moment.
+ */
+public final class SyncScheduler {
+
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // Below this fraction of new or different days the forecast is settled and the interval
+    // widens.  A day passing alone adds one new day in fourteen.
+    static final double SETTLED_CHANGE = 0.15;
+    // At or above this fraction the forecast is on the move and the interval narrows.
+    static final double VOLATILE_CHANGE = 0.5;
+
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+
+    private static final String PREFERENCES_NAME = "sync_schedule";
+
+    /**
+     * Tells the time, so tests can run a schedule on a fake clock.
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * A location's schedule.
+     */
+    static final class Entry {
+        // 0 until a sync succeeds
+        final long lastSyncedMillis;
+        final long intervalMillis;
+        final long nextSyncMillis;
+        // what the last forecast stored was, as sorted hashes of its dated days
+        final long[] dayHashes;
+
+        Entry(long lastSyncedMillis, long intervalMillis, long nextSyncMillis,
+              long[] dayHashes) {
+            this.lastSyncedMillis = lastSyncedMillis;
+            this.intervalMillis = intervalMillis;
+            this.nextSyncMillis = nextSyncMillis;
+            this.dayHashes = dayHashes;
+        }
+    }
+
+    /**
+     * Where schedules are kept.
+     */
+    interface Store {
+        // null if the location has none
+        Entry get(String locationSetting);
+
+        void put(String locationSetting, Entry entry);
+    }
+
+    private final Store mStore;
+    private final Clock mClock;
+    private final Random mRandom;
+    private final long mTtlMillis;
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+    private final double mJitter;
+
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    /**
+     * Keeps schedules in the app's preferences, with the TTL, intervals and jitter from
+     * R.integer.
+     */
+    public SyncScheduler(Context context) {
+        this(new PreferenceStore(context.getSharedPreferences(PREFERENCES_NAME,
+                        Context.MODE_PRIVATE)), SYSTEM_CLOCK, new Random(),
+                minutes(context.getResources(), R.integer.sync_ttl_minutes),
+                minutes(context.getResources(), R.integer.sync_min_interval_minutes),
+                minutes(context.getResources(), R.integer.sync_max_interval_minutes),
+                context.getResources().getInteger(R.integer.sync_jitter_percent) / 100.0);
+    }
+
+    /**
+     * @param jitter the most the next sync moves from its interval, as a fraction of it
+     */
+    SyncScheduler(Store store, Clock clock, Random random, long ttlMillis,
+                  long minIntervalMillis, long maxIntervalMillis, double jitter) {
+        mStore = store;
+        mClock = clock;
+        mRandom = random;
+        mTtlMillis = ttlMillis;
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = maxIntervalMillis;
+        mJitter = jitter;
+    }
+
+    private static long minutes(Resources resources, int id) {
+        return resources.getInteger(id) * MINUTE_IN_MILLIS;
+    }
+
+    /**
+     * @return true if the location has never been synced, or its data is older than the TTL
+     * and its next sync is due.
+     */
+    public boolean isDue(String locationSetting) {
+        Entry entry = mStore.get(locationSetting);
+        if (entry == null) {
+            return true;
+        }
+        long now = mClock.currentTimeMillis();
+        return now - entry.lastSyncedMillis >= mTtlMillis && now >= entry.nextSyncMillis;
+    }
+
+    /**
+     * @return the locations that are due, in the order given.  The others count as skipped.
+     */
+    public List<String> filterDue(Collection<String> locationSettings) {
+        List<String> due = new ArrayList<String>(locationSettings.size());
+        for (String setting : locationSettings) {
+            if (isDue(setting)) {
+                due.add(setting);
+            } else {
+                mSkipped.incrementAndGet();
+                Log.d(LOG_TAG, "Skipping " + setting + ", its forecast is still fresh");
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return how many times a location was skipped because it wasn't due.
+     */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    /**
+     * Schedules the location's next sync after one that ended with the status.
+     *
+     * @param dayHashes the forecast stored, from {@link #dayHashes}; only read when UPDATED
+     */
+    void onSynced(String locationSetting, WeatherSyncEngine.Status status, long[] dayHashes) {
+        Entry previous = mStore.get(locationSetting);
+        long now = mClock.currentTimeMillis();
+        long interval = previous != null ? previous.intervalMillis : mMinIntervalMillis;
+        long[] previousHashes = previous != null ? previous.dayHashes : new long[0];
+
+        if (status == WeatherSyncEngine.Status.FAILED) {
+            // nothing new was learnt; try again soon, without resetting how fresh the data is
+            mStore.put(locationSetting, new Entry(
+                    previous != null ? previous.lastSyncedMillis : 0, interval,
+                    now + jitter(mMinIntervalMillis), previousHashes));
+            return;
+        }
+
+        double change;
+        if (status == WeatherSyncEngine.Status.UPDATED) {
+            change = changed(previousHashes, dayHashes);
+        } else {
+            // a 304, or a location OWM doesn't know: nothing changed
+            change = 0;
+            dayHashes = previousHashes;
+        }
+        if (change < SETTLED_CHANGE) {
+            interval = Math.min(interval * 2, mMaxIntervalMillis);
+        } else if (change >= VOLATILE_CHANGE) {
+            interval = Math.max(interval / 2, mMinIntervalMillis);
+        }
+        mStore.put(locationSetting, new Entry(now, interval, now + jitter(interval), dayHashes));
+    }
+
+    // The interval moved up to mJitter of itself either way.
+    private long jitter(long interval) {
+        return interval + (long) (interval * mJitter * (2 * mRandom.nextDouble() - 1));
+    }
+
+    /**
+     * @return the fraction of the days that are new or different from the previous forecast's;
+     * 1 if there was none.  Both are sorted.
+     */
+    static double changed(long[] previous, long[] current) {
+        if (current.length == 0) {
+            return 0;
+        }
+        if (previous.length == 0) {
+            return 1;
+        }
+        int changed = 0;
+        for (long hash : current) {
+            if (Arrays.binarySearch(previous, hash) < 0) {
+                changed++;
+            }
+        }
+        return (double) changed / current.length;
+    }
+
+    /**
+     * @return the sorted hashes of the forecast's days, each with its date, so a day that moved
+     * up the list still matches and a changed day doesn't.
+     */
+    static long[] dayHashes(ForecastParser.Forecast forecast) {
+        long[] hashes = new long[forecast.days.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = forecast.days.contentHash(i) * 31 + forecast.days.getDate(i);
+        }
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    // Keeps each location's schedule under keys prefixed with its setting.
+    static final class PreferenceStore implements Store {
+        private static final String LAST_SYNCED = ".last_synced";
+        private static final String INTERVAL = ".interval";
+        private static final String NEXT_SYNC = ".next_sync";
+        private static final String DAYS = ".days";
+
+        private final SharedPreferences mPreferences;
+
+        PreferenceStore(SharedPreferences preferences) {
+            mPreferences = preferences;
+        }
+
+        @Override
+        public Entry get(String locationSetting) {
+            if (!mPreferences.contains(locationSetting + INTERVAL)) {
+                return null;
+            }
+            String days = mPreferences.getString(locationSetting + DAYS, "");
+            String[] hexes = days.length() == 0 ? new String[0] : days.split(",");
+            long[] hashes = new long[hexes.length];
+            for (int i = 0; i < hexes.length; i++) {
+                // parseLong can't take the top bit of a hex string
+                hashes[i] = (Long.parseLong(hexes[i].substring(0, 1), 16) << 60) |
+                        Long.parseLong(hexes[i].substring(1), 16);
+            }
+            return new Entry(mPreferences.getLong(locationSetting + LAST_SYNCED, 0),
+                    mPreferences.getLong(locationSetting + INTERVAL, 0),
+                    mPreferences.getLong(locationSetting + NEXT_SYNC, 0), hashes);
+        }
+
+        @Override
+        public void put(String locationSetting, Entry entry) {
+            StringBuilder days = new StringBuilder(entry.dayHashes.length * 17);
+            for (long hash : entry.dayHashes) {
+                if (days.length() > 0) {
+                    days.append(',');
+                }
+                // fixed width, so the first digit holds exactly the top four bits
+                String hex = Long.toHexString(hash);
+                for (int pad = hex.length(); pad < 16; pad++) {
+                    days.append('0');
+                }
+                days.append(hex);
+            }
+            mPreferences.edit()
+                    .putLong(locationSetting + LAST_SYNCED, entry.lastSyncedMillis)
+                    .putLong(locationSetting + INTERVAL, entry.intervalMillis)
+                    .putLong(locationSetting + NEXT_SYNC, entry.nextSyncMillis)
+                    .putString(locationSetting + DAYS, days.toString())
+                    .apply();
+        }
+    }
+
+    // Keeps schedules for the life of the object, for tests.
+    static final class MemoryStore implements Store {
+        private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+        @Override
+        public synchronized Entry get(String locationSetting) {
+            return mEntries.get(locationSetting);
+        }
+
+        @Override
+        public synchronized void put(String locationSetting, Entry entry) {
+            mEntries.put(locationSetting, entry);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one HTTP client every weather fetch goes through.
+ * <p/>
+ * HttpURLConnection keeps a pool of idle keep-alive connections, but a connection only goes back
+ * to it once its response has been read to the end and closed; disconnect() closes the socket
+ * instead.  So bodies are handed out as a {@link Body} whose close() drains what the reader
+ * left, and connections are only disconnected after a failure.  Responses are requested
+ * gzipped and inflated as they stream in, and the socket is read through a per-thread buffer
+ * that is reused from one fetch to the next.
+ */
+public final class WeatherHttpClient {
+
+    private static final String LOG_TAG = WeatherHttpClient.class.getSimpleName();
+
+    // A phone on a poor network can take a while to connect, but a forecast is a few KB: if no
+    // byte arrives for this long, the connection is dead rather than slow.
+    static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    static final int READ_TIMEOUT_MILLIS = 20000;
+
+    private static final int BUFFER_SIZE = 8192;
+    // Draining more than this to save a connection costs more than opening a new one.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final String GZIP = "gzip";
+
+    private static final WeatherHttpClient sInstance =
+            new WeatherHttpClient(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mBodyBytes = new AtomicLong();
+
+    public static WeatherHttpClient getInstance() {
+        return sInstance;
+    }
+
+    // Lets tests use their own timeouts and counters.
+    WeatherHttpClient(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * @return a GET request for the URL, not yet connected, so callers can add headers.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        // Asking explicitly turns off the platform's transparent gzip, which on some releases
+        // isn't there at all; this way the compressed size is what we count as on the wire.
+        connection.setRequestProperty("Accept-Encoding", GZIP);
+        mRequests.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * @return the response body, inflated if it came gzipped.  Closing it drains and releases
+     * the connection for the next request.
+     */
+    public Body getBody(HttpURLConnection connection) throws IOException {
+        return new Body(connection, GZIP.equalsIgnoreCase(connection.getContentEncoding()));
+    }
+
+    /**
+     * Hands the connection of a response without a body, such as a 304, back to the pool.
+     */
+    public void release(HttpURLConnection connection) {
+        try {
+            getBody(connection).close();
+        } catch (IOException e) {
+            abort(connection);
+        }
+    }
+
+    /**
+     * Gives up on the connection: after an error it can't be reused.
+     */
+    public void abort(HttpURLConnection connection) {
+        connection.disconnect();
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return the body bytes received, compressed as they were sent.
+     */
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    /**
+     * @return the body bytes read after inflating.
+     */
+    public long getBodyBytes() {
+        return mBodyBytes.get();
+    }
+
+    /**
+     * A response body.  Reads go through the calling thread's buffer, so a Body must be read and
+     * closed on the thread that opened it.
+     */
+    public final class Body extends InputStream {
+        private final HttpURLConnection mConnection;
+        private final Wire mWire;
+        private final InputStream mIn;
+        private boolean mClosed;
+
+        private Body(HttpURLConnection connection, boolean gzipped) throws IOException {
+            mConnection = connection;
+            mWire = new Wire(connection.getInputStream(), sBuffer.get());
+            mIn = gzipped ? new GZIPInputStream(mWire) : mWire;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mIn.read();
+            if (b != -1) {
+                mBodyBytes.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = mIn.read(buffer, offset, count);
+            if (read > 0) {
+                mBodyBytes.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mIn.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // whatever the reader left, including the gzip trailer, has to be read for the
+                // connection to be reusable
+                if (!mWire.drain(MAX_DRAIN_BYTES)) {
+                    abort(mConnection);
+                }
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Dropping connection: " + e.getMessage());
+                abort(mConnection);
+            } finally {
+                mWireBytes.addAndGet(mWire.mCount);
+                mWire.mIn.close();
+            }
+        }
+    }
+
+    // The socket side of a body: a buffered stream over a borrowed buffer that counts what it
+    // reads.  Not a BufferedInputStream, which would allocate its own buffer every time.
+    private static final class Wire extends InputStream {
+        private final InputStream mIn;
+        private final byte[] mBuffer;
+        private int mPos;
+        private int mLimit;
+        private long mCount;
+
+        Wire(InputStream in, byte[] buffer) {
+            mIn = in;
+            mBuffer = buffer;
+        }
+
+        private boolean fill() throws IOException {
+            int read = mIn.read(mBuffer, 0, mBuffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            mCount += read;
+            mPos = 0;
+            mLimit = read;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos == mLimit && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (mPos == mLimit && !fill()) {
+                return -1;
+            }
+            int read = Math.min(count, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, buffer, offset, read);
+            mPos += read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (mLimit - mPos) + mIn.available();
+        }
+
+        // Reads to the end of the stream; false if that's more than maxBytes away.
+        boolean drain(int maxBytes) throws IOException {
+            long stop = mCount + maxBytes;
+            mPos = mLimit;
+            while (fill()) {
+                mPos = mLimit;
+                if (mCount > stop) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
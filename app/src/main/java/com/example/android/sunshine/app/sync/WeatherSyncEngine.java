@@ -0,0 +1,821 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs the forecasts of several locations at once.  Every way the app fetches weather -- the
+ * sync adapter, SunshineService and FetchWeatherTask -- goes through an engine.  Where
+ * forecasts come from is up to its {@link Transport}, ForecastFetcher unless a test says
+ * otherwise, and where they go is up to its {@link Store}, WeatherProvider by default.
+ * <p/>
+ * Up to the configured number of locations are fetched at a time, each on a worker thread that
+ * also parses the response as it streams in, so a slow server costs the longest fetch rather
+ * than the sum of them.  The database is written by one thread only, the one calling
+ * {@link #sync}: it takes forecasts as they finish and stores every forecast that is ready in
+ * one group -- one location upsert, one weather bulkInsert and one batch of validator
+ * updates -- so a sync of many locations commits a few transactions instead of three per
+ * location, and never has writers contending for the database.  Locations already stored are
+ * found in {@link LocationIdCache} rather than looked up through the provider.  Weather goes
+ * through the provider's delta ingest, so days that haven't changed since the last sync aren't
+ * rewritten.  (See ProviderForecastStore.)
+ * <p/>
+ * A location already being synced -- by another engine, say a periodic sync running while the
+ * user picks a new location -- is not fetched again: the sync joins the one in flight and
+ * reports its outcome once it is stored.
+ * <p/>
+ * A location with no forecast stored yet can be loaded progressively: alongside its full
+ * forecast, the first few days are fetched on their own.  That smaller response arrives
+ * first, and is committed and notified at once rather than after the provider's debounce
+ * window, so the forecast list can show them while the rest are still on their way.  The full
+ * forecast then fills in the remaining days; the days already stored are left alone by the
+ * delta ingest, so each phase notifies the location's observers once.
+ */
+public class WeatherSyncEngine {
+
+    private static final String LOG_TAG = WeatherSyncEngine.class.getSimpleName();
+
+    // The most forecasts stored in one group.  A group is written as soon as the first of them
+    // arrives, so this only bounds how much a burst of finished fetches puts in one transaction.
+    static final int MAX_GROUP_LOCATIONS = 16;
+
+    // Idle workers go away after this, so an engine kept between syncs holds no threads.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Every location being synced in this process, whichever engine is syncing it.
+    private static final SingleFlight<String, LocationReport> sFlights =
+            new SingleFlight<String, LocationReport>();
+
+    /**
+     * What happened to a location in a sync.
+     */
+    public enum Status {
+        // its forecast was fetched and stored
+        UPDATED,
+        // the server said the stored forecast is current; nothing was written
+        NOT_MODIFIED,
+        // the server answered without a forecast, as OWM does for an unknown location
+        NO_FORECAST,
+        // the fetch or the write failed; whatever was stored before is left as it was
+        FAILED
+    }
+
+    /**
+     * Where forecasts come from.
+     */
+    public interface Transport {
+        /**
+         * Fetches the first days of the location's forecast, unless the server says the one
+         * the validators came with is current.
+         *
+         * @param validators those stored for the location, or ForecastValidators.NONE
+         * @throws IOException if the forecast couldn't be fetched or read
+         */
+        ForecastFetcher.Result fetch(String locationSetting, ForecastValidators validators,
+                                     int days) throws IOException;
+    }
+
+    /**
+     * Where forecasts are stored.  The engine calls it from one thread at a time.  Writes that
+     * fail throw SQLException.
+     */
+    public interface Store {
+        // the validators of each of the locations that has some stored
+        Map<String, ForecastValidators> queryValidators(List<String> locationSettings);
+
+        /**
+         * Puts the _id of each stored location it can find without a write into ids, and adds
+         * the other settings to misses.
+         *
+         * @return true if that took a query
+         */
+        boolean findLocationIds(List<String> locationSettings, Map<String, Long> ids,
+                                List<String> misses);
+
+        /**
+         * Stores the location rows in one write, leaving any already stored as they are, and
+         * puts the _id of every one of them into ids.
+         */
+        void insertLocations(List<ContentValues> locations, Map<String, Long> ids);
+
+        /**
+         * Stores the weather rows in one write, leaving rows that haven't changed alone if it
+         * can, and returns each row's WeatherContract.INGEST_OUTCOME_*.
+         *
+         * @param notifyNow true to notify observers of the rows as soon as they are stored,
+         *                  rather than with the writes around them
+         */
+        byte[] storeWeather(ForecastBatch rows, boolean notifyNow);
+
+        /**
+         * Stores the validators of the forecasts just stored, by location, in one write.
+         *
+         * @return false if they couldn't be stored; the forecasts stay stored, and the next
+         * sync just fetches them again
+         */
+        boolean storeValidators(Map<String, ForecastValidators> validators);
+    }
+
+    /**
+     * How a location's sync went.  Times are in milliseconds since the sync started.
+     */
+    public static final class LocationReport {
+        public final String locationSetting;
+        public final Status status;
+        // days of forecast stored
+        public final int days;
+        // how the stored days compared with the rows already there: equal and left alone,
+        // different and updated in place, or new
+        public final int unchangedDays;
+        public final int updatedDays;
+        public final int insertedDays;
+        // when its fetch and parse finished
+        public final long fetchedMillis;
+        // when its forecast was committed, or -1 if nothing was written
+        public final long committedMillis;
+        // when its first days were committed ahead of the rest, or -1 if it wasn't loaded
+        // progressively
+        public final long firstCommittedMillis;
+        // true if another sync had it in flight, and this one waited for that one's outcome
+        public final boolean joined;
+        // the forecast stored, for the scheduler; null unless UPDATED
+        final long[] dayHashes;
+
+        LocationReport(String locationSetting, Status status, int days, long fetchedMillis,
+                       long committedMillis) {
+            this(locationSetting, status, days, 0, 0, 0, fetchedMillis, committedMillis, -1,
+                    false, null);
+        }
+
+        LocationReport(String locationSetting, Status status, int days, int unchangedDays,
+                       int updatedDays, int insertedDays, long fetchedMillis,
+                       long committedMillis, long firstCommittedMillis, boolean joined,
+                       long[] dayHashes) {
+            this.locationSetting = locationSetting;
+            this.status = status;
+            this.days = days;
+            this.unchangedDays = unchangedDays;
+            this.updatedDays = updatedDays;
+            this.insertedDays = insertedDays;
+            this.fetchedMillis = fetchedMillis;
+            this.committedMillis = committedMillis;
+            this.firstCommittedMillis = firstCommittedMillis;
+            this.joined = joined;
+            this.dayHashes = dayHashes;
+        }
+
+        // The outcome of the sync that led, as seen by one that joined it at start.
+        LocationReport joinedAt(long start) {
+            long now = SystemClock.elapsedRealtime() - start;
+            return new LocationReport(locationSetting, status, days, unchangedDays, updatedDays,
+                    insertedDays, now, committedMillis == -1 ? -1 : now,
+                    firstCommittedMillis == -1 ? -1 : now, true, dayHashes);
+        }
+
+        @Override
+        public String toString() {
+            return locationSetting + ": " + status + (joined ? " (joined)" : "") + ", " + days +
+                    " days" + (days == 0 ? "" : " (" + unchangedDays + " unchanged, " +
+                    updatedDays + " updated, " + insertedDays + " inserted)") +
+                    ", fetched at " + fetchedMillis + "ms" +
+                    (firstCommittedMillis == -1 ? "" :
+                            ", first days committed at " + firstCommittedMillis + "ms") +
+                    (committedMillis == -1 ? "" : ", committed at " + committedMillis + "ms");
+        }
+    }
+
+    /**
+     * How a sync went, location by location in the order they finished.
+     */
+    public static final class Report {
+        public final List<LocationReport> locations;
+        public final long totalMillis;
+        // write transactions committed for the whole sync
+        public final int transactions;
+        // provider calls made to find the location rows the weather belongs to
+        public final int locationCalls;
+
+        Report(List<LocationReport> locations, long totalMillis, Tally tally) {
+            this.locations = Collections.unmodifiableList(locations);
+            this.totalMillis = totalMillis;
+            this.transactions = tally.transactions;
+            this.locationCalls = tally.locationCalls;
+        }
+
+        public int count(Status status) {
+            int count = 0;
+            for (LocationReport location : locations) {
+                if (location.status == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return how many locations were left to a sync that already had them in flight.
+         */
+        public int countJoined() {
+            int count = 0;
+            for (LocationReport location : locations) {
+                if (location.joined) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return the report of the location, or null if it wasn't part of the sync.
+         */
+        public LocationReport get(String locationSetting) {
+            for (LocationReport location : locations) {
+                if (location.locationSetting.equals(locationSetting)) {
+                    return location;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return locations.size() + " locations in " + totalMillis + "ms: " +
+                    count(Status.UPDATED) + " updated, " +
+                    count(Status.NOT_MODIFIED) + " not modified, " +
+                    count(Status.NO_FORECAST) + " without a forecast, " +
+                    count(Status.FAILED) + " failed, " + countJoined() + " joined; " +
+                    transactions + " transactions, " + locationCalls + " location calls";
+        }
+    }
+
+    // What a sync's writes cost, counted as it goes.
+    private static final class Tally {
+        int transactions;
+        int locationCalls;
+    }
+
+    /**
+     * @return how many times, across every engine in the process, a location was not fetched
+     * because a sync already had it in flight.
+     */
+    public static long getSuppressedCount() {
+        return sFlights.getSuppressedCount();
+    }
+
+    private final Transport mTransport;
+    private final Store mStore;
+    private final ThreadPoolExecutor mExecutor;
+    // days fetched first for a location with nothing stored; 0 fetches every forecast whole
+    private volatile int mFirstPaintDays;
+
+    public WeatherSyncEngine(Context context) {
+        this(context, new ForecastFetcher());
+    }
+
+    /**
+     * Fetches with the parallelism configured by R.integer.sync_parallelism, and loads new
+     * locations progressively from R.integer.sync_first_paint_days.
+     */
+    public WeatherSyncEngine(Context context, Transport transport) {
+        this(context.getContentResolver(), transport,
+                context.getResources().getInteger(R.integer.sync_parallelism));
+        setFirstPaintDays(context.getResources().getInteger(R.integer.sync_first_paint_days));
+    }
+
+    /**
+     * Stores through WeatherProvider, finding stored locations in LocationIdCache.
+     *
+     * @param parallelism the most fetches in flight at once
+     */
+    public WeatherSyncEngine(ContentResolver resolver, Transport transport, int parallelism) {
+        this(resolver, transport, parallelism, LocationIdCache.getInstance());
+    }
+
+    /**
+     * @param locationIds where to find the location rows, or null to look every location up
+     *                    through the provider
+     */
+    WeatherSyncEngine(ContentResolver resolver, Transport transport, int parallelism,
+                      LocationIdCache locationIds) {
+        this(transport, new ProviderForecastStore(resolver, locationIds), parallelism);
+    }
+
+    /**
+     * @param parallelism the most fetches in flight at once
+     */
+    public WeatherSyncEngine(Transport transport, Store store, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        mTransport = transport;
+        mStore = store;
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new FetchThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param days how many days of forecast to fetch and store first for a location with no
+     *             forecast stored yet, before the rest; 0, or the whole forecast or more, turns
+     *             progressive loading off
+     */
+    public void setFirstPaintDays(int days) {
+        mFirstPaintDays = days;
+    }
+
+    /**
+     * Stops the workers once the fetches already submitted are done.  The engine can't sync
+     * afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Fetches and stores the forecasts of the locations, and returns once every one of them
+     * has been stored or given up on.  Locations another sync has in flight are left to it,
+     * and reported with its outcome.  The calling thread does all the writing.  Interrupting
+     * it cancels the fetches not yet done; the report then only covers what finished.
+     */
+    public Report sync(Collection<String> locationSettings) {
+        final long start = SystemClock.elapsedRealtime();
+        // a location asked for twice is still only fetched once
+        List<String> settings = new ArrayList<String>(locationSettings.size());
+        List<SingleFlight.Flight<LocationReport>> joined =
+                new ArrayList<SingleFlight.Flight<LocationReport>>();
+        for (String setting : new LinkedHashSet<String>(locationSettings)) {
+            SingleFlight.Flight<LocationReport> flight = sFlights.join(setting);
+            if (flight == null) {
+                settings.add(setting);
+            } else {
+                Log.d(LOG_TAG, "Joining the sync of " + setting + " already in flight");
+                joined.add(flight);
+            }
+        }
+
+        List<LocationReport> reports = new ArrayList<LocationReport>(locationSettings.size());
+        Tally tally = new Tally();
+        try {
+            syncLeading(settings, start, reports, tally);
+        } finally {
+            // whatever happened, nobody may be left waiting on a location this sync led
+            Set<String> finished = new HashSet<String>();
+            for (LocationReport location : reports) {
+                finished.add(location.locationSetting);
+            }
+            for (String setting : settings) {
+                if (!finished.contains(setting)) {
+                    sFlights.finish(setting, new LocationReport(setting, Status.FAILED, 0,
+                            SystemClock.elapsedRealtime() - start, -1));
+                }
+            }
+        }
+
+        try {
+            for (SingleFlight.Flight<LocationReport> flight : joined) {
+                reports.add(flight.await().joinedAt(start));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Report report = new Report(reports, SystemClock.elapsedRealtime() - start, tally);
+        for (LocationReport location : reports) {
+            Log.d(LOG_TAG, location.toString());
+        }
+        Log.d(LOG_TAG, "Sync complete. " + report);
+        return report;
+    }
+
+    /**
+     * Syncs those of the locations the scheduler says are due, and schedules their next sync
+     * by how it went.  For periodic syncs; a sync the user asked for should use
+     * {@link #syncNow}.
+     */
+    public Report syncDue(Collection<String> locationSettings, SyncScheduler scheduler) {
+        return schedule(sync(scheduler.filterDue(locationSettings)), scheduler);
+    }
+
+    /**
+     * Syncs every one of the locations, due or not, and schedules their next sync by how it
+     * went, so a periodic sync doesn't follow right behind.
+     */
+    public Report syncNow(Collection<String> locationSettings, SyncScheduler scheduler) {
+        return schedule(sync(locationSettings), scheduler);
+    }
+
+    private static Report schedule(Report report, SyncScheduler scheduler) {
+        for (LocationReport location : report.locations) {
+            if (!location.joined) {
+                // the sync that led has scheduled the ones that were joined
+                scheduler.onSynced(location.locationSetting, location.status,
+                        location.dayHashes);
+            }
+        }
+        return report;
+    }
+
+    // Syncs the locations this sync leads.
+    private void syncLeading(List<String> settings, long start, List<LocationReport> reports,
+                             Tally tally) {
+        if (settings.isEmpty()) {
+            return;
+        }
+        Map<String, ForecastValidators> validators =
+                mStore.queryValidators(settings);
+
+        int firstPaintDays = mFirstPaintDays;
+        CompletionService<Fetched> completion = new ExecutorCompletionService<Fetched>(mExecutor);
+        List<Future<Fetched>> futures = new ArrayList<Future<Fetched>>(settings.size());
+        for (String setting : settings) {
+            ForecastValidators stored = validators.get(setting);
+            if (stored == null && firstPaintDays > 0 &&
+                    firstPaintDays < ForecastFetcher.NUM_DAYS) {
+                // nothing to show yet, so the first days go first
+                futures.add(completion.submit(new FetchTask(setting, ForecastValidators.NONE,
+                        firstPaintDays, start)));
+            }
+            futures.add(completion.submit(
+                    new FetchTask(setting, stored != null ? stored : ForecastValidators.NONE,
+                            0, start)));
+        }
+
+        int pending = futures.size();
+        List<Fetched> group = new ArrayList<Fetched>(MAX_GROUP_LOCATIONS);
+        // locations whose full forecast has been taken, so a late first paint is dropped
+        Set<String> whole = new HashSet<String>();
+        Map<String, Long> firstCommits = new HashMap<String, Long>();
+        try {
+            while (pending > 0) {
+                // wait for one forecast, then take whatever else is ready with it
+                take(get(completion.take()), group, whole);
+                pending--;
+                Future<Fetched> next;
+                while (group.size() < MAX_GROUP_LOCATIONS && pending > 0 &&
+                        (next = completion.poll()) != null) {
+                    take(get(next), group, whole);
+                    pending--;
+                }
+                if (group.isEmpty()) {
+                    continue;
+                }
+                store(group, start, reports, tally, firstCommits);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Fetched> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+        Adds a finished fetch to the group being gathered.  The first days of a forecast are
+        only worth storing ahead of the whole of it, so they are dropped once the whole forecast
+        has been taken, and if they failed: the full fetch decides how the location went.
+     */
+    private static void take(Fetched fetched, List<Fetched> group, Set<String> whole) {
+        if (fetched.partial) {
+            if (fetched.status == Status.UPDATED &&
+                    !whole.contains(fetched.locationSetting)) {
+                group.add(fetched);
+            }
+            return;
+        }
+        whole.add(fetched.locationSetting);
+        for (int i = group.size() - 1; i >= 0; i--) {
+            Fetched taken = group.get(i);
+            if (taken.partial && taken.locationSetting.equals(fetched.locationSetting)) {
+                group.remove(i);
+            }
+        }
+        group.add(fetched);
+    }
+
+    /**
+     * Stores a location's row, unless one is already stored for its setting, the way a sync
+     * stores the locations of the forecasts it fetches.
+     *
+     * @return the _id of the location's row, or -1 if it couldn't be stored
+     */
+    public long storeLocation(String locationSetting, String cityName, double lat, double lon) {
+        List<String> settings = Collections.singletonList(locationSetting);
+        Map<String, Long> ids = new HashMap<String, Long>(1);
+        List<String> misses = new ArrayList<String>(1);
+        mStore.findLocationIds(settings, ids, misses);
+        if (!misses.isEmpty()) {
+            mStore.insertLocations(Collections.singletonList(
+                    newLocationValues(locationSetting, cityName, lat, lon)), ids);
+        }
+        Long locationId = ids.get(locationSetting);
+        return locationId != null ? locationId : -1;
+    }
+
+    // Adds the location's report, and hands it to any sync waiting on the location.
+    private static void report(LocationReport location, List<LocationReport> reports) {
+        reports.add(location);
+        sFlights.finish(location.locationSetting, location);
+    }
+
+    private static Fetched get(Future<Fetched> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // FetchTask reports its own failures, so this is an Error on a worker
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // A finished fetch, handed from a worker to the writer.
+    private static final class Fetched {
+        final String locationSetting;
+        final Status status;
+        final ForecastFetcher.Result result;
+        // true for the first days of the forecast, fetched ahead of the rest; these are
+        // stored, but neither reported nor used for the scheduler or the validators
+        final boolean partial;
+        // SyncScheduler.dayHashes of the forecast, when UPDATED
+        final long[] dayHashes;
+        final long fetchedMillis;
+
+        Fetched(String locationSetting, Status status, ForecastFetcher.Result result,
+                boolean partial, long fetchedMillis) {
+            this.locationSetting = locationSetting;
+            this.status = status;
+            this.result = result;
+            this.partial = partial;
+            this.dayHashes = status == Status.UPDATED && !partial ?
+                    SyncScheduler.dayHashes(result.forecast) : null;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+
+    // Fetches and parses one location's forecast on a worker.
+    private final class FetchTask implements Callable<Fetched> {
+        private final String mLocationSetting;
+        private final ForecastValidators mValidators;
+        // days to fetch, or 0 for the whole forecast
+        private final int mDays;
+        private final long mStart;
+
+        FetchTask(String locationSetting, ForecastValidators validators, int days, long start) {
+            mLocationSetting = locationSetting;
+            mValidators = validators;
+            mDays = days;
+            mStart = start;
+        }
+
+        @Override
+        public Fetched call() {
+            Status status;
+            ForecastFetcher.Result result = null;
+            try {
+                result = mTransport.fetch(mLocationSetting, mValidators,
+                        mDays == 0 ? ForecastFetcher.NUM_DAYS : mDays);
+                if (result.notModified) {
+                    status = Status.NOT_MODIFIED;
+                } else if (!result.forecast.hasCity()) {
+                    // OWM answers an unknown location with an error object instead of a forecast
+                    Log.w(LOG_TAG, "No forecast for " + mLocationSetting);
+                    status = Status.NO_FORECAST;
+                } else {
+                    status = Status.UPDATED;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error fetching " + mLocationSetting, e);
+                status = Status.FAILED;
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error fetching " + mLocationSetting, e);
+                status = Status.FAILED;
+            }
+            return new Fetched(mLocationSetting, status, result, mDays != 0,
+                    SystemClock.elapsedRealtime() - mStart);
+        }
+    }
+
+    /*
+        Stores the group's new forecasts: the locations first, since the weather rows refer to
+        them, then every day of every forecast in one ForecastBatch, then the validators the
+        forecasts came with.  The validators go last so a failed write never leaves a location
+        claiming a forecast it doesn't have.  Adds a report per location.  First days stored
+        ahead of their forecast are notified as soon as they commit, and their commit times
+        kept in firstCommits.
+     */
+    private void store(List<Fetched> group, long start, List<LocationReport> reports,
+                       Tally tally, Map<String, Long> firstCommits) {
+        List<Fetched> updated = new ArrayList<Fetched>(group.size());
+        for (Fetched fetched : group) {
+            if (fetched.status == Status.UPDATED) {
+                updated.add(fetched);
+            } else {
+                report(new LocationReport(fetched.locationSetting, fetched.status, 0,
+                        fetched.fetchedMillis, -1), reports);
+            }
+        }
+        if (updated.isEmpty()) {
+            return;
+        }
+
+        Map<String, Long> locationIds;
+        List<String> settings = new ArrayList<String>(updated.size());
+        for (Fetched fetched : updated) {
+            settings.add(fetched.locationSetting);
+        }
+        try {
+            locationIds = resolveLocationIds(updated, settings, tally);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error storing locations " + settings, e);
+            failAll(updated, reports);
+            return;
+        }
+
+        List<Fetched> stored = new ArrayList<Fetched>(updated.size());
+        // where each stored forecast's days start in rows, and one past its end
+        int[] offsets = new int[updated.size() + 1];
+        ForecastBatch rows = new ForecastBatch(updated.size() * ForecastFetcher.NUM_DAYS);
+        for (Fetched fetched : updated) {
+            Long locationId = locationIds.get(fetched.locationSetting);
+            if (locationId == null) {
+                Log.e(LOG_TAG, "Location " + fetched.locationSetting + " wasn't stored");
+                if (!fetched.partial) {
+                    report(new LocationReport(fetched.locationSetting, Status.FAILED, 0,
+                            fetched.fetchedMillis, -1), reports);
+                }
+                continue;
+            }
+            // the parser already dated the days, in a batch of their own
+            rows.addAll(fetched.result.forecast.days, locationId);
+            stored.add(fetched);
+            offsets[stored.size()] = rows.size();
+        }
+        if (stored.isEmpty()) {
+            return;
+        }
+        boolean firstPaint = false;
+        for (Fetched fetched : stored) {
+            firstPaint |= fetched.partial;
+        }
+
+        byte[] outcomes;
+        try {
+            outcomes = mStore.storeWeather(rows, firstPaint);
+            tally.transactions++;
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error storing forecasts for " + settings, e);
+            failAll(stored, reports);
+            return;
+        }
+        long committedMillis = SystemClock.elapsedRealtime() - start;
+
+        Map<String, ForecastValidators> validators =
+                new HashMap<String, ForecastValidators>(stored.size());
+        for (Fetched fetched : stored) {
+            if (fetched.partial) {
+                firstCommits.put(fetched.locationSetting, committedMillis);
+            } else {
+                validators.put(fetched.locationSetting, fetched.result.validators);
+            }
+        }
+        if (validators.isEmpty()) {
+            return;
+        }
+        if (mStore.storeValidators(validators)) {
+            tally.transactions++;
+        }
+
+        for (int i = 0; i < stored.size(); i++) {
+            Fetched fetched = stored.get(i);
+            if (fetched.partial) {
+                continue;
+            }
+            Long firstCommitted = firstCommits.get(fetched.locationSetting);
+            int[] counts = new int[WeatherContract.INGEST_OUTCOME_INSERTED + 1];
+            for (int row = offsets[i]; row < offsets[i + 1]; row++) {
+                counts[outcomes[row]]++;
+            }
+            report(new LocationReport(fetched.locationSetting, Status.UPDATED,
+                    fetched.result.forecast.days.size(),
+                    counts[WeatherContract.INGEST_OUTCOME_UNCHANGED],
+                    counts[WeatherContract.INGEST_OUTCOME_UPDATED],
+                    counts[WeatherContract.INGEST_OUTCOME_INSERTED], fetched.fetchedMillis,
+                    committedMillis, firstCommitted != null ? firstCommitted : -1, false,
+                    fetched.dayHashes), reports);
+        }
+    }
+
+    /*
+        The _id of each forecast's location row, by setting.  Locations the store can find
+        without a write take no more; the rest are stored together, and their city name and
+        coordinates with them.
+     */
+    private Map<String, Long> resolveLocationIds(List<Fetched> updated, List<String> settings,
+                                                 Tally tally) {
+        Map<String, Long> ids = new HashMap<String, Long>(settings.size());
+        List<String> misses = new ArrayList<String>(settings.size());
+        if (mStore.findLocationIds(settings, ids, misses)) {
+            tally.locationCalls++;
+        }
+        if (misses.isEmpty()) {
+            return ids;
+        }
+
+        List<ContentValues> locations = new ArrayList<ContentValues>(misses.size());
+        for (Fetched fetched : updated) {
+            if (!ids.containsKey(fetched.locationSetting)) {
+                locations.add(newLocationValues(fetched.locationSetting,
+                        fetched.result.forecast.cityName, fetched.result.forecast.latitude,
+                        fetched.result.forecast.longitude));
+            }
+        }
+        mStore.insertLocations(locations, ids);
+        // a write, and a query for the ids
+        tally.transactions++;
+        tally.locationCalls += 2;
+        return ids;
+    }
+
+    private static ContentValues newLocationValues(String locationSetting, String cityName,
+                                                   double lat, double lon) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return values;
+    }
+
+    private static void failAll(List<Fetched> group, List<LocationReport> reports) {
+        for (Fetched fetched : group) {
+            if (fetched.partial) {
+                continue;
+            }
+            report(new LocationReport(fetched.locationSetting, Status.FAILED, 0,
+                    fetched.fetchedMillis, -1), reports);
+        }
+    }
+
+    // Numbered background threads, so fetches don't compete with the UI.
+    private static final class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG + "-" + mCount.incrementAndGet());
+        }
+    }
+}